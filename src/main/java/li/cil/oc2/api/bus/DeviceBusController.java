@@ -47,6 +47,19 @@ public interface DeviceBusController {
      */
     void scanDevices();
 
+    /**
+     * Updates the devices provided by a single {@link DeviceBusElement}.
+     * <p>
+     * Behaves like {@link #scanDevices()}, but allows controllers to only look at the devices
+     * of the specified element. This should be preferred over {@link #scanDevices()} when the
+     * list of devices of a single {@link DeviceBusElement} changes.
+     *
+     * @param element the element the list of devices changed for.
+     */
+    default void scanDevices(final DeviceBusElement element) {
+        scanDevices();
+    }
+
     /**
      * The list of all devices currently known to this controller.
      * <p>
@@ -0,0 +1,229 @@
+package li.cil.oc2.api.bus.device.object;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates and caches invokers for {@link Callback} annotated methods.
+ * <p>
+ * Where possible, invokers are generated using the {@link LambdaMetafactory}, which results
+ * in plain interface calls the JIT can inline. This requires the method and its declaring
+ * class to be public, and the declaring class to be visible from our class loader. In all
+ * other cases a spreading {@link MethodHandle} called via {@link MethodHandle#invokeExact}
+ * is used instead.
+ */
+final class CallbackInvokers {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ConcurrentHashMap<Method, CallbackInvoker> INVOKERS = new ConcurrentHashMap<>();
+
+    private static final Class<?>[] INVOKER_TYPES = {Invoker0.class, Invoker1.class, Invoker2.class, Invoker3.class, Invoker4.class};
+    private static final Class<?>[] VOID_INVOKER_TYPES = {VoidInvoker0.class, VoidInvoker1.class, VoidInvoker2.class, VoidInvoker3.class, VoidInvoker4.class};
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Calls a method on a target object.
+     */
+    @FunctionalInterface
+    interface CallbackInvoker {
+        Object invoke(Object target, Object[] parameters) throws Throwable;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns an invoker for the specified method, creating it if necessary.
+     *
+     * @param method the method to get the invoker for.
+     * @return the invoker for the method.
+     * @throws IllegalAccessException if the method is not accessible.
+     */
+    public static CallbackInvoker get(final Method method) throws IllegalAccessException {
+        final CallbackInvoker invoker = INVOKERS.get(method);
+        if (invoker != null) {
+            return invoker;
+        }
+
+        final CallbackInvoker newInvoker = create(method);
+        final CallbackInvoker existingInvoker = INVOKERS.putIfAbsent(method, newInvoker);
+        return existingInvoker != null ? existingInvoker : newInvoker;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static CallbackInvoker create(final Method method) throws IllegalAccessException {
+        final MethodHandle handle = LOOKUP.unreflect(method);
+        if (canUseLambdaMetafactory(method)) {
+            try {
+                return createLambdaInvoker(method, handle);
+            } catch (final Throwable ignored) {
+                // Fall back to the method handle based invoker below.
+            }
+        }
+
+        return createMethodHandleInvoker(method, handle);
+    }
+
+    private static boolean canUseLambdaMetafactory(final Method method) {
+        if (Modifier.isStatic(method.getModifiers()) ||
+            !Modifier.isPublic(method.getModifiers()) ||
+            method.getParameterCount() >= INVOKER_TYPES.length) {
+            return false;
+        }
+
+        for (Class<?> type = method.getDeclaringClass(); type != null; type = type.getEnclosingClass()) {
+            if (!Modifier.isPublic(type.getModifiers())) {
+                return false;
+            }
+        }
+
+        // The generated class lives next to us, so it must resolve the same declaring class.
+        try {
+            final Class<?> declaringClass = method.getDeclaringClass();
+            return Class.forName(declaringClass.getName(), false, CallbackInvokers.class.getClassLoader()) == declaringClass;
+        } catch (final ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static CallbackInvoker createLambdaInvoker(final Method method, final MethodHandle handle) throws Throwable {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final int parameterCount = parameterTypes.length;
+        final boolean isVoid = method.getReturnType() == void.class;
+
+        final Class<?>[] interfaceParameterTypes = new Class<?>[parameterCount + 1];
+        final Class<?>[] instantiatedParameterTypes = new Class<?>[parameterCount + 1];
+        interfaceParameterTypes[0] = Object.class;
+        instantiatedParameterTypes[0] = method.getDeclaringClass();
+        for (int i = 0; i < parameterCount; i++) {
+            interfaceParameterTypes[i + 1] = Object.class;
+            instantiatedParameterTypes[i + 1] = MethodType.methodType(parameterTypes[i]).wrap().returnType();
+        }
+
+        final Class<?> interfaceType = isVoid ? VOID_INVOKER_TYPES[parameterCount] : INVOKER_TYPES[parameterCount];
+        final Class<?> returnType = isVoid ? void.class : Object.class;
+        final Class<?> instantiatedReturnType = isVoid ? void.class : MethodType.methodType(method.getReturnType()).wrap().returnType();
+
+        final CallSite callSite = LambdaMetafactory.metafactory(LOOKUP,
+                "invoke",
+                MethodType.methodType(interfaceType),
+                MethodType.methodType(returnType, interfaceParameterTypes),
+                handle,
+                MethodType.methodType(instantiatedReturnType, instantiatedParameterTypes));
+        final Object lambda = callSite.getTarget().invoke();
+
+        if (isVoid) {
+            switch (parameterCount) {
+                case 0: {
+                    final VoidInvoker0 invoker = (VoidInvoker0) lambda;
+                    return (target, p) -> {
+                        invoker.invoke(target);
+                        return null;
+                    };
+                }
+                case 1: {
+                    final VoidInvoker1 invoker = (VoidInvoker1) lambda;
+                    return (target, p) -> {
+                        invoker.invoke(target, p[0]);
+                        return null;
+                    };
+                }
+                case 2: {
+                    final VoidInvoker2 invoker = (VoidInvoker2) lambda;
+                    return (target, p) -> {
+                        invoker.invoke(target, p[0], p[1]);
+                        return null;
+                    };
+                }
+                case 3: {
+                    final VoidInvoker3 invoker = (VoidInvoker3) lambda;
+                    return (target, p) -> {
+                        invoker.invoke(target, p[0], p[1], p[2]);
+                        return null;
+                    };
+                }
+                default: {
+                    final VoidInvoker4 invoker = (VoidInvoker4) lambda;
+                    return (target, p) -> {
+                        invoker.invoke(target, p[0], p[1], p[2], p[3]);
+                        return null;
+                    };
+                }
+            }
+        } else {
+            switch (parameterCount) {
+                case 0: {
+                    final Invoker0 invoker = (Invoker0) lambda;
+                    return (target, p) -> invoker.invoke(target);
+                }
+                case 1: {
+                    final Invoker1 invoker = (Invoker1) lambda;
+                    return (target, p) -> invoker.invoke(target, p[0]);
+                }
+                case 2: {
+                    final Invoker2 invoker = (Invoker2) lambda;
+                    return (target, p) -> invoker.invoke(target, p[0], p[1]);
+                }
+                case 3: {
+                    final Invoker3 invoker = (Invoker3) lambda;
+                    return (target, p) -> invoker.invoke(target, p[0], p[1], p[2]);
+                }
+                default: {
+                    final Invoker4 invoker = (Invoker4) lambda;
+                    return (target, p) -> invoker.invoke(target, p[0], p[1], p[2], p[3]);
+                }
+            }
+        }
+    }
+
+    private static CallbackInvoker createMethodHandleInvoker(final Method method, final MethodHandle handle) {
+        final MethodHandle spreader = handle
+                .asType(handle.type().generic())
+                .asSpreader(Object[].class, method.getParameterCount());
+        return (target, parameters) -> (Object) spreader.invokeExact(target, parameters);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    interface Invoker0 {
+        Object invoke(Object target);
+    }
+
+    interface Invoker1 {
+        Object invoke(Object target, Object p0);
+    }
+
+    interface Invoker2 {
+        Object invoke(Object target, Object p0, Object p1);
+    }
+
+    interface Invoker3 {
+        Object invoke(Object target, Object p0, Object p1, Object p2);
+    }
+
+    interface Invoker4 {
+        Object invoke(Object target, Object p0, Object p1, Object p2, Object p3);
+    }
+
+    interface VoidInvoker0 {
+        void invoke(Object target);
+    }
+
+    interface VoidInvoker1 {
+        void invoke(Object target, Object p0);
+    }
+
+    interface VoidInvoker2 {
+        void invoke(Object target, Object p0, Object p1);
+    }
+
+    interface VoidInvoker3 {
+        void invoke(Object target, Object p0, Object p1, Object p2);
+    }
+
+    interface VoidInvoker4 {
+        void invoke(Object target, Object p0, Object p1, Object p2, Object p3);
+    }
+}
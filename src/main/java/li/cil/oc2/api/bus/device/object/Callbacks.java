@@ -8,10 +8,9 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.util.Strings;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -27,9 +26,9 @@ public final class Callbacks {
 
     ///////////////////////////////////////////////////////////////////
 
-    private static final HashMap<Class<?>, List<Method>> METHOD_BY_TYPE = new HashMap<>();
-    private static final HashMap<Method, RPCParameter[]> PARAMETERS_BY_METHOD = new HashMap<>();
-    private static final HashMap<Method, CallbackDocumentation> DOCUMENTATION_BY_METHOD = new HashMap<>();
+    private static final ConcurrentHashMap<Class<?>, List<Method>> METHOD_BY_TYPE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Method, RPCParameter[]> PARAMETERS_BY_METHOD = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Method, CallbackDocumentation> DOCUMENTATION_BY_METHOD = new ConcurrentHashMap<>();
 
     ///////////////////////////////////////////////////////////////////
 
@@ -89,15 +88,22 @@ public final class Callbacks {
     ///////////////////////////////////////////////////////////////////
 
     private static List<Method> getMethods(final Class<?> type) {
-        synchronized (METHOD_BY_TYPE) {
-            return METHOD_BY_TYPE.computeIfAbsent(type, c -> Arrays.stream(c.getMethods())
-                    .filter(m -> m.isAnnotationPresent(Callback.class))
-                    .collect(Collectors.toList()));
+        // Plain get first, since computeIfAbsent may lock the bin even if the value is present.
+        final List<Method> methods = METHOD_BY_TYPE.get(type);
+        if (methods != null) {
+            return methods;
         }
+
+        return METHOD_BY_TYPE.computeIfAbsent(type, c -> Collections.unmodifiableList(Arrays.stream(c.getMethods())
+                .filter(m -> m.isAnnotationPresent(Callback.class))
+                .collect(Collectors.toList())));
     }
 
     private static final class ObjectRPCMethod extends AbstractRPCMethod {
-        private final MethodHandle handle;
+        private final Object target;
+        private final Method method;
+        private final CallbackInvokers.CallbackInvoker invoker;
+        private final int parameterCount;
         private final String description;
         private final String returnValueDescription;
 
@@ -108,7 +114,10 @@ public final class Callbacks {
         private ObjectRPCMethod(final ConstructorData data) throws IllegalAccessException {
             super(data.methodName, data.annotation.synchronize(), data.method.getReturnType(), data.parameters);
 
-            this.handle = MethodHandles.lookup().unreflect(data.method).bindTo(data.target);
+            this.target = data.target;
+            this.method = data.method;
+            this.invoker = CallbackInvokers.get(data.method);
+            this.parameterCount = data.parameters.length;
             this.description = data.description;
             this.returnValueDescription = data.returnValueDescription;
         }
@@ -116,7 +125,11 @@ public final class Callbacks {
         @Nullable
         @Override
         public Object invoke(final Object... parameters) throws Throwable {
-            return handle.invokeWithArguments(parameters);
+            if (parameters.length != parameterCount) {
+                throw new IllegalArgumentException("Expected " + parameterCount + " parameters, got " + parameters.length + ".");
+            }
+
+            return invoker.invoke(target, parameters);
         }
 
         @Override
@@ -134,17 +147,17 @@ public final class Callbacks {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             final ObjectRPCMethod that = (ObjectRPCMethod) o;
-            return handle.equals(that.handle);
+            return target == that.target && method.equals(that.method);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(handle);
+            return 31 * System.identityHashCode(target) + method.hashCode();
         }
 
         @Override
         public String toString() {
-            return handle.toString();
+            return target.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(target)) + "::" + method.getName();
         }
 
         // Utility class to precompute stuff for constructor before calling super constructor.
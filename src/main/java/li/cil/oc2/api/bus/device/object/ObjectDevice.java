@@ -1,6 +1,8 @@
 package li.cil.oc2.api.bus.device.object;
 
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.bus.device.rpc.RPCMethod;
 import org.jetbrains.annotations.Nullable;
 
@@ -15,8 +17,11 @@ import static java.util.Collections.singletonList;
  * A reflection based implementation of {@link RPCDevice} using the {@link Callback}
  * annotation to discover {@link RPCMethod}s in a target object via
  * {@link Callbacks#collectMethods(Object)}.
+ * <p>
+ * If the target object implements {@link RPCEventSource}, events emitted by it are
+ * emitted by this device.
  */
-public final class ObjectDevice implements RPCDevice {
+public final class ObjectDevice implements RPCDevice, RPCEventSource {
     private final Object object;
     private final ArrayList<String> typeNames;
     private final List<RPCMethod> methods;
@@ -87,6 +92,20 @@ public final class ObjectDevice implements RPCDevice {
         return methods;
     }
 
+    @Override
+    public void addEventListener(final RPCEventListener listener) {
+        if (object instanceof RPCEventSource) {
+            ((RPCEventSource) object).addEventListener(listener);
+        }
+    }
+
+    @Override
+    public void removeEventListener(final RPCEventListener listener) {
+        if (object instanceof RPCEventSource) {
+            ((RPCEventSource) object).removeEventListener(listener);
+        }
+    }
+
     @Override
     public boolean equals(@Nullable final Object o) {
         if (this == o) return true;
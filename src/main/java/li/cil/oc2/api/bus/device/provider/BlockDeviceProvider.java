@@ -1,9 +1,12 @@
 package li.cil.oc2.api.bus.device.provider;
 
 import li.cil.oc2.api.bus.device.Device;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraftforge.common.util.Optional;
 import net.minecraftforge.registries.IForgeRegistryEntry;
 
+import javax.annotation.Nullable;
 import java.util.Optional;
 
 /**
@@ -50,4 +53,19 @@ public interface BlockDeviceProvider extends IForgeRegistryEntry<BlockDeviceProv
      * @return a device for the specified query, if available.
      */
     Optional<Device> getDevice(BlockDeviceQuery query);
+
+    /**
+     * Checks whether this provider may return a device for a block of the specified type.
+     * <p>
+     * Providers returning {@code false} here will not be queried for blocks of this type.
+     * The result is cached per block and block entity type until data is reloaded, so it
+     * <em>must not</em> depend on any world state. When in doubt, return {@code true}.
+     *
+     * @param block           the block at the queried position.
+     * @param blockEntityType the type of the block entity at the queried position, if any.
+     * @return {@code true} if a device may be provided; {@code false} otherwise.
+     */
+    default boolean canProvideDevice(final Block block, @Nullable final BlockEntityType<?> blockEntityType) {
+        return true;
+    }
 }
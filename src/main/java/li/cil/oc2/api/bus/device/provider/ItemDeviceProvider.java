@@ -3,6 +3,7 @@ package li.cil.oc2.api.bus.device.provider;
 import li.cil.oc2.api.bus.device.DeviceType;
 import li.cil.oc2.api.bus.device.DeviceTypes;
 import li.cil.oc2.api.bus.device.ItemDevice;
+import net.minecraft.world.item.Item;
 import net.minecraftforge.registries.IForgeRegistryEntry;
 
 import java.util.Optional;
@@ -63,4 +64,18 @@ public interface ItemDeviceProvider extends IForgeRegistryEntry<ItemDeviceProvid
     default int getEnergyConsumption(final ItemDeviceQuery query) {
         return 0;
     }
+
+    /**
+     * Checks whether this provider may return a device for an item of the specified type.
+     * <p>
+     * Providers returning {@code false} here will not be queried for items of this type.
+     * The result is cached per item type until data is reloaded, so it <em>must not</em>
+     * depend on the item stack's count or tag. When in doubt, return {@code true}.
+     *
+     * @param item the item of the queried item stack.
+     * @return {@code true} if a device may be provided; {@code false} otherwise.
+     */
+    default boolean canProvideDevice(final Item item) {
+        return true;
+    }
 }
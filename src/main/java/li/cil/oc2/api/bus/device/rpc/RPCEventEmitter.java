@@ -0,0 +1,49 @@
+package li.cil.oc2.api.bus.device.rpc;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Default implementation of {@link RPCEventSource}, passing emitted events on to all
+ * registered listeners.
+ * <p>
+ * Listeners may be added, removed and notified from any thread.
+ */
+public final class RPCEventEmitter implements RPCEventSource {
+    private final CopyOnWriteArrayList<RPCEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Whether any listeners are registered. May be used to skip computing event data
+     * nobody is interested in.
+     *
+     * @return {@code true} if there are listeners; {@code false} otherwise.
+     */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Sends an event to all registered listeners.
+     *
+     * @param name the name of the event.
+     * @param data the data of the event, or {@code null} if none.
+     */
+    public void emit(final String name, @Nullable final Object data) {
+        for (final RPCEventListener listener : listeners) {
+            listener.handleEvent(name, data);
+        }
+    }
+
+    @Override
+    public void addEventListener(final RPCEventListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void removeEventListener(final RPCEventListener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,21 @@
+package li.cil.oc2.api.bus.device.rpc;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives events emitted by a {@link RPCEventSource}.
+ * <p>
+ * Listeners may be called from any thread, and must not block.
+ */
+@FunctionalInterface
+public interface RPCEventListener {
+    /**
+     * Called when the source this listener is registered with emits an event.
+     * <p>
+     * The event data is serialized the same way as method return values.
+     *
+     * @param name the name of the event.
+     * @param data the data of the event, or {@code null} if none.
+     */
+    void handleEvent(String name, @Nullable Object data);
+}
@@ -0,0 +1,32 @@
+package li.cil.oc2.api.bus.device.rpc;
+
+import li.cil.oc2.api.bus.device.object.ObjectDevice;
+
+/**
+ * Implemented by {@link RPCDevice}s that emit events, to push state changes to VMs instead
+ * of having them poll for changes.
+ * <p>
+ * VMs must subscribe to a device to receive its events. Events are queued and sent to the
+ * VM asynchronously, a VM that does not keep up may miss events.
+ * <p>
+ * Targets of an {@link ObjectDevice} may implement this interface, to emit events for the
+ * device. The easiest way of implementing this interface is to delegate to an instance of
+ * {@link RPCEventEmitter}.
+ *
+ * @see RPCEventEmitter
+ */
+public interface RPCEventSource {
+    /**
+     * Registers a listener to be notified of events emitted by this source.
+     *
+     * @param listener the listener to add.
+     */
+    void addEventListener(RPCEventListener listener);
+
+    /**
+     * Unregisters a listener previously registered via {@link #addEventListener(RPCEventListener)}.
+     *
+     * @param listener the listener to remove.
+     */
+    void removeEventListener(RPCEventListener listener);
+}
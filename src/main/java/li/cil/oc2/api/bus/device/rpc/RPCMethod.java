@@ -62,6 +62,14 @@ public interface RPCMethod {
      * state, even when they throw an exception. As such, implementations should
      * perform internal error handling to prevent state corruption and only throw
      * exceptions to communicate that an error happened during the invocation.
+     * <p>
+     * Methods performing operations that take a while to finish, e.g. across multiple
+     * ticks, may declare a {@link java.util.concurrent.CompletionStage} as their return
+     * type and return one that completes when the operation has finished. The response
+     * to the invocation is then sent when the stage completes, carrying its result or
+     * the message of the exception it completed with. This lets callers wait for the
+     * operation without polling, and does not hold up other invocations in the meantime.
+     * The stage may be completed on any thread. Such methods cannot be used in batches.
      *
      * @param parameters the parameters for the method.
      * @return the return value, or {@code null} if none.
@@ -6,6 +6,7 @@ import net.minecraft.util.text.Component;
 import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.Nullable;
+import java.util.concurrent.CompletionStage;
 
 /**
  * {@link VMDevice}s may signal the result of their {@link VMDevice#load(VMContext)} operations.
@@ -31,6 +32,7 @@ public final class VMDeviceLoadResult {
 
     private final boolean wasSuccessful;
     @Nullable private Component message;
+    @Nullable private CompletionStage<?> pendingInitialization;
 
     private VMDeviceLoadResult(final boolean wasSuccessful) {
         this.wasSuccessful = wasSuccessful;
@@ -67,4 +69,31 @@ public final class VMDeviceLoadResult {
     public Component getErrorMessage() {
         return message;
     }
+
+    /**
+     * Adds an asynchronous initialization operation to this load result.
+     * <p>
+     * Use this for work started in {@link VMDevice#load(VMContext)} that must complete before
+     * the virtual machine may start running, e.g. restoring the device's data from disk. The
+     * virtual machine will wait for all such operations without blocking the server thread.
+     * <p>
+     * The operation completing exceptionally does not prevent the virtual machine from running.
+     *
+     * @param value the pending initialization operation.
+     * @return this load result, with the pending initialization set to the specified value.
+     */
+    public VMDeviceLoadResult withPendingInitialization(final CompletionStage<?> value) {
+        pendingInitialization = value;
+        return this;
+    }
+
+    /**
+     * An optional asynchronous operation that must complete before the virtual machine runs.
+     *
+     * @return the pending initialization operation.
+     */
+    @Nullable
+    public CompletionStage<?> getPendingInitialization() {
+        return pendingInitialization;
+    }
 }
@@ -27,6 +27,24 @@ public final class Config {
     @AConfigEntry
     public static int maxFloppySize = 512 * Constants.KILOBYTE;
     @AConfigEntry
+    public static int vmSchedulerThreadCount = 0; // 0 = number of cores - 1
+    @AConfigEntry
+    public static int vmSchedulerBudgetPerTickInMillis = 0; // 0 = thread count * tick length
+    @AConfigEntry
+    public static int rpcMaxMessageSize = 4 * Constants.KILOBYTE;
+    @AConfigEntry
+    public static int rpcMaxInFlightRequests = 16;
+    @AConfigEntry
+    public static int rpcMaxPendingResponseSize = 64 * Constants.KILOBYTE;
+    @AConfigEntry
+    public static int rpcMaxChunkedMessageSize = Constants.MEGABYTE;
+    @AConfigEntry
+    public static boolean rpcUseMemoryTransport = false; // console is used until a guest driver sets up the device
+    @AConfigEntry
+    public static int maxBusElementCount = 1024;
+    @AConfigEntry
+    public static String blobStorageCodec = "lz"; // "lz" or "gzip"
+    @AConfigEntry
     public static double busCableEnergyPerTick = 0.1;
     @AConfigEntry
     public static double busInterfaceEnergyPerTick = 0.5;
@@ -6,6 +6,8 @@ import li.cil.oc2.common.bus.device.DeviceTypes;
 import li.cil.oc2.common.bus.device.data.BlockDeviceDataRegistration;
 import li.cil.oc2.common.bus.device.data.Firmwares;
 import li.cil.oc2.common.bus.device.provider.Providers;
+import li.cil.oc2.common.bus.device.util.Devices;
+import li.cil.oc2.common.command.VMCommands;
 import li.cil.oc2.common.container.Containers;
 import li.cil.oc2.common.item.Items;
 import li.cil.oc2.common.item.crafting.RecipeSerializers;
@@ -13,6 +15,7 @@ import li.cil.oc2.common.serialization.serializers.Serializers;
 import li.cil.oc2.common.tags.BlockTags;
 import li.cil.oc2.common.tileentity.TileEntities;
 import li.cil.oc2.common.util.SoundEvents;
+import li.cil.oc2.common.vm.RPCMemoryTransportDeviceTreeProvider;
 import li.cil.sedna.Sedna;
 import net.fabricmc.api.ModInitializer;
 
@@ -21,6 +24,7 @@ public final class Main implements ModInitializer {
     public void onInitialize() {
         Ceres.initialize();
         Sedna.initialize();
+        RPCMemoryTransportDeviceTreeProvider.initialize();
         Serializers.initialize();
         BlockTags.initialize();
         Items.initialize();
@@ -34,5 +38,8 @@ public final class Main implements ModInitializer {
         DeviceTypes.initialize();
         BlockDeviceDataRegistration.initialize();
         Firmwares.initialize();
+
+        Devices.initialize();
+        VMCommands.initialize();
     }
 }
@@ -6,6 +6,7 @@ import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.world.item.context.BlockPlaceContext;
 import net.minecraft.world.level.BlockGetter;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.LevelReader;
 import net.minecraft.world.level.block.*;
 import net.minecraft.world.level.block.entity.BlockEntity;
@@ -50,6 +51,16 @@ public final class RedstoneInterfaceBlock extends HorizontalDirectionalBlock imp
         return super.getSignal(state, world, pos, side);
     }
 
+    @SuppressWarnings("deprecation")
+    @Override
+    public void neighborChanged(final BlockState state, final Level world, final BlockPos pos, final Block changedBlock, final BlockPos changedBlockPos, final boolean isMoving) {
+        final BlockEntity tileEntity = world.getBlockEntity(pos);
+        if (tileEntity instanceof RedstoneInterfaceBlockEntity) {
+            final RedstoneInterfaceBlockEntity redstoneInterface = (RedstoneInterfaceBlockEntity) tileEntity;
+            redstoneInterface.handleNeighborChanged();
+        }
+    }
+
     @Override
     public boolean shouldCheckWeakPower(final BlockState state, final LevelReader world, final BlockPos pos, final Direction side) {
         return false;
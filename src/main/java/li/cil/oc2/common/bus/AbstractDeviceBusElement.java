@@ -79,7 +79,7 @@ public abstract class AbstractDeviceBusElement implements DeviceBusElement {
 
     protected void scanDevices() {
         for (final DeviceBusController controller : controllers) {
-            controller.scanDevices();
+            controller.scanDevices(this);
         }
     }
 }
@@ -95,9 +95,23 @@ public abstract class AbstractGroupingDeviceBusElement<TProvider extends IForgeR
     ///////////////////////////////////////////////////////////////////
 
     protected final void setDevicesForGroup(final int index, final Set<TDeviceInfo> newDevices) {
+        if (updateDevicesForGroup(index, newDevices)) {
+            scanDevices();
+        }
+    }
+
+    /**
+     * Like {@link #setDevicesForGroup(int, Set)}, but does not notify controllers. Allows updating
+     * multiple groups and then calling {@link #scanDevices()} once if any group changed.
+     *
+     * @param index      the index of the group to update.
+     * @param newDevices the new set of devices in the group.
+     * @return {@code true} if the devices in the group changed; {@code false} otherwise.
+     */
+    protected final boolean updateDevicesForGroup(final int index, final Set<TDeviceInfo> newDevices) {
         final HashSet<TDeviceInfo> oldDevices = groups.get(index);
         if (Objects.equals(newDevices, oldDevices)) {
-            return;
+            return false;
         }
 
         final HashSet<TDeviceInfo> removedDevices = new HashSet<>(oldDevices);
@@ -127,7 +141,7 @@ public abstract class AbstractGroupingDeviceBusElement<TProvider extends IForgeR
             });
         }
 
-        scanDevices();
+        return true;
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -21,8 +21,8 @@ public class BlockEntityDeviceBusController extends CommonDeviceBusController {
 
     ///////////////////////////////////////////////////////////////////
 
-    public BlockEntityDeviceBusController(final DeviceBusElement root, final int baseEnergyConsumption, final BlockEntity tileEntity) {
-        super(root, baseEnergyConsumption);
+    public BlockEntityDeviceBusController(final DeviceBusElement root, final int maxElementCount, final int baseEnergyConsumption, final BlockEntity tileEntity) {
+        super(root, maxElementCount, baseEnergyConsumption);
         this.tileEntity = tileEntity;
     }
 
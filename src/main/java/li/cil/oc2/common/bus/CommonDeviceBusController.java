@@ -1,5 +1,8 @@
 package li.cil.oc2.common.bus;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import li.cil.oc2.api.bus.DeviceBusController;
 import li.cil.oc2.api.bus.DeviceBusElement;
 import li.cil.oc2.api.bus.device.Device;
@@ -8,6 +11,7 @@ import li.cil.oc2.common.util.Event;
 import li.cil.oc2.common.util.ParameterizedEvent;
 import net.minecraftforge.common.util.Optional;
 
+import javax.annotation.Nullable;
 import java.util.*;
 
 import static java.util.Collections.emptySet;
@@ -23,7 +27,6 @@ public class CommonDeviceBusController implements DeviceBusController {
 
     ///////////////////////////////////////////////////////////////////
 
-    private static final int MAX_BUS_ELEMENT_COUNT = 128;
     private static final int INCOMPLETE_RETRY_INTERVAL = 10 * Constants.TICK_SECONDS;
     private static final int BAD_CONFIGURATION_RETRY_INTERVAL = 5 * Constants.TICK_SECONDS;
 
@@ -36,21 +39,31 @@ public class CommonDeviceBusController implements DeviceBusController {
     public final ParameterizedEvent<DevicesChangedEvent> onDevicesRemoved = new ParameterizedEvent<>();
 
     private final DeviceBusElement root;
+    private final int maxElementCount;
     private final int baseEnergyConsumption;
 
     private final Set<DeviceBusElement> elements = new HashSet<>();
     private final HashSet<Device> devices = new HashSet<>();
-    private final HashMap<Device, Set<UUID>> deviceIds = new HashMap<>();
+
+    // Devices are tracked per element, with reference counts for devices and identifiers
+    // provided by multiple elements. This way a change to a single element only requires
+    // looking at the devices of that element.
+    private final HashMap<DeviceBusElement, HashMap<Device, UUID>> devicesByElement = new HashMap<>();
+    private final Object2IntOpenHashMap<Device> deviceReferenceCounts = new Object2IntOpenHashMap<>();
+    private final HashMap<Device, Object2IntOpenHashMap<UUID>> deviceIdReferenceCounts = new HashMap<>();
+    private final Set<Optional<DeviceBusElement>> observedNeighbors = Collections.newSetFromMap(new IdentityHashMap<>());
 
     private BusState state = BusState.SCAN_PENDING;
     private int scanDelay;
+    private boolean needsFullDeviceScan = true; // set when we missed device changes while not registered with elements
 
     private int energyConsumption;
 
     ///////////////////////////////////////////////////////////////////
 
-    public CommonDeviceBusController(final DeviceBusElement root, final int baseEnergyConsumption) {
+    public CommonDeviceBusController(final DeviceBusElement root, final int maxElementCount, final int baseEnergyConsumption) {
         this.root = root;
+        this.maxElementCount = maxElementCount;
         this.baseEnergyConsumption = baseEnergyConsumption;
     }
 
@@ -65,6 +78,8 @@ public class CommonDeviceBusController implements DeviceBusController {
         }
 
         elements.clear();
+        observedNeighbors.clear();
+        needsFullDeviceScan = true;
     }
 
     public BusState getState() {
@@ -83,44 +98,21 @@ public class CommonDeviceBusController implements DeviceBusController {
 
     @Override
     public void scanDevices() {
-        onBeforeScan();
+        updateDevices(true);
+    }
 
-        final HashSet<Device> newDevices = new HashSet<>();
-        final HashMap<Device, Set<UUID>> newDeviceIds = new HashMap<>();
-        for (final DeviceBusElement element : elements) {
-            for (final Device device : element.getLocalDevices()) {
-                newDevices.add(device);
-                element.getDeviceIdentifier(device).ifPresent(identifier -> newDeviceIds
-                        .computeIfAbsent(device, unused -> new HashSet<>()).add(identifier));
-            }
+    @Override
+    public void scanDevices(final DeviceBusElement element) {
+        if (!elements.contains(element)) {
+            return;
         }
 
-        final HashSet<Device> removedDevices = new HashSet<>(devices);
-        removedDevices.removeAll(newDevices);
-        onDevicesRemoved(removedDevices);
-
-        final HashSet<Device> addedDevices = new HashSet<>(newDevices);
-        addedDevices.removeAll(devices);
-        onDevicesAdded(addedDevices);
-
-        final boolean didDevicesChange = !removedDevices.isEmpty() || !addedDevices.isEmpty();
-        final boolean didDeviceIdsChange;
-        if (didDevicesChange) {
-            devices.clear();
-            devices.addAll(newDevices);
-
-            didDeviceIdsChange = true;
-        } else {
-            didDeviceIdsChange = deviceIds.entrySet().stream().anyMatch(entry ->
-                    !Objects.equals(entry.getValue(), newDeviceIds.get(entry.getKey())));
-        }
+        onBeforeScan();
 
-        if (didDeviceIdsChange) {
-            deviceIds.clear();
-            deviceIds.putAll(newDeviceIds);
-        }
+        final DeviceChanges changes = new DeviceChanges();
+        updateElementDevices(element, changes);
 
-        onAfterDeviceScan(didDevicesChange || didDeviceIdsChange);
+        finishDeviceScan(changes);
     }
 
     @Override
@@ -130,7 +122,8 @@ public class CommonDeviceBusController implements DeviceBusController {
 
     @Override
     public Set<UUID> getDeviceIdentifiers(final Device device) {
-        return deviceIds.getOrDefault(device, emptySet());
+        final Object2IntOpenHashMap<UUID> identifiers = deviceIdReferenceCounts.get(device);
+        return identifiers != null ? identifiers.keySet() : emptySet();
     }
 
     public void scan() {
@@ -144,22 +137,27 @@ public class CommonDeviceBusController implements DeviceBusController {
 
         assert scanDelay == -1;
 
-        // We stay registered with elements until we scan so that other controllers on the same bus
-        // can detect us in the meantime (for multiple controller detection).
-        clearElements();
-
-        final HashSet<DeviceBusElement> closed = new HashSet<>();
-        final Stack<DeviceBusElement> open = new Stack<>();
-        final ArrayList<Optional<DeviceBusElement>> optionals = new ArrayList<>();
+        // We stay registered with elements while we scan so that other controllers on the same bus
+        // can detect us in the meantime (for multiple controller detection). Elements that are still
+        // on the bus afterwards stay registered, and we only have to look at the devices of elements
+        // that were added or removed. The topology itself is always walked in full, since scan
+        // requests don't tell us which part of the bus changed.
+        // Elements get sequential ids in discovery order, so the open list only holds ints.
+        final ObjectOpenHashSet<DeviceBusElement> closed = new ObjectOpenHashSet<>();
+        final ArrayList<DeviceBusElement> elementsById = new ArrayList<>();
+        final IntArrayList open = new IntArrayList();
+        final Set<Optional<DeviceBusElement>> optionals = Collections.newSetFromMap(new IdentityHashMap<>());
 
         closed.add(root);
-        open.add(root);
+        elementsById.add(root);
+        open.add(0);
 
         while (!open.isEmpty()) {
-            final DeviceBusElement element = open.pop();
+            final DeviceBusElement element = elementsById.get(open.popInt());
 
             final Optional<Collection<Optional<DeviceBusElement>>> elementNeighbors = element.getNeighbors();
             if (!elementNeighbors.isPresent()) {
+                clearElements();
                 scanDelay = INCOMPLETE_RETRY_INTERVAL;
                 state = BusState.INCOMPLETE;
                 return;
@@ -169,14 +167,17 @@ public class CommonDeviceBusController implements DeviceBusController {
                 for (final Optional<DeviceBusElement> neighbor : neighbors) {
                     neighbor.ifPresent(neighborElement -> {
                         if (closed.add(neighborElement)) {
-                            open.add(neighborElement);
+                            final int id = elementsById.size();
+                            elementsById.add(neighborElement);
+                            open.add(id);
                             optionals.add(neighbor);
                         }
                     });
                 }
             });
 
-            if (closed.size() > MAX_BUS_ELEMENT_COUNT) {
+            if (closed.size() > maxElementCount) {
+                clearElements();
                 scanDelay = BAD_CONFIGURATION_RETRY_INTERVAL;
                 state = BusState.TOO_COMPLEX;
                 return;
@@ -184,13 +185,25 @@ public class CommonDeviceBusController implements DeviceBusController {
         }
 
         final HashSet<DeviceBusController> controllers = new HashSet<>();
-        for (final DeviceBusElement element : closed) {
+        for (final DeviceBusElement element : elementsById) {
             controllers.addAll(element.getControllers());
-            element.addController(this);
+        }
+        controllers.remove(this);
+
+        final boolean didElementsChange = !elements.equals(closed);
+        for (final DeviceBusElement element : elements) {
+            if (!closed.contains(element)) {
+                element.removeController(this);
+            }
+        }
+        for (final DeviceBusElement element : elementsById) {
+            if (!elements.contains(element)) {
+                element.addController(this);
+            }
         }
 
-        controllers.remove(this); // Just in case...
-        elements.addAll(closed);
+        elements.clear();
+        elements.addAll(elementsById);
 
         // If there's any controllers on the bus that are not us, enter error state and
         // trigger a scan for those controllers, too, so they may enter error state.
@@ -199,20 +212,32 @@ public class CommonDeviceBusController implements DeviceBusController {
                 controller.scheduleBusScan();
             }
 
+            // We skip updating devices, so catch up on added elements once we're back.
+            needsFullDeviceScan = true;
+
             state = BusState.MULTIPLE_CONTROLLERS;
             scanDelay = BAD_CONFIGURATION_RETRY_INTERVAL;
             return;
         }
 
-        // Rescan if any bus element gets invalidated.
+        // Rescan if any bus element gets invalidated. Neighbors usually stay the same between
+        // scans, so avoid piling up listeners on them.
+        observedNeighbors.retainAll(optionals);
         for (final Optional<DeviceBusElement> optional : optionals) {
             assert optional.isPresent();
-            optional.addListener(unused -> scheduleBusScan());
+            if (observedNeighbors.add(optional)) {
+                optional.addListener(unused -> scheduleBusScan());
+            }
         }
 
         onAfterBusScan();
 
-        scanDevices();
+        if (needsFullDeviceScan) {
+            needsFullDeviceScan = false;
+            updateDevices(true);
+        } else if (didElementsChange) {
+            updateDevices(false);
+        }
 
         updateEnergyConsumption();
 
@@ -253,6 +278,111 @@ public class CommonDeviceBusController implements DeviceBusController {
         }
 
         elements.clear();
+        observedNeighbors.clear();
+
+        // We will not be notified of device changes until we are registered again.
+        needsFullDeviceScan = true;
+    }
+
+    /**
+     * Updates the set of devices on the bus to match the current set of elements.
+     * <p>
+     * Devices of elements no longer on the bus are always removed. Devices of elements that
+     * were already on the bus are only collected again if {@code rescanKnownElements} is set,
+     * otherwise only devices of newly added elements are collected.
+     *
+     * @param rescanKnownElements whether to collect devices of known elements again.
+     */
+    private void updateDevices(final boolean rescanKnownElements) {
+        onBeforeScan();
+
+        final DeviceChanges changes = new DeviceChanges();
+        for (final DeviceBusElement element : new ArrayList<>(devicesByElement.keySet())) {
+            if (!elements.contains(element)) {
+                removeElementDevices(element, changes);
+            }
+        }
+        for (final DeviceBusElement element : elements) {
+            if (rescanKnownElements || !devicesByElement.containsKey(element)) {
+                updateElementDevices(element, changes);
+            }
+        }
+
+        finishDeviceScan(changes);
+    }
+
+    private void updateElementDevices(final DeviceBusElement element, final DeviceChanges changes) {
+        final HashMap<Device, UUID> newDevices = new HashMap<>();
+        for (final Device device : element.getLocalDevices()) {
+            newDevices.put(device, element.getDeviceIdentifier(device).orElse(null));
+        }
+
+        final HashMap<Device, UUID> oldDevices = devicesByElement.put(element, newDevices);
+        if (oldDevices != null) {
+            oldDevices.forEach((device, identifier) -> {
+                if (!newDevices.containsKey(device) || !Objects.equals(newDevices.get(device), identifier)) {
+                    releaseDevice(device, identifier, changes);
+                }
+            });
+        }
+
+        newDevices.forEach((device, identifier) -> {
+            if (oldDevices == null || !oldDevices.containsKey(device) || !Objects.equals(oldDevices.get(device), identifier)) {
+                acquireDevice(device, identifier, changes);
+            }
+        });
+    }
+
+    private void removeElementDevices(final DeviceBusElement element, final DeviceChanges changes) {
+        final HashMap<Device, UUID> oldDevices = devicesByElement.remove(element);
+        if (oldDevices != null) {
+            oldDevices.forEach((device, identifier) -> releaseDevice(device, identifier, changes));
+        }
+    }
+
+    private void acquireDevice(final Device device, @Nullable final UUID identifier, final DeviceChanges changes) {
+        if (deviceReferenceCounts.addTo(device, 1) == 0) {
+            devices.add(device);
+            if (!changes.removedDevices.remove(device)) {
+                changes.addedDevices.add(device);
+            }
+        }
+
+        if (identifier != null) {
+            final Object2IntOpenHashMap<UUID> identifiers = deviceIdReferenceCounts.computeIfAbsent(device, unused -> new Object2IntOpenHashMap<>());
+            if (identifiers.addTo(identifier, 1) == 0) {
+                changes.didDeviceIdsChange = true;
+            }
+        }
+    }
+
+    private void releaseDevice(final Device device, @Nullable final UUID identifier, final DeviceChanges changes) {
+        if (identifier != null) {
+            final Object2IntOpenHashMap<UUID> identifiers = deviceIdReferenceCounts.get(device);
+            if (identifiers != null && identifiers.addTo(identifier, -1) == 1) {
+                identifiers.removeInt(identifier);
+                if (identifiers.isEmpty()) {
+                    deviceIdReferenceCounts.remove(device);
+                }
+                changes.didDeviceIdsChange = true;
+            }
+        }
+
+        if (deviceReferenceCounts.addTo(device, -1) == 1) {
+            deviceReferenceCounts.removeInt(device);
+            devices.remove(device);
+            if (!changes.addedDevices.remove(device)) {
+                changes.removedDevices.add(device);
+            }
+        }
+    }
+
+    private void finishDeviceScan(final DeviceChanges changes) {
+        onDevicesRemoved(changes.removedDevices);
+        onDevicesAdded(changes.addedDevices);
+
+        final boolean didDevicesChange = !changes.removedDevices.isEmpty() || !changes.addedDevices.isEmpty();
+        onAfterDeviceScan(didDevicesChange || changes.didDeviceIdsChange);
     }
 
     private void updateEnergyConsumption() {
@@ -270,6 +400,12 @@ public class CommonDeviceBusController implements DeviceBusController {
 
     ///////////////////////////////////////////////////////////////////
 
+    private static final class DeviceChanges {
+        public final HashSet<Device> addedDevices = new HashSet<>();
+        public final HashSet<Device> removedDevices = new HashSet<>();
+        public boolean didDeviceIdsChange;
+    }
+
     public static final class AfterDeviceScanEvent {
         public final boolean didDevicesChange;
 
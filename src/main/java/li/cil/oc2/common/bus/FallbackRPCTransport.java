@@ -0,0 +1,45 @@
+package li.cil.oc2.common.bus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport using a preferred transport while the VM has it set up, and another one otherwise.
+ * <p>
+ * Used to keep RPC working via the console for guests without a driver for the preferred
+ * transport. Guests are expected to use only one of the two, switching happens when the
+ * guest sets up or tears down the preferred transport.
+ */
+public final class FallbackRPCTransport implements RPCTransport {
+    private final RPCTransport preferred;
+    private final RPCTransport fallback;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public FallbackRPCTransport(final RPCTransport preferred, final RPCTransport fallback) {
+        this.preferred = preferred;
+        this.fallback = fallback;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public int read(final ByteBuffer target) {
+        return getTransport().read(target);
+    }
+
+    @Override
+    public int write(final ByteBuffer source) {
+        return getTransport().write(source);
+    }
+
+    @Override
+    public void flush() {
+        getTransport().flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private RPCTransport getTransport() {
+        return preferred.isAvailable() ? preferred : fallback;
+    }
+}
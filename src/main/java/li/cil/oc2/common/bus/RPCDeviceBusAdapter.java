@@ -2,15 +2,25 @@ package li.cil.oc2.common.bus;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import li.cil.ceres.api.Serialized;
 import li.cil.oc2.api.bus.DeviceBusController;
 import li.cil.oc2.api.bus.device.Device;
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.bus.device.rpc.RPCMethod;
-import li.cil.oc2.api.bus.device.rpc.RPCParameter;
 import li.cil.oc2.common.Constants;
 import li.cil.oc2.common.bus.device.rpc.RPCDeviceList;
+import li.cil.oc2.common.bus.device.rpc.RPCMethodDispatchTable;
 import li.cil.oc2.common.bus.device.rpc.RPCMethodParameterTypeAdapters;
+import li.cil.oc2.common.bus.device.rpc.RPCParameterDecoder;
+import li.cil.oc2.common.serialization.ByteBufferReader;
+import li.cil.oc2.common.serialization.ByteBufferWriter;
+import li.cil.oc2.common.serialization.MessagePackReader;
+import li.cil.oc2.common.serialization.MessagePackWriter;
 import li.cil.oc2.common.serialization.serializers.MessageJsonDeserializer;
 import li.cil.oc2.common.serialization.serializers.MethodInvocationJsonDeserializer;
 import li.cil.oc2.common.serialization.serializers.RPCDeviceWithIdentifierJsonSerializer;
@@ -18,10 +28,13 @@ import li.cil.oc2.common.serialization.serializers.RPCMethodJsonSerializer;
 import li.cil.sedna.api.device.Steppable;
 import li.cil.sedna.api.device.serial.SerialDevice;
 import org.jetbrains.annotations.Nullable;
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
+
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -29,27 +42,118 @@ public final class RPCDeviceBusAdapter implements Steppable {
     private static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * Constants.KILOBYTE;
     private static final byte[] MESSAGE_DELIMITER = "\0".getBytes();
 
+    // Binary frames start with this marker, followed by the payload length as a four byte
+    // big-endian integer, followed by the MessagePack encoded payload. The marker can never
+    // appear at the start of a JSON message, since JSON does not allow raw control characters.
+    // Frames with a negative length are rejected and all data up to the next message delimiter
+    // is skipped, so guests can resynchronize by sending a delimiter.
+    private static final byte BINARY_FRAME_MARKER = 1;
+    private static final int BINARY_FRAME_LENGTH_SIZE = 4;
+
+    // Messages larger than the maximum message size may be split into parts. All parts
+    // but the last one start with this marker, followed by a regular JSON message part or
+    // binary frame. The parts are concatenated, and processed when the last part arrives.
+    private static final byte CONTINUATION_MARKER = 2;
+    private static final byte[] EMPTY_BINARY_PARAMETERS = {};
+    private static final MethodInvocation[] NO_INVOCATIONS = {};
+    private static final MethodInvocationBatch[] NO_BATCHES = {};
+    private static final AsyncInvocation[] NO_ASYNC_INVOCATIONS = {};
+
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 16;
+    private static final int DEFAULT_MAX_PENDING_RESPONSE_SIZE = 64 * Constants.KILOBYTE;
+    private static final int MIN_RECEIVE_BUFFER_SIZE = 512;
+    private static final int DEFAULT_MAX_CHUNKED_MESSAGE_SIZE = Constants.MEGABYTE;
+    private static final int READ_BUFFER_SIZE = 4 * Constants.KILOBYTE;
+    private static final int MAX_QUEUED_EVENTS = 64;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int MAX_SYNCHRONIZED_INVOCATIONS_PER_TICK = 64; // must be at least MAX_BATCH_SIZE
+    private static final Subscription[] NO_SUBSCRIPTIONS = {};
+
+    public static final String PROTOCOL_JSON = "json";
+    public static final String PROTOCOL_MESSAGE_PACK = "msgpack";
+    private static final List<String> PROTOCOLS = Arrays.asList(PROTOCOL_JSON, PROTOCOL_MESSAGE_PACK);
+
     public static final String ERROR_MESSAGE_TOO_LARGE = "message too large";
+    public static final String ERROR_INVALID_MESSAGE_PART = "invalid message part";
     public static final String ERROR_UNKNOWN_MESSAGE_TYPE = "unknown message type";
     public static final String ERROR_UNKNOWN_DEVICE = "unknown device";
     public static final String ERROR_UNKNOWN_METHOD = "unknown method";
     public static final String ERROR_INVALID_PARAMETER_SIGNATURE = "invalid parameter signature";
+    public static final String ERROR_TOO_MANY_PENDING_OPERATIONS = "too many pending operations";
+    public static final String ERROR_ASYNCHRONOUS_METHOD_IN_BATCH = "asynchronous method in batch";
+    public static final String ERROR_BATCH_TOO_LARGE = "batch too large";
+    public static final String ERROR_INVOCATION_INTERRUPTED = "invocation interrupted";
+
+    // Sent in place of events dropped because the event queue was full.
+    public static final String EVENT_OVERFLOW = "overflow";
 
     ///////////////////////////////////////////////////////////////////
 
-    private final SerialDevice serialDevice;
+    private final RPCTransport transport;
+    private final int maxInFlightRequests;
+    private final int maxPendingResponseSize;
+    private final int maxChunkedMessageSize;
+    private final RPCMessageMemory chunkedMessageMemory;
     private final Gson gson;
+    private final RPCParameterDecoder.Factory parameterDecoders;
+    private final MessagePackWriter messageWriter = new MessagePackWriter();
+    private final ByteBufferReader jsonMessageReader = new ByteBufferReader();
+    private final ByteBufferWriter jsonMessageWriter = new ByteBufferWriter();
+    @Nullable private ByteBuffer spareReceiveBuffer; // drained receive buffer kept for reuse
+
+    // Parts of a chunked message received so far. Not serialized, since the memory for this
+    // is claimed dynamically. Chunked messages interrupted by a save and load will fail.
+    @Nullable private ByteBuffer chunkedMessageBuffer;
+    private boolean hasChunkedMessage;
+    private boolean isChunkedMessageBinary;
+    @Nullable private String chunkedMessageError;
 
     private final ArrayList<RPCDeviceWithIdentifier> devices = new ArrayList<>();
-    private final HashMap<UUID, RPCDeviceList> devicesById = new HashMap<>();
+    private final HashMap<UUID, RPCDevice> devicesById = new HashMap<>();
+    private final HashMap<UUID, RPCMethodDispatchTable> dispatchTablesById = new HashMap<>();
+    private final LinkedHashMap<UUID, RPCDevice> builtinDevices = new LinkedHashMap<>();
+
+    // Serialized data of list and methods responses, built on first use and dropped when
+    // the devices change, so repeated requests only copy bytes.
+    @Nullable private byte[] jsonDeviceListData;
+    @Nullable private byte[] binaryDeviceListData;
+    private final HashMap<UUID, byte[]> jsonDeviceMethodsData = new HashMap<>();
+    private final HashMap<UUID, byte[]> binaryDeviceMethodsData = new HashMap<>();
     private final Lock pauseLock = new ReentrantLock();
     private boolean isPaused;
+    private boolean didTransferData;
+
+    // Results of asynchronous invocations, completed on arbitrary threads and written out
+    // on the next step or tick. Not serialized, see pendingAsyncInvocations.
+    private final ConcurrentLinkedQueue<AsyncInvocationResult> asyncInvocationResults = new ConcurrentLinkedQueue<>();
+
+    // Events emitted by devices the VM subscribed to, emitted on arbitrary threads and written
+    // out on the next step. Not serialized, events still queued when the VM is saved are lost.
+    private final ConcurrentLinkedQueue<QueuedEvent> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger eventCount = new AtomicInteger();
+    private final HashMap<UUID, EventListenerRegistration> eventListeners = new HashMap<>(); // only for subscribed devices
+    private volatile boolean didDropEvents;
+    private volatile boolean isDroppedEventBinary; // protocol of the subscription events were dropped for
+
+    // Only written while holding the pause lock, but read on the main thread without it.
+    private volatile long messagesReceived;
+    private volatile long messagesSent;
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
 
     ///////////////////////////////////////////////////////////////////
 
+    @Serialized private final ByteBuffer readBuffer; // data read from transport, not yet parsed
     @Serialized private final ByteBuffer transmitBuffer; // for data written to device by VM
-    @Serialized private ByteBuffer receiveBuffer; // for data written by device to VM
-    @Serialized private MethodInvocation synchronizedInvocation; // pending main thread invocation
+    @Serialized private ByteBuffer receiveBuffer; // for data written by device to VM, may hold multiple messages
+    @Serialized private MethodInvocation[] synchronizedInvocations = NO_INVOCATIONS; // pending main thread invocations
+    @Serialized private MethodInvocationBatch[] synchronizedBatches = NO_BATCHES; // pending main thread batches
+    @Serialized private AsyncInvocation[] pendingAsyncInvocations = NO_ASYNC_INVOCATIONS; // reported as interrupted after load
+    @Serialized private int binaryFrameLengthBytesRemaining; // length bytes of binary frame still to read
+    @Serialized private int binaryFrameBytesRemaining; // payload bytes of binary frame still to read
+    @Serialized private boolean isContinuation; // current message is not the last part of a chunked message
+    @Serialized private boolean isResynchronizing; // skipping data up to the next message delimiter
+    @Serialized private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS; // devices the VM receives events from
 
     ///////////////////////////////////////////////////////////////////
 
@@ -58,7 +162,41 @@ public final class RPCDeviceBusAdapter implements Steppable {
     }
 
     public RPCDeviceBusAdapter(final SerialDevice serialDevice, final int maxMessageSize) {
-        this.serialDevice = serialDevice;
+        this(serialDevice, maxMessageSize, DEFAULT_MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_PENDING_RESPONSE_SIZE);
+    }
+
+    public RPCDeviceBusAdapter(final SerialDevice serialDevice, final int maxMessageSize, final int maxInFlightRequests, final int maxPendingResponseSize) {
+        this(new SerialDeviceRPCTransport(serialDevice), maxMessageSize, maxInFlightRequests, maxPendingResponseSize, DEFAULT_MAX_CHUNKED_MESSAGE_SIZE, RPCMessageMemory.UNTRACKED);
+    }
+
+    /**
+     * Creates a new adapter communicating via the specified transport.
+     * <p>
+     * The VM may send multiple requests without waiting for their responses. It will only
+     * be allowed to send more requests while there are less than {@code maxInFlightRequests}
+     * requests waiting to be run on the main thread and less than {@code maxPendingResponseSize}
+     * bytes of responses waiting to be read by the VM.
+     * <p>
+     * Messages larger than {@code maxMessageSize} may be sent in multiple parts, up to a total
+     * size of {@code maxChunkedMessageSize}. The memory used to assemble such messages is
+     * claimed from {@code chunkedMessageMemory}.
+     *
+     * @param transport              the transport to communicate with the VM through.
+     * @param maxMessageSize         the maximum size of a single message sent by the VM.
+     * @param maxInFlightRequests    the maximum number of requests waiting for the main thread.
+     * @param maxPendingResponseSize the maximum number of bytes of unread responses.
+     * @param maxChunkedMessageSize  the maximum size of a message sent in multiple parts.
+     * @param chunkedMessageMemory   the memory claim for assembling chunked messages.
+     */
+    public RPCDeviceBusAdapter(final RPCTransport transport, final int maxMessageSize, final int maxInFlightRequests, final int maxPendingResponseSize,
+                               final int maxChunkedMessageSize, final RPCMessageMemory chunkedMessageMemory) {
+        this.transport = transport;
+        this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+        this.maxPendingResponseSize = Math.max(1, maxPendingResponseSize);
+        this.maxChunkedMessageSize = Math.max(maxMessageSize, maxChunkedMessageSize);
+        this.chunkedMessageMemory = chunkedMessageMemory;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.readBuffer.limit(0);
         this.transmitBuffer = ByteBuffer.allocate(maxMessageSize);
         this.gson = RPCMethodParameterTypeAdapters.beginBuildGson()
                 .registerTypeAdapter(MethodInvocation.class, new MethodInvocationJsonDeserializer())
@@ -66,14 +204,75 @@ public final class RPCDeviceBusAdapter implements Steppable {
                 .registerTypeAdapter(RPCDeviceWithIdentifier.class, new RPCDeviceWithIdentifierJsonSerializer())
                 .registerTypeHierarchyAdapter(RPCMethod.class, new RPCMethodJsonSerializer())
                 .create();
+        this.parameterDecoders = new RPCParameterDecoder.Factory(gson);
     }
 
     ///////////////////////////////////////////////////////////////////
 
     public void reset() {
+        readBuffer.clear();
+        readBuffer.limit(0);
         transmitBuffer.clear();
         receiveBuffer = null;
-        synchronizedInvocation = null;
+        spareReceiveBuffer = null;
+        synchronizedInvocations = NO_INVOCATIONS;
+        synchronizedBatches = NO_BATCHES;
+        binaryFrameLengthBytesRemaining = 0;
+        binaryFrameBytesRemaining = 0;
+        isContinuation = false;
+        isResynchronizing = false;
+        releaseChunkedMessage();
+
+        asyncInvocationResults.clear();
+        pendingAsyncInvocations = NO_ASYNC_INVOCATIONS; // results of these are discarded
+
+        removeEventListeners();
+        subscriptions = NO_SUBSCRIPTIONS;
+        events.clear();
+        eventCount.set(0);
+        didDropEvents = false;
+
+        messagesReceived = 0;
+        messagesSent = 0;
+        bytesReceived = 0;
+        bytesSent = 0;
+    }
+
+    /**
+     * Releases any memory claimed for assembling chunked messages and stops listening for
+     * device events. Must be called when the adapter is no longer used.
+     */
+    public void dispose() {
+        releaseChunkedMessage();
+        removeEventListeners();
+    }
+
+    /**
+     * Adds a device that is always present, independent of the devices on the bus.
+     *
+     * @param identifier the fixed identifier of the device.
+     * @param device     the device to add.
+     */
+    public void addBuiltinDevice(final UUID identifier, final RPCDevice device) {
+        builtinDevices.put(identifier, device);
+        putDevice(identifier, device);
+        clearSerializedDeviceData();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
     }
 
     public void pause() {
@@ -87,14 +286,23 @@ public final class RPCDeviceBusAdapter implements Steppable {
     }
 
     public void resume(final DeviceBusController controller, final boolean didDevicesChange) {
-        isPaused = false;
-
-        if (!didDevicesChange) {
-            return;
+        if (didDevicesChange) {
+            updateDevices(controller);
         }
 
+        // Listeners are added and removed by the VM thread when it (un)subscribes, so only
+        // touch them while paused. Also restores listeners for subscriptions after loading.
+        addEventListeners();
+        isPaused = false;
+    }
+
+    private void updateDevices(final DeviceBusController controller) {
+        removeEventListeners();
+        clearSerializedDeviceData();
         devices.clear();
         devicesById.clear();
+        dispatchTablesById.clear();
+        clearResolvedInvocations();
 
         // How device grouping works:
         // Each device can have multiple UUIDs due to being attached to multiple bus elements.
@@ -142,42 +350,198 @@ public final class RPCDeviceBusAdapter implements Steppable {
 
         identifiersByDevice.forEach((device, identifiers) -> {
             final UUID identifier = selectIdentifierDeterministically(identifiers);
-            devices.add(new RPCDeviceWithIdentifier(identifier, device));
-            devicesById.put(identifier, device);
+            putDevice(identifier, device);
         });
+
+        builtinDevices.forEach(this::putDevice);
     }
 
     public void tick() {
-        if (isPaused) {
+        if (isPaused || (synchronizedInvocations.length == 0 && synchronizedBatches.length == 0 && asyncInvocationResults.isEmpty())) {
             return;
         }
 
-        if (synchronizedInvocation != null) {
-            final MethodInvocation methodInvocation = synchronizedInvocation;
-            processMethodInvocation(methodInvocation, true);
+        // Hold the lock while running invocations, so the worker thread does not read
+        // new requests or write out responses while we append to the response buffer.
+        pauseLock.lock();
+        try {
+            // Limit the number of invocations per tick, so a full queue of large batches does
+            // not stall the server. Remaining invocations are run in the following ticks.
+            int remainingInvocations = MAX_SYNCHRONIZED_INVOCATIONS_PER_TICK;
+
+            final MethodInvocation[] invocations = synchronizedInvocations;
+            final int invocationCount = Math.min(invocations.length, remainingInvocations);
+            synchronizedInvocations = invocationCount < invocations.length
+                    ? Arrays.copyOfRange(invocations, invocationCount, invocations.length)
+                    : NO_INVOCATIONS;
+            for (int i = 0; i < invocationCount; i++) {
+                processMethodInvocation(invocations[i], true);
+            }
+            remainingInvocations -= invocationCount;
 
-            // This is also used to prevent thread from processing messages, so only
-            // reset this when we're done. Otherwise we may get a race-condition when
-            // writing back data.
-            synchronizedInvocation = null;
+            final MethodInvocationBatch[] batches = synchronizedBatches;
+            int batchCount = 0;
+            while (batchCount < batches.length && remainingInvocations > 0) {
+                remainingInvocations -= batches[batchCount].invocations.length;
+                batchCount++;
+            }
+            synchronizedBatches = batchCount < batches.length
+                    ? Arrays.copyOfRange(batches, batchCount, batches.length)
+                    : NO_BATCHES;
+            for (int i = 0; i < batchCount; i++) {
+                processMethodInvocationBatch(batches[i], true);
+            }
+
+            writeAsyncInvocationResults();
+        } finally {
+            pauseLock.unlock();
         }
     }
 
     public void step(final int cycles) {
+        didTransferData = false;
+
         if (isPaused || !pauseLock.tryLock()) {
             return;
         }
 
         try {
             readFromDevice();
+            writeAsyncInvocationResults();
+            writeEvents();
             writeToDevice();
         } finally {
             pauseLock.unlock();
         }
     }
 
+    /**
+     * Whether there is a message being transferred in either direction, or some data was
+     * transferred in the last call to {@link #step(int)}.
+     *
+     * @return {@code true} if there is pending I/O; {@code false} otherwise.
+     */
+    public boolean hasPendingIO() {
+        return didTransferData || receiveBuffer != null || readBuffer.hasRemaining() || transmitBuffer.position() > 0 ||
+               binaryFrameLengthBytesRemaining > 0 || binaryFrameBytesRemaining > 0 || isResynchronizing ||
+               !asyncInvocationResults.isEmpty() ||
+               !events.isEmpty() || didDropEvents;
+    }
+
     ///////////////////////////////////////////////////////////////////
 
+    private void putDevice(final UUID identifier, final RPCDevice device) {
+        devices.add(new RPCDeviceWithIdentifier(identifier, device));
+        devicesById.put(identifier, device);
+        dispatchTablesById.put(identifier, RPCMethodDispatchTable.of(device, parameterDecoders));
+    }
+
+    private void addEventListeners() {
+        for (final Subscription subscription : subscriptions) {
+            addEventListener(subscription.deviceId);
+        }
+    }
+
+    private void addEventListener(final UUID deviceId) {
+        // Devices only get a listener while subscribed to, so they can skip producing events
+        // nobody receives. Subscriptions to devices that are not present are kept, in case
+        // the device comes back.
+        final RPCDevice device = devicesById.get(deviceId);
+        if (!(device instanceof RPCEventSource) || eventListeners.containsKey(deviceId)) {
+            return;
+        }
+
+        final RPCEventSource source = (RPCEventSource) device;
+        final RPCEventListener listener = (name, data) -> queueEvent(deviceId, name, data);
+        source.addEventListener(listener);
+        eventListeners.put(deviceId, new EventListenerRegistration(source, listener));
+    }
+
+    private void removeEventListener(final UUID deviceId) {
+        final EventListenerRegistration registration = eventListeners.remove(deviceId);
+        if (registration != null) {
+            registration.source.removeEventListener(registration.listener);
+        }
+    }
+
+    private void removeEventListeners() {
+        for (final EventListenerRegistration registration : eventListeners.values()) {
+            registration.source.removeEventListener(registration.listener);
+        }
+        eventListeners.clear();
+    }
+
+    private void queueEvent(final UUID deviceId, final String name, @Nullable final Object data) {
+        final Subscription subscription = getSubscription(deviceId);
+        if (subscription == null) {
+            return; // Unsubscribed while the device was emitting the event.
+        }
+
+        if (eventCount.incrementAndGet() > MAX_QUEUED_EVENTS) {
+            eventCount.decrementAndGet();
+            isDroppedEventBinary = subscription.isBinary;
+            didDropEvents = true;
+            return;
+        }
+
+        events.add(new QueuedEvent(subscription.isBinary, new Event(deviceId, name, data)));
+    }
+
+    @Nullable
+    private Subscription getSubscription(final UUID deviceId) {
+        for (final Subscription subscription : subscriptions) {
+            if (subscription.deviceId.equals(deviceId)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    private void subscribe(final boolean isBinary, @Nullable final Long id, final UUID deviceId) {
+        if (!devicesById.containsKey(deviceId)) {
+            writeError(isBinary, id, ERROR_UNKNOWN_DEVICE);
+            return;
+        }
+
+        // Events are sent using the protocol of the latest subscription to the device.
+        final Subscription[] remaining = removeSubscription(deviceId);
+        final Subscription[] newSubscriptions = Arrays.copyOf(remaining, remaining.length + 1);
+        newSubscriptions[newSubscriptions.length - 1] = new Subscription(deviceId, isBinary);
+        subscriptions = newSubscriptions;
+        addEventListener(deviceId);
+
+        writeMessage(isBinary, id, Message.MESSAGE_TYPE_RESULT, null);
+    }
+
+    private void unsubscribe(final boolean isBinary, @Nullable final Long id, final UUID deviceId) {
+        final Subscription[] remaining = removeSubscription(deviceId);
+        subscriptions = remaining.length > 0 ? remaining : NO_SUBSCRIPTIONS;
+        removeEventListener(deviceId);
+
+        writeMessage(isBinary, id, Message.MESSAGE_TYPE_RESULT, null);
+    }
+
+    private Subscription[] removeSubscription(final UUID deviceId) {
+        return Arrays.stream(subscriptions)
+                .filter(subscription -> !subscription.deviceId.equals(deviceId))
+                .toArray(Subscription[]::new);
+    }
+
+    private void writeEvents() {
+        // Leave events queued while the VM is not reading responses, so they count towards
+        // the queue limit instead of piling up in the receive buffer.
+        QueuedEvent queuedEvent;
+        while ((receiveBuffer == null || receiveBuffer.remaining() < maxPendingResponseSize) && (queuedEvent = events.poll()) != null) {
+            eventCount.decrementAndGet();
+            writeMessage(queuedEvent.isBinary, null, Message.MESSAGE_TYPE_EVENT, queuedEvent.event);
+        }
+
+        if (didDropEvents && events.isEmpty()) {
+            didDropEvents = false;
+            writeMessage(isDroppedEventBinary, null, Message.MESSAGE_TYPE_EVENT, new Event(null, EVENT_OVERFLOW, null));
+        }
+    }
+
     private UUID selectIdentifierDeterministically(final ArrayList<UUID> identifiers) {
         UUID lowestIdentifier = identifiers.get(0);
         for (int i = 1; i < identifiers.size(); i++) {
@@ -190,222 +554,877 @@ public final class RPCDeviceBusAdapter implements Steppable {
     }
 
     private void readFromDevice() {
-        // Only ever allow one pending message to avoid giving the VM the
-        // power of uncontrollably inflating memory usage. Basically any
-        // method of limiting the write queue size would work, but this is
-        // the most simple and easy to maintain one I could think of.
-        int value;
-        while (receiveBuffer == null && synchronizedInvocation == null && (value = serialDevice.read()) >= 0) {
-            if (value == 0) {
-                if (transmitBuffer.limit() > 0) {
-                    transmitBuffer.flip();
-                    if (transmitBuffer.hasRemaining()) {
-                        final byte[] message = new byte[transmitBuffer.remaining()];
-                        transmitBuffer.get(message);
-                        processMessage(message);
-                    }
-                } else {
-                    writeError(ERROR_MESSAGE_TOO_LARGE);
+        // Only allow a limited number of pending requests and responses to avoid giving
+        // the VM the power of uncontrollably inflating memory usage. Responses are written
+        // in the order requests complete, so the VM has to use request ids to match them
+        // up when it has more than one request in flight. Data already read from the
+        // transport is kept in the read buffer until we can accept more requests.
+        while (canAcceptRequest()) {
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.clear();
+                transport.read(readBuffer);
+                readBuffer.flip();
+                if (!readBuffer.hasRemaining()) {
+                    break;
+                }
+                didTransferData = true;
+            }
+
+            boolean didFinishMessagePart = false;
+            while (readBuffer.hasRemaining() && !didFinishMessagePart) {
+                didFinishMessagePart = consumeReadBuffer();
+            }
+        }
+    }
+
+    private boolean consumeReadBuffer() {
+        if (isResynchronizing) {
+            return skipToMessageDelimiter();
+        }
+
+        // Copy binary payloads in bulk, everything else is parsed one byte at a time.
+        if (binaryFrameLengthBytesRemaining == 0 && binaryFrameBytesRemaining > 0) {
+            final int count = Math.min(binaryFrameBytesRemaining, readBuffer.remaining());
+            final int copyCount = Math.min(count, transmitBuffer.remaining());
+            final int limit = readBuffer.limit();
+            readBuffer.limit(readBuffer.position() + copyCount);
+            transmitBuffer.put(readBuffer);
+            readBuffer.limit(limit);
+            readBuffer.position(readBuffer.position() + count - copyCount);
+
+            binaryFrameBytesRemaining -= count;
+            if (binaryFrameBytesRemaining == 0) {
+                finishBinaryFrame();
+                return true;
+            }
+            return false;
+        }
+
+        final int value = readBuffer.get() & 0xFF;
+        if (binaryFrameLengthBytesRemaining > 0) {
+            binaryFrameBytesRemaining = (binaryFrameBytesRemaining << 8) | value;
+            if (--binaryFrameLengthBytesRemaining == 0) {
+                if (binaryFrameBytesRemaining < 0) {
+                    rejectInvalidFrame();
+                    return true;
+                }
+                if (binaryFrameBytesRemaining > transmitBuffer.capacity()) {
+                    transmitBuffer.limit(0); // marks message too large, skip payload
+                }
+                if (binaryFrameBytesRemaining == 0) {
+                    binaryFrameBytesRemaining = 0;
+                    finishBinaryFrame();
+                    return true;
+                }
+            }
+        } else if (value == 0) {
+            finishMessagePart(false);
+            return true;
+        } else if (value == BINARY_FRAME_MARKER && transmitBuffer.position() == 0 && transmitBuffer.limit() > 0) {
+            binaryFrameLengthBytesRemaining = BINARY_FRAME_LENGTH_SIZE;
+        } else if (value == CONTINUATION_MARKER && transmitBuffer.position() == 0 && transmitBuffer.limit() > 0 && !isContinuation) {
+            isContinuation = true;
+        } else if (transmitBuffer.hasRemaining()) {
+            transmitBuffer.put((byte) value);
+        } else {
+            transmitBuffer.clear();
+            transmitBuffer.limit(0); // marks message too large
+        }
+
+        return false;
+    }
+
+    private void rejectInvalidFrame() {
+        // We can't know where the payload of a frame with an invalid length ends, so drop
+        // the frame, and the chunked message it may belong to, and skip data up to the next
+        // message delimiter.
+        binaryFrameBytesRemaining = 0;
+        transmitBuffer.clear();
+        isContinuation = false;
+        releaseChunkedMessage();
+        isResynchronizing = true;
+
+        messagesReceived++;
+        writeError(true, null, ERROR_INVALID_MESSAGE_PART);
+    }
+
+    private boolean skipToMessageDelimiter() {
+        while (readBuffer.hasRemaining()) {
+            if (readBuffer.get() == 0) {
+                isResynchronizing = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean canAcceptRequest() {
+        return synchronizedInvocations.length + synchronizedBatches.length < maxInFlightRequests &&
+               (receiveBuffer == null || receiveBuffer.remaining() < maxPendingResponseSize);
+    }
+
+    private void finishBinaryFrame() {
+        finishMessagePart(true);
+    }
+
+    private void finishMessagePart(final boolean isBinary) {
+        final boolean isTooLarge = transmitBuffer.limit() == 0;
+        transmitBuffer.flip();
+
+        try {
+            // Empty JSON messages are just delimiters between messages, skip them.
+            if (!isBinary && !isTooLarge && !isContinuation && !transmitBuffer.hasRemaining()) {
+                return;
+            }
+
+            bytesReceived += transmitBuffer.remaining();
+
+            if (isContinuation || hasChunkedMessage) {
+                appendToChunkedMessage(isBinary, isTooLarge);
+                if (!isContinuation) {
+                    finishChunkedMessage(isBinary);
                 }
-                transmitBuffer.clear();
-            } else if (transmitBuffer.hasRemaining()) {
-                transmitBuffer.put((byte) value);
+                return;
+            }
+
+            messagesReceived++;
+            if (isTooLarge) {
+                writeError(isBinary, null, ERROR_MESSAGE_TOO_LARGE);
+            } else if (isBinary) {
+                processBinaryMessage(transmitBuffer);
             } else {
-                transmitBuffer.clear();
-                transmitBuffer.limit(0); // marks message too large
+                processMessage(transmitBuffer);
             }
+        } finally {
+            transmitBuffer.clear();
+            isContinuation = false;
         }
     }
 
+    private void appendToChunkedMessage(final boolean isBinary, final boolean isTooLarge) {
+        if (!hasChunkedMessage) {
+            hasChunkedMessage = true;
+            isChunkedMessageBinary = isBinary;
+        }
+
+        if (chunkedMessageError != null) {
+            return; // Already failed, swallow remaining parts.
+        }
+
+        if (isChunkedMessageBinary != isBinary) {
+            failChunkedMessage(ERROR_INVALID_MESSAGE_PART);
+            return;
+        }
+
+        final int size = chunkedMessageBuffer != null ? chunkedMessageBuffer.position() : 0;
+        final int requiredSize = size + transmitBuffer.remaining();
+        if (isTooLarge || requiredSize > maxChunkedMessageSize) {
+            failChunkedMessage(ERROR_MESSAGE_TOO_LARGE);
+            return;
+        }
+
+        if (chunkedMessageBuffer == null || chunkedMessageBuffer.remaining() < transmitBuffer.remaining()) {
+            final int capacity = chunkedMessageBuffer != null ? chunkedMessageBuffer.capacity() : transmitBuffer.capacity();
+            final int newCapacity = Math.min(maxChunkedMessageSize, Math.max(requiredSize, capacity * 2));
+            if (!chunkedMessageMemory.resize(newCapacity)) {
+                failChunkedMessage(ERROR_MESSAGE_TOO_LARGE);
+                return;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(newCapacity);
+            if (chunkedMessageBuffer != null) {
+                chunkedMessageBuffer.flip();
+                buffer.put(chunkedMessageBuffer);
+            }
+            chunkedMessageBuffer = buffer;
+        }
+
+        chunkedMessageBuffer.put(transmitBuffer);
+    }
+
+    private void finishChunkedMessage(final boolean isBinary) {
+        messagesReceived++;
+        try {
+            if (chunkedMessageError != null) {
+                writeError(isBinary, null, chunkedMessageError);
+            } else if (chunkedMessageBuffer != null) {
+                chunkedMessageBuffer.flip();
+                if (isBinary) {
+                    processBinaryMessage(chunkedMessageBuffer);
+                } else {
+                    processMessage(chunkedMessageBuffer);
+                }
+            }
+        } finally {
+            releaseChunkedMessage();
+        }
+    }
+
+    private void failChunkedMessage(final String error) {
+        chunkedMessageError = error;
+        chunkedMessageBuffer = null;
+        chunkedMessageMemory.resize(0);
+    }
+
+    private void releaseChunkedMessage() {
+        if (chunkedMessageBuffer != null) {
+            chunkedMessageBuffer = null;
+            chunkedMessageMemory.resize(0);
+        }
+        hasChunkedMessage = false;
+        chunkedMessageError = null;
+    }
+
     private void writeToDevice() {
         if (receiveBuffer == null) {
             return;
         }
 
-        while (receiveBuffer.hasRemaining() && serialDevice.canPutByte()) {
-            serialDevice.putByte(receiveBuffer.get());
+        final int count = transport.write(receiveBuffer);
+        if (count > 0) {
+            didTransferData = true;
+            bytesSent += count;
         }
 
-        serialDevice.flush();
+        transport.flush();
 
         if (!receiveBuffer.hasRemaining()) {
+            if (receiveBuffer.capacity() <= maxPendingResponseSize) {
+                spareReceiveBuffer = receiveBuffer;
+            }
             receiveBuffer = null;
         }
     }
 
-    private void processMessage(final byte[] messageData) {
-        if (new String(messageData).trim().isEmpty()) {
+    private void processMessage(final ByteBuffer messageData) {
+        // Parse straight from the transmit buffer, to avoid copying the message around.
+        jsonMessageReader.reset(messageData);
+        if (jsonMessageReader.isBlank()) {
+            return;
+        }
+
+        final Message message;
+        try {
+            final JsonReader jsonReader = gson.newJsonReader(jsonMessageReader);
+            message = gson.fromJson(jsonReader, Message.class);
+            if (message == null) {
+                throw new JsonSyntaxException("empty message");
+            }
+            if (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+        } catch (final Throwable e) {
+            writeError(false, null, e.getMessage());
             return;
         }
 
-        final InputStreamReader stream = new InputStreamReader(new ByteArrayInputStream(messageData));
         try {
-            final Message message = gson.fromJson(stream, Message.class);
             switch (message.type) {
+                case Message.MESSAGE_TYPE_PROTOCOLS: {
+                    writeProtocols(false, message.id);
+                    break;
+                }
                 case Message.MESSAGE_TYPE_LIST: {
-                    writeDeviceList();
+                    writeDeviceList(false, message.id);
                     break;
                 }
                 case Message.MESSAGE_TYPE_METHODS: {
                     if (message.data != null) {
-                        writeDeviceMethods((UUID) message.data);
+                        writeDeviceMethods(false, message.id, (UUID) message.data);
+                    } else {
+                        writeError(false, message.id, "missing device id");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_SUBSCRIBE: {
+                    if (message.data != null) {
+                        subscribe(false, message.id, (UUID) message.data);
                     } else {
-                        writeError("missing device id");
+                        writeError(false, message.id, "missing device id");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_UNSUBSCRIBE: {
+                    if (message.data != null) {
+                        unsubscribe(false, message.id, (UUID) message.data);
+                    } else {
+                        writeError(false, message.id, "missing device id");
                     }
                     break;
                 }
                 case Message.MESSAGE_TYPE_INVOKE_METHOD: {
                     if (message.data != null) {
-                        processMethodInvocation((MethodInvocation) message.data, false);
+                        final MethodInvocation methodInvocation = (MethodInvocation) message.data;
+                        methodInvocation.setId(message.id);
+                        processMethodInvocation(methodInvocation, false);
+                    } else {
+                        writeError(false, message.id, "missing invocation data");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_BATCH: {
+                    if (message.data != null) {
+                        final MethodInvocationBatch batch = (MethodInvocationBatch) message.data;
+                        batch.setId(message.id);
+                        processMethodInvocationBatch(batch, false);
                     } else {
-                        writeError("missing invocation data");
+                        writeError(false, message.id, "missing invocation data");
                     }
                     break;
                 }
                 default: {
-                    writeError(ERROR_UNKNOWN_MESSAGE_TYPE);
+                    writeError(false, message.id, ERROR_UNKNOWN_MESSAGE_TYPE);
                     break;
                 }
             }
         } catch (final Throwable e) {
-            writeError(e.getMessage());
+            writeError(false, message.id, e.getMessage());
         }
     }
 
-    private void processMethodInvocation(final MethodInvocation methodInvocation, final boolean isMainThread) {
-        final RPCDevice device = devicesById.get(methodInvocation.deviceId);
-        if (device == null) {
-            writeError(ERROR_UNKNOWN_DEVICE);
-            return;
-        }
+    private void processBinaryMessage(final ByteBuffer messageData) {
+        // Binary messages have the same structure as JSON messages, i.e. they are a map with
+        // a type and a data entry. Entries may come in any order, so we remember where the
+        // data starts and only read it once we know the type.
+        final MessagePackReader reader = new MessagePackReader(messageData);
+        String type = null;
+        Long id = null;
+        int dataPosition = -1;
+        try {
+            final int entryCount = reader.readMapHeader();
+            for (int i = 0; i < entryCount; i++) {
+                final String key = reader.readString();
+                if ("type".equals(key)) {
+                    type = reader.readString();
+                } else if ("id".equals(key)) {
+                    id = reader.readLong();
+                } else {
+                    if ("data".equals(key)) {
+                        dataPosition = messageData.position();
+                    }
+                    reader.skipValue();
+                }
+            }
 
-        // Yes, we could hashmap this lookup, but the expectation is that we'll generally
-        // have relatively few methods per object where the overhead of hashing would not
-        // be worth it. So we just do a linear search, which also gives us maximal
-        // flexibility for free (devices may dynamically change their methods).
-        final List<RPCMethod> fallbacks = new ArrayList<>();
-        String error = ERROR_UNKNOWN_METHOD;
-        for (final RPCMethod method : device.getMethods()) {
-            if (!Objects.equals(method.getName(), methodInvocation.methodName)) {
-                continue;
+            if (type == null) {
+                writeError(true, id, ERROR_UNKNOWN_MESSAGE_TYPE);
+                return;
             }
 
-            final RPCParameter[] parametersSpec = method.getParameters();
-            if (methodInvocation.parameters.size() != parametersSpec.length) {
-                if (canTrailingParametersBeImplicitlyNull(methodInvocation.parameters, parametersSpec)) {
-                    fallbacks.add(method);
+            switch (type) {
+                case Message.MESSAGE_TYPE_PROTOCOLS: {
+                    writeProtocols(true, id);
+                    break;
+                }
+                case Message.MESSAGE_TYPE_LIST: {
+                    writeDeviceList(true, id);
+                    break;
+                }
+                case Message.MESSAGE_TYPE_METHODS: {
+                    if (dataPosition >= 0) {
+                        messageData.position(dataPosition);
+                        writeDeviceMethods(true, id, UUID.fromString(reader.readString()));
+                    } else {
+                        writeError(true, id, "missing device id");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_SUBSCRIBE: {
+                    if (dataPosition >= 0) {
+                        messageData.position(dataPosition);
+                        subscribe(true, id, UUID.fromString(reader.readString()));
+                    } else {
+                        writeError(true, id, "missing device id");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_UNSUBSCRIBE: {
+                    if (dataPosition >= 0) {
+                        messageData.position(dataPosition);
+                        unsubscribe(true, id, UUID.fromString(reader.readString()));
+                    } else {
+                        writeError(true, id, "missing device id");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_INVOKE_METHOD: {
+                    if (dataPosition >= 0) {
+                        messageData.position(dataPosition);
+                        final MethodInvocation methodInvocation = readBinaryMethodInvocation(reader);
+                        methodInvocation.setId(id);
+                        processMethodInvocation(methodInvocation, false);
+                    } else {
+                        writeError(true, id, "missing invocation data");
+                    }
+                    break;
+                }
+                case Message.MESSAGE_TYPE_BATCH: {
+                    if (dataPosition >= 0) {
+                        messageData.position(dataPosition);
+                        final MethodInvocation[] invocations = new MethodInvocation[reader.readArrayHeader()];
+                        for (int i = 0; i < invocations.length; i++) {
+                            invocations[i] = readBinaryMethodInvocation(reader);
+                        }
+                        final MethodInvocationBatch batch = new MethodInvocationBatch(invocations, true);
+                        batch.setId(id);
+                        processMethodInvocationBatch(batch, false);
+                    } else {
+                        writeError(true, id, "missing invocation data");
+                    }
+                    break;
+                }
+                default: {
+                    writeError(true, id, ERROR_UNKNOWN_MESSAGE_TYPE);
+                    break;
                 }
-
-                error = ERROR_INVALID_PARAMETER_SIGNATURE;
-                continue; // There may be an overload with matching parameter count.
             }
+        } catch (final Throwable e) {
+            writeError(true, id, e.getMessage());
+        }
+    }
 
-            final Object[] parameters = getParameters(methodInvocation.parameters, parametersSpec);
-            if (parameters == null) {
-                error = ERROR_INVALID_PARAMETER_SIGNATURE;
-                continue; // There may be an overload with matching parameter types.
+    private MethodInvocation readBinaryMethodInvocation(final MessagePackReader reader) {
+        UUID deviceId = null;
+        String methodName = null;
+        byte[] parameters = EMPTY_BINARY_PARAMETERS;
+
+        final int entryCount = reader.readMapHeader();
+        for (int i = 0; i < entryCount; i++) {
+            switch (reader.readString()) {
+                case "deviceId": {
+                    deviceId = UUID.fromString(reader.readString());
+                    break;
+                }
+                case "name": {
+                    methodName = reader.readString();
+                    break;
+                }
+                case "parameters": {
+                    // Keep the raw encoded parameters around, they're only decoded once we
+                    // know the parameter types of the method being called.
+                    final ByteBuffer buffer = reader.getBuffer();
+                    final int start = buffer.position();
+                    reader.skipValue();
+                    parameters = new byte[buffer.position() - start];
+                    buffer.position(start);
+                    buffer.get(parameters);
+                    break;
+                }
+                default: {
+                    reader.skipValue();
+                    break;
+                }
             }
+        }
+
+        if (deviceId == null || methodName == null) {
+            throw new IllegalArgumentException("missing invocation data");
+        }
 
-            invokeMethod(methodInvocation, isMainThread, method, parameters);
+        return new MethodInvocation(deviceId, methodName, parameters);
+    }
 
+    private void processMethodInvocation(final MethodInvocation methodInvocation, final boolean isMainThread) {
+        resolveMethodInvocation(methodInvocation);
+        if (!isMainThread && methodInvocation.isSynchronized()) {
+            synchronizedInvocations = Arrays.copyOf(synchronizedInvocations, synchronizedInvocations.length + 1);
+            synchronizedInvocations[synchronizedInvocations.length - 1] = methodInvocation;
             return;
         }
 
-        if (fallbacks.size() == 1) {
-            final RPCMethod method = fallbacks.get(0);
-            final Object[] parameters = getParameters(methodInvocation.parameters, method.getParameters());
+        final Message result = invokeMethod(methodInvocation.getId(), methodInvocation, true);
+        if (result != null) {
+            writeResult(methodInvocation.isBinary(), result);
+        }
+    }
+
+    private void processMethodInvocationBatch(final MethodInvocationBatch batch, final boolean isMainThread) {
+        if (batch.invocations.length > MAX_BATCH_SIZE) {
+            writeError(batch.isBinary, batch.getId(), ERROR_BATCH_TOO_LARGE);
+            return;
+        }
+
+        // If any invocation in the batch has to run on the main thread, run the whole batch
+        // there, so results are returned together and in order.
+        boolean isSynchronized = false;
+        for (final MethodInvocation methodInvocation : batch.invocations) {
+            resolveMethodInvocation(methodInvocation);
+            isSynchronized |= methodInvocation.isSynchronized();
+        }
+
+        if (!isMainThread && isSynchronized) {
+            synchronizedBatches = Arrays.copyOf(synchronizedBatches, synchronizedBatches.length + 1);
+            synchronizedBatches[synchronizedBatches.length - 1] = batch;
+            return;
+        }
+
+        final Message[] results = new Message[batch.invocations.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = invokeMethod(null, batch.invocations[i], false);
+        }
+
+        writeResult(batch.isBinary, new Message(batch.getId(), Message.MESSAGE_TYPE_BATCH, results));
+    }
+
+    /**
+     * Writes the result of an invocation, sending an error instead if the result cannot be
+     * serialized.
+     */
+    private void writeResult(final boolean isBinary, final Message message) {
+        try {
+            writeMessage(isBinary, message);
+        } catch (final Throwable e) {
+            writeError(isBinary, message.id, getErrorMessage(e));
+        }
+    }
+
+    private void resolveMethodInvocation(final MethodInvocation methodInvocation) {
+        if (methodInvocation.isResolved) {
+            return; // Resolved before it was queued for the main thread.
+        }
+
+        final RPCMethodDispatchTable dispatchTable = dispatchTablesById.get(methodInvocation.deviceId);
+        if (dispatchTable == null) {
+            methodInvocation.setResolved(ERROR_UNKNOWN_DEVICE);
+            return;
+        }
+
+        final RPCMethodDispatchTable.Overloads overloads = dispatchTable.get(methodInvocation.methodName);
+        if (overloads == null) {
+            methodInvocation.setResolved(ERROR_UNKNOWN_METHOD);
+            return;
+        }
+
+        final int parameterCount = methodInvocation.getParameterCount();
+        for (final RPCMethodDispatchTable.Entry entry : overloads.get(parameterCount)) {
+            final Object[] parameters = getParameters(methodInvocation, entry.decoders);
             if (parameters != null) {
-                invokeMethod(methodInvocation, isMainThread, method, parameters);
+                methodInvocation.setResolved(entry.method, parameters);
                 return;
             }
+            // There may be an overload with matching parameter types.
         }
 
-        writeError(error);
+        final RPCMethodDispatchTable.Entry fallback = overloads.getFallback(parameterCount);
+        if (fallback != null) {
+            final Object[] parameters = getParameters(methodInvocation, fallback.decoders);
+            if (parameters != null) {
+                methodInvocation.setResolved(fallback.method, parameters);
+                return;
+            }
+        }
+
+        methodInvocation.setResolved(ERROR_INVALID_PARAMETER_SIGNATURE);
     }
 
-    private void invokeMethod(final MethodInvocation methodInvocation, final boolean isMainThread, final RPCMethod method, final Object[] parameters) {
-        if (method.isSynchronized() && !isMainThread) {
-            synchronizedInvocation = methodInvocation;
-            return;
+    /**
+     * Runs a resolved method invocation.
+     * <p>
+     * If the method is asynchronous, the result is written once the returned {@link CompletionStage}
+     * completes, and {@code null} is returned.
+     */
+    @Nullable
+    private Message invokeMethod(@Nullable final Long id, final MethodInvocation methodInvocation, final boolean allowAsync) {
+        final RPCMethod method = methodInvocation.resolvedMethod;
+        if (method == null) {
+            return new Message(id, Message.MESSAGE_TYPE_ERROR, methodInvocation.resolveError);
         }
 
         try {
-            final Object result = method.invoke(parameters);
-            writeMessage(Message.MESSAGE_TYPE_RESULT, result);
+            // Check before running the method, so we never start operations we cannot report on.
+            final boolean isAsync = CompletionStage.class.isAssignableFrom(method.getReturnType());
+            if (isAsync && !allowAsync) {
+                return new Message(id, Message.MESSAGE_TYPE_ERROR, ERROR_ASYNCHRONOUS_METHOD_IN_BATCH);
+            }
+            if (isAsync && pendingAsyncInvocations.length >= maxInFlightRequests) {
+                return new Message(id, Message.MESSAGE_TYPE_ERROR, ERROR_TOO_MANY_PENDING_OPERATIONS);
+            }
+
+            final Object result = method.invoke(methodInvocation.resolvedParameters);
+            if (isAsync && result != null) {
+                final AsyncInvocation invocation = new AsyncInvocation(methodInvocation.isBinary(), id);
+                pendingAsyncInvocations = Arrays.copyOf(pendingAsyncInvocations, pendingAsyncInvocations.length + 1);
+                pendingAsyncInvocations[pendingAsyncInvocations.length - 1] = invocation;
+                ((CompletionStage<?>) result).whenComplete((value, error) ->
+                        asyncInvocationResults.add(new AsyncInvocationResult(invocation, value, error)));
+                return null;
+            }
+
+            return new Message(id, Message.MESSAGE_TYPE_RESULT, result);
         } catch (final Throwable e) {
-            writeError(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            return new Message(id, Message.MESSAGE_TYPE_ERROR, getErrorMessage(e));
+        } finally {
+            methodInvocation.clearResolved();
+        }
+    }
+
+    private void clearResolvedInvocations() {
+        // Queued invocations may refer to methods of removed devices.
+        for (final MethodInvocation methodInvocation : synchronizedInvocations) {
+            methodInvocation.clearResolved();
+        }
+        for (final MethodInvocationBatch batch : synchronizedBatches) {
+            for (final MethodInvocation methodInvocation : batch.invocations) {
+                methodInvocation.clearResolved();
+            }
+        }
+    }
+
+    private void writeAsyncInvocationResults() {
+        AsyncInvocationResult result;
+        while ((result = asyncInvocationResults.poll()) != null) {
+            final AsyncInvocation invocation = result.invocation;
+            if (!removePendingAsyncInvocation(invocation)) {
+                continue; // Adapter was reset since the invocation was made.
+            }
+
+            if (result.error != null) {
+                writeError(invocation.isBinary, invocation.getId(), getErrorMessage(result.error));
+            } else {
+                writeResult(invocation.isBinary, new Message(invocation.getId(), Message.MESSAGE_TYPE_RESULT, result.value));
+            }
+        }
+
+        // Invocations restored from a saved state lost the operation they were waiting for,
+        // let the VM know they will never complete instead of keeping it waiting forever.
+        for (final AsyncInvocation invocation : pendingAsyncInvocations) {
+            if (!invocation.isRunning) {
+                removePendingAsyncInvocation(invocation);
+                writeError(invocation.isBinary, invocation.getId(), ERROR_INVOCATION_INTERRUPTED);
+            }
+        }
+    }
+
+    private boolean removePendingAsyncInvocation(final AsyncInvocation invocation) {
+        final AsyncInvocation[] invocations = pendingAsyncInvocations;
+        for (int i = 0; i < invocations.length; i++) {
+            if (invocations[i] == invocation) {
+                final AsyncInvocation[] remaining = Arrays.copyOf(invocations, invocations.length - 1);
+                System.arraycopy(invocations, i + 1, remaining, i, invocations.length - i - 1);
+                pendingAsyncInvocations = remaining.length > 0 ? remaining : NO_ASYNC_INVOCATIONS;
+                return true;
+            }
         }
+        return false;
+    }
+
+    private static String getErrorMessage(final Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
     }
 
     @Nullable
-    private Object[] getParameters(final JsonArray parameters, final RPCParameter[] parametersSpec) {
-        final Object[] result = new Object[parametersSpec.length];
-        for (int i = 0; i < parametersSpec.length; i++) {
-            final RPCParameter parameterInfo = parametersSpec[i];
-            if (parameters.size() > i) {
-                try {
-                    result[i] = gson.fromJson(parameters.get(i), parameterInfo.getType());
-                } catch (final Throwable e) {
-                    return null;
+    private Object[] getParameters(final MethodInvocation methodInvocation, final RPCParameterDecoder[] decoders) {
+        // Missing trailing parameters are left null, the dispatch table only gives us
+        // methods that allow this.
+        final int parameterCount = Math.min(methodInvocation.getParameterCount(), decoders.length);
+        final Object[] result = new Object[decoders.length];
+        try {
+            if (methodInvocation.isBinary()) {
+                for (int i = 0; i < parameterCount; i++) {
+                    result[i] = decoders[i].decode(methodInvocation.getBinaryParameter(i));
                 }
             } else {
-                result[i] = null;
+                for (int i = 0; i < parameterCount; i++) {
+                    result[i] = decoders[i].decode(methodInvocation.parameters.get(i));
+                }
             }
+        } catch (final Throwable e) {
+            return null;
         }
         return result;
     }
 
-    private boolean canTrailingParametersBeImplicitlyNull(final JsonArray parameters, final RPCParameter[] parametersSpec) {
-        if (parameters.size() > parametersSpec.length) {
-            return false;
+    private void writeProtocols(final boolean isBinary, @Nullable final Long id) {
+        writeMessage(isBinary, id, Message.MESSAGE_TYPE_PROTOCOLS, PROTOCOLS);
+    }
+
+    private void writeDeviceList(final boolean isBinary, @Nullable final Long id) {
+        if (isBinary) {
+            if (binaryDeviceListData == null) {
+                binaryDeviceListData = serializeData(true, devices);
+            }
+            writeSerializedMessage(true, id, Message.MESSAGE_TYPE_LIST, binaryDeviceListData);
+        } else {
+            if (jsonDeviceListData == null) {
+                jsonDeviceListData = serializeData(false, devices);
+            }
+            writeSerializedMessage(false, id, Message.MESSAGE_TYPE_LIST, jsonDeviceListData);
         }
+    }
 
-        for (int i = parameters.size(); i < parametersSpec.length; i++) {
-            final Class<?> type = parametersSpec[i].getType();
-            if (type.isPrimitive()) {
-                return false;
+    private void writeDeviceMethods(final boolean isBinary, @Nullable final Long id, final UUID deviceId) {
+        final RPCDevice device = devicesById.get(deviceId);
+        if (device != null) {
+            final HashMap<UUID, byte[]> cache = isBinary ? binaryDeviceMethodsData : jsonDeviceMethodsData;
+            final byte[] data = cache.computeIfAbsent(deviceId, unused -> serializeData(isBinary, device.getMethods()));
+            writeSerializedMessage(isBinary, id, Message.MESSAGE_TYPE_METHODS, data);
+        } else {
+            writeError(isBinary, id, "unknown device");
+        }
+    }
+
+    private void clearSerializedDeviceData() {
+        jsonDeviceListData = null;
+        binaryDeviceListData = null;
+        jsonDeviceMethodsData.clear();
+        binaryDeviceMethodsData.clear();
+    }
+
+    private byte[] serializeData(final boolean isBinary, final Object data) {
+        if (isBinary) {
+            messageWriter.clear();
+            messageWriter.writeObject(data, gson);
+            return messageWriter.toByteArray();
+        } else {
+            jsonMessageWriter.clear();
+            gson.toJson(data, data.getClass(), jsonMessageWriter);
+            return jsonMessageWriter.toByteArray();
+        }
+    }
+
+    /**
+     * Writes a message with data that has already been serialized using the protocol of
+     * the message, as returned by {@link #serializeData(boolean, Object)}.
+     */
+    private void writeSerializedMessage(final boolean isBinary, @Nullable final Long id, final String type, final byte[] data) {
+        if (isBinary) {
+            messageWriter.clear();
+            messageWriter.writeMapHeader(id != null ? 3 : 2);
+            messageWriter.writeString("type");
+            messageWriter.writeString(type);
+            if (id != null) {
+                messageWriter.writeString("id");
+                messageWriter.writeLong(id);
             }
+            messageWriter.writeString("data");
+
+            final int frameSize = messageWriter.size() + data.length;
+            allocateReceiveBuffer(MESSAGE_DELIMITER.length + 1 + BINARY_FRAME_LENGTH_SIZE + frameSize);
+            receiveBuffer.put(MESSAGE_DELIMITER);
+            receiveBuffer.put(BINARY_FRAME_MARKER);
+            receiveBuffer.putInt(frameSize);
+            messageWriter.copyTo(receiveBuffer);
+            receiveBuffer.put(data);
+        } else {
+            // Message types never need escaping, so we can write the envelope as is.
+            final String header = id != null
+                    ? "{\"type\":\"" + type + "\",\"id\":" + id + ",\"data\":"
+                    : "{\"type\":\"" + type + "\",\"data\":";
+            jsonMessageWriter.clear();
+            jsonMessageWriter.write(header, 0, header.length());
+
+            allocateReceiveBuffer(jsonMessageWriter.size() + data.length + 1 + MESSAGE_DELIMITER.length * 2);
+            receiveBuffer.put(MESSAGE_DELIMITER);
+            jsonMessageWriter.copyTo(receiveBuffer);
+            receiveBuffer.put(data);
+            receiveBuffer.put((byte) '}');
+            receiveBuffer.put(MESSAGE_DELIMITER);
         }
 
-        return true;
+        receiveBuffer.flip();
+
+        messagesSent++;
     }
 
-    private void writeDeviceList() {
-        writeMessage(Message.MESSAGE_TYPE_LIST, devices);
+    private void writeError(final boolean isBinary, @Nullable final Long id, final String message) {
+        writeMessage(isBinary, id, Message.MESSAGE_TYPE_ERROR, message);
     }
 
-    private void writeDeviceMethods(final UUID deviceId) {
-        final RPCDeviceList device = devicesById.get(deviceId);
-        if (device != null) {
-            writeMessage(Message.MESSAGE_TYPE_METHODS, device.getMethods());
+    private void writeMessage(final boolean isBinary, @Nullable final Long id, final String type, @Nullable final Object data) {
+        writeMessage(isBinary, new Message(id, type, data));
+    }
+
+    private void writeMessage(final boolean isBinary, final Message message) {
+        if (isBinary) {
+            writeBinaryMessage(message);
         } else {
-            writeError("unknown device");
+            writeJsonMessage(message);
         }
+
+        receiveBuffer.flip();
+
+        messagesSent++;
     }
 
-    private void writeError(final String message) {
-        writeMessage(Message.MESSAGE_TYPE_ERROR, message);
+    private void writeBinaryMessage(final Message message) {
+        messageWriter.clear();
+        writeBinaryMessageValue(message);
+
+        allocateReceiveBuffer(MESSAGE_DELIMITER.length + 1 + BINARY_FRAME_LENGTH_SIZE + messageWriter.size());
+
+        // Same as for JSON messages, a leading delimiter allows the VM to resynchronize
+        // after a reset. The VM is expected to skip delimiters between frames.
+        receiveBuffer.put(MESSAGE_DELIMITER);
+
+        receiveBuffer.put(BINARY_FRAME_MARKER);
+        receiveBuffer.putInt(messageWriter.size());
+        messageWriter.copyTo(receiveBuffer);
+    }
+
+    private void writeBinaryMessageValue(final Message message) {
+        messageWriter.writeMapHeader(message.id != null ? 3 : 2);
+        messageWriter.writeString("type");
+        messageWriter.writeString(message.type);
+        if (message.id != null) {
+            messageWriter.writeString("id");
+            messageWriter.writeLong(message.id);
+        }
+        messageWriter.writeString("data");
+        if (message.data instanceof Message[]) {
+            final Message[] messages = (Message[]) message.data;
+            messageWriter.writeArrayHeader(messages.length);
+            for (final Message entry : messages) {
+                writeBinaryMessageValue(entry);
+            }
+        } else {
+            messageWriter.writeObject(message.data, gson);
+        }
     }
 
-    private void writeMessage(final String type, @Nullable final Object data) {
-        if (receiveBuffer != null) throw new IllegalStateException();
-        final String json = gson.toJson(new Message(type, data));
-        final byte[] bytes = json.getBytes();
-        receiveBuffer = ByteBuffer.allocate(bytes.length + MESSAGE_DELIMITER.length * 2);
+    private void writeJsonMessage(final Message message) {
+        // Uses a new JsonWriter per message, so a message that failed to serialize does not
+        // leave behind state that corrupts the following ones.
+        jsonMessageWriter.clear();
+        gson.toJson(message, Message.class, jsonMessageWriter);
+
+        allocateReceiveBuffer(jsonMessageWriter.size() + MESSAGE_DELIMITER.length * 2);
 
         // In case we went through a reset and the VM was in the middle of reading
         // a message we inject a delimiter up front to cause the truncated message
         // to be discarded.
         receiveBuffer.put(MESSAGE_DELIMITER);
 
-        receiveBuffer.put(bytes);
+        jsonMessageWriter.copyTo(receiveBuffer);
 
         // We follow up each message with a delimiter, too, so the VM knows when the
         // message has been completed. This will lead to two delimiters between most
         // messages. The VM is expected to ignore such "empty" messages.
         receiveBuffer.put(MESSAGE_DELIMITER);
+    }
 
-        receiveBuffer.flip();
+    private void allocateReceiveBuffer(final int messageSize) {
+        // Prepares the receive buffer for appending a message of the specified size, keeping
+        // any data not yet read by the VM. Leaves the buffer in write mode. Buffers are reused
+        // where possible, so steady traffic does not allocate a new buffer per message.
+        if (receiveBuffer == null || !receiveBuffer.hasRemaining()) {
+            if (receiveBuffer != null && receiveBuffer.capacity() >= messageSize) {
+                receiveBuffer.clear();
+            } else if (spareReceiveBuffer != null && spareReceiveBuffer.capacity() >= messageSize) {
+                receiveBuffer = spareReceiveBuffer;
+                receiveBuffer.clear();
+            } else {
+                receiveBuffer = ByteBuffer.allocate(Math.max(messageSize, MIN_RECEIVE_BUFFER_SIZE));
+            }
+            spareReceiveBuffer = null;
+        } else if (receiveBuffer.capacity() >= receiveBuffer.remaining() + messageSize) {
+            receiveBuffer.compact();
+        } else {
+            final int requiredSize = receiveBuffer.remaining() + messageSize;
+            final ByteBuffer buffer = ByteBuffer.allocate(Math.max(requiredSize, receiveBuffer.capacity() * 2));
+            buffer.put(receiveBuffer);
+            receiveBuffer = buffer;
+        }
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -421,20 +1440,35 @@ public final class RPCDeviceBusAdapter implements Steppable {
     }
 
     public static final class Message {
+        // VM <-> Device
+        public static final String MESSAGE_TYPE_PROTOCOLS = "protocols";
+
         // Device -> VM
         public static final String MESSAGE_TYPE_LIST = "list";
         public static final String MESSAGE_TYPE_METHODS = "methods";
         public static final String MESSAGE_TYPE_RESULT = "result";
         public static final String MESSAGE_TYPE_ERROR = "error";
+        public static final String MESSAGE_TYPE_EVENT = "event";
 
         // VM -> Device
         public static final String MESSAGE_TYPE_INVOKE_METHOD = "invoke";
+        public static final String MESSAGE_TYPE_SUBSCRIBE = "subscribe";
+        public static final String MESSAGE_TYPE_UNSUBSCRIBE = "unsubscribe";
+
+        // VM <-> Device
+        public static final String MESSAGE_TYPE_BATCH = "batch";
 
         public final String type;
+        @Nullable public final Long id; // optional, used to match responses to requests
         @Nullable public final Object data;
 
         public Message(final String type, @Nullable final Object data) {
+            this(null, type, data);
+        }
+
+        public Message(@Nullable final Long id, final String type, @Nullable final Object data) {
             this.type = type;
+            this.id = id;
             this.data = data;
         }
     }
@@ -443,7 +1477,21 @@ public final class RPCDeviceBusAdapter implements Steppable {
     public static final class MethodInvocation {
         public UUID deviceId;
         public String methodName;
-        public JsonArray parameters;
+        @Nullable public JsonArray parameters; // set for invocations sent using JSON
+        @Nullable public byte[] binaryParameters; // MessagePack encoded array, set for invocations sent using binary frames
+        public boolean hasId;
+        public long id;
+
+        private transient int[] binaryParameterOffsets;
+        private transient MessagePackReader binaryParameterReader;
+
+        // Result of resolving the method to call, only valid until the method was invoked.
+        // Kept while the invocation is queued for the main thread, so it is not resolved and
+        // decoded twice. Not serialized, so invocations restored from a save are resolved again.
+        @Nullable private transient RPCMethod resolvedMethod;
+        @Nullable private transient Object[] resolvedParameters;
+        @Nullable private transient String resolveError;
+        private transient boolean isResolved;
 
         public MethodInvocation() { // For deserialization.
         }
@@ -453,5 +1501,194 @@ public final class RPCDeviceBusAdapter implements Steppable {
             this.methodName = methodName;
             this.parameters = parameters;
         }
+
+        public MethodInvocation(final UUID deviceId, final String methodName, final byte[] binaryParameters) {
+            this.deviceId = deviceId;
+            this.methodName = methodName;
+            this.binaryParameters = binaryParameters;
+        }
+
+        @Nullable
+        public Long getId() {
+            return hasId ? id : null;
+        }
+
+        public void setId(@Nullable final Long id) {
+            this.hasId = id != null;
+            this.id = id != null ? id : 0;
+        }
+
+        public boolean isBinary() {
+            return binaryParameters != null;
+        }
+
+        public int getParameterCount() {
+            if (parameters != null) {
+                return parameters.size();
+            } else if (binaryParameters != null) {
+                return getBinaryParameterOffsets().length;
+            } else {
+                return 0;
+            }
+        }
+
+        public MessagePackReader getBinaryParameter(final int index) {
+            if (binaryParameterReader == null) {
+                binaryParameterReader = new MessagePackReader(ByteBuffer.wrap(binaryParameters));
+            }
+            binaryParameterReader.getBuffer().position(getBinaryParameterOffsets()[index]);
+            return binaryParameterReader;
+        }
+
+        private boolean isSynchronized() {
+            return resolvedMethod != null && resolvedMethod.isSynchronized();
+        }
+
+        private void setResolved(final RPCMethod method, final Object[] parameters) {
+            resolvedMethod = method;
+            resolvedParameters = parameters;
+            resolveError = null;
+            isResolved = true;
+        }
+
+        private void setResolved(final String error) {
+            resolvedMethod = null;
+            resolvedParameters = null;
+            resolveError = error;
+            isResolved = true;
+        }
+
+        private void clearResolved() {
+            resolvedMethod = null;
+            resolvedParameters = null;
+            resolveError = null;
+            isResolved = false;
+        }
+
+        private int[] getBinaryParameterOffsets() {
+            if (binaryParameterOffsets == null) {
+                final ByteBuffer buffer = ByteBuffer.wrap(binaryParameters);
+                final MessagePackReader reader = new MessagePackReader(buffer);
+                if (buffer.hasRemaining() && reader.isArray()) {
+                    binaryParameterOffsets = new int[reader.readArrayHeader()];
+                    for (int i = 0; i < binaryParameterOffsets.length; i++) {
+                        binaryParameterOffsets[i] = buffer.position();
+                        reader.skipValue();
+                    }
+                } else {
+                    binaryParameterOffsets = new int[0];
+                }
+            }
+            return binaryParameterOffsets;
+        }
+    }
+
+    @Serialized
+    public static final class MethodInvocationBatch {
+        public MethodInvocation[] invocations;
+        public boolean isBinary;
+        public boolean hasId;
+        public long id;
+
+        public MethodInvocationBatch() { // For deserialization.
+        }
+
+        public MethodInvocationBatch(final MethodInvocation[] invocations, final boolean isBinary) {
+            this.invocations = invocations;
+            this.isBinary = isBinary;
+        }
+
+        @Nullable
+        public Long getId() {
+            return hasId ? id : null;
+        }
+
+        public void setId(@Nullable final Long id) {
+            this.hasId = id != null;
+            this.id = id != null ? id : 0;
+        }
+    }
+
+    public static final class Event {
+        @Nullable public final UUID deviceId;
+        public final String name;
+        @Nullable public final Object data;
+
+        private Event(@Nullable final UUID deviceId, final String name, @Nullable final Object data) {
+            this.deviceId = deviceId;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private static final class QueuedEvent {
+        public final boolean isBinary;
+        public final Event event;
+
+        private QueuedEvent(final boolean isBinary, final Event event) {
+            this.isBinary = isBinary;
+            this.event = event;
+        }
+    }
+
+    private static final class EventListenerRegistration {
+        public final RPCEventSource source;
+        public final RPCEventListener listener;
+
+        private EventListenerRegistration(final RPCEventSource source, final RPCEventListener listener) {
+            this.source = source;
+            this.listener = listener;
+        }
+    }
+
+    @Serialized
+    public static final class Subscription {
+        public UUID deviceId;
+        public boolean isBinary;
+
+        public Subscription() { // For deserialization.
+        }
+
+        public Subscription(final UUID deviceId, final boolean isBinary) {
+            this.deviceId = deviceId;
+            this.isBinary = isBinary;
+        }
+    }
+
+    @Serialized
+    public static final class AsyncInvocation {
+        public boolean isBinary;
+        public boolean hasId;
+        public long id;
+
+        // Only set for invocations made since the adapter was created, not for deserialized ones.
+        private transient boolean isRunning;
+
+        public AsyncInvocation() { // For deserialization.
+        }
+
+        public AsyncInvocation(final boolean isBinary, @Nullable final Long id) {
+            this.isBinary = isBinary;
+            this.hasId = id != null;
+            this.id = id != null ? id : 0;
+            this.isRunning = true;
+        }
+
+        @Nullable
+        public Long getId() {
+            return hasId ? id : null;
+        }
+    }
+
+    private static final class AsyncInvocationResult {
+        public final AsyncInvocation invocation;
+        @Nullable public final Object value;
+        @Nullable public final Throwable error;
+
+        private AsyncInvocationResult(final AsyncInvocation invocation, @Nullable final Object value, @Nullable final Throwable error) {
+            this.invocation = invocation;
+            this.value = value;
+            this.error = error;
+        }
     }
 }
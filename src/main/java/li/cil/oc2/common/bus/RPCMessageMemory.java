@@ -0,0 +1,26 @@
+package li.cil.oc2.common.bus;
+
+/**
+ * Memory claim backing the buffer used by {@link RPCDeviceBusAdapter} to assemble chunked messages.
+ * <p>
+ * This allows charging the memory used for large messages against the global memory limit.
+ * Implementations must be safe to call from the thread running the virtual machine.
+ */
+@FunctionalInterface
+public interface RPCMessageMemory {
+    /**
+     * Memory claim that never fails and does not track anything.
+     */
+    RPCMessageMemory UNTRACKED = size -> true;
+
+    /**
+     * Changes the amount of memory claimed to the specified size. Resizing to zero releases
+     * the claim.
+     * <p>
+     * If the new size cannot be claimed, the claim is released completely.
+     *
+     * @param size the new amount of memory to claim, in bytes.
+     * @return {@code true} if the memory was claimed successfully; {@code false} otherwise.
+     */
+    boolean resize(int size);
+}
@@ -0,0 +1,43 @@
+package li.cil.oc2.common.bus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte stream between the {@link RPCDeviceBusAdapter} and the VM.
+ * <p>
+ * Transports move data in bulk, so implementations backed by guest memory can copy whole
+ * messages at once instead of going through a device one byte at a time.
+ */
+public interface RPCTransport {
+    /**
+     * Reads data sent by the VM into the specified buffer.
+     *
+     * @param target the buffer to read data into.
+     * @return the number of bytes read.
+     */
+    int read(ByteBuffer target);
+
+    /**
+     * Writes data to the VM from the specified buffer, as far as the VM can currently accept it.
+     *
+     * @param source the buffer to write data from.
+     * @return the number of bytes written.
+     */
+    int write(ByteBuffer source);
+
+    /**
+     * Makes data written so far visible to the VM, e.g. by raising an interrupt.
+     */
+    void flush();
+
+    /**
+     * Whether the VM has set up this transport, e.g. by loading a driver for it.
+     * <p>
+     * Transports backed by a device that is always present should just return {@code true}.
+     *
+     * @return {@code true} if the transport can be used; {@code false} otherwise.
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+}
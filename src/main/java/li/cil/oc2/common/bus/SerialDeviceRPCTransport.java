@@ -0,0 +1,46 @@
+package li.cil.oc2.common.bus;
+
+import li.cil.sedna.api.device.serial.SerialDevice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport sending data through a {@link SerialDevice}, such as a virtio console.
+ */
+public final class SerialDeviceRPCTransport implements RPCTransport {
+    private final SerialDevice serialDevice;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public SerialDeviceRPCTransport(final SerialDevice serialDevice) {
+        this.serialDevice = serialDevice;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public int read(final ByteBuffer target) {
+        int count = 0;
+        int value;
+        while (target.hasRemaining() && (value = serialDevice.read()) >= 0) {
+            target.put((byte) value);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int write(final ByteBuffer source) {
+        int count = 0;
+        while (source.hasRemaining() && serialDevice.canPutByte()) {
+            serialDevice.putByte(source.get());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void flush() {
+        serialDevice.flush();
+    }
+}
@@ -28,6 +28,11 @@ import static java.util.Objects.requireNonNull;
 public class BlockEntityDeviceBusElement extends AbstractGroupingBlockDeviceBusElement implements BlockDeviceBusElement {
     private final BlockEntity tileEntity;
 
+    // Neighbor changes are collected per face and processed once per tick, since noisy
+    // neighbors may notify us many times per tick.
+    private int dirtyFaces;
+    private boolean isFlushScheduled;
+
     ///////////////////////////////////////////////////////////////////
 
     public BlockEntityDeviceBusElement(final BlockEntity tileEntity) {
@@ -93,20 +98,11 @@ public class BlockEntityDeviceBusElement extends AbstractGroupingBlockDeviceBusE
             return;
         }
 
-        final int index = direction.get3DDataValue();
-
-        final HashSet<BlockDeviceInfo> newDevices = new HashSet<>();
-        if (canDetectDevicesTowards(direction)) {
-            final BlockDeviceQuery query = Devices.makeQuery(world, pos, direction);
-            for (final Optional<BlockDeviceInfo> deviceInfo : Devices.getDevices(query)) {
-                deviceInfo.ifPresent(newDevices::add);
-                deviceInfo.addListener(unused -> handleNeighborChanged(pos));
-            }
+        dirtyFaces |= 1 << direction.get3DDataValue();
+        if (!isFlushScheduled) {
+            isFlushScheduled = true;
+            ServerScheduler.schedule(world, this::flushDirtyFaces);
         }
-
-        collectSyntheticDevices(world, pos, direction, newDevices);
-
-        setDevicesForGroup(index, newDevices);
     }
 
     public void initialize() {
@@ -141,9 +137,55 @@ public class BlockEntityDeviceBusElement extends AbstractGroupingBlockDeviceBusE
     ///////////////////////////////////////////////////////////////////
 
     private void scanNeighborsForDevices() {
+        final Level world = requireNonNull(tileEntity.getLevel());
+        boolean didDevicesChange = false;
+        for (final Direction direction : Constants.DIRECTIONS) {
+            didDevicesChange |= updateDevicesForFace(world, direction);
+        }
+
+        if (didDevicesChange) {
+            scanDevices();
+        }
+    }
+
+    private void flushDirtyFaces() {
+        isFlushScheduled = false;
+
+        final int faces = dirtyFaces;
+        dirtyFaces = 0;
+
+        final Level world = tileEntity.getLevel();
+        if (tileEntity.isRemoved() || world == null) {
+            return;
+        }
+
+        boolean didDevicesChange = false;
         for (final Direction direction : Constants.DIRECTIONS) {
-            handleNeighborChanged(tileEntity.getBlockPos().relative(direction));
+            if ((faces & (1 << direction.get3DDataValue())) != 0) {
+                didDevicesChange |= updateDevicesForFace(world, direction);
+            }
         }
+
+        if (didDevicesChange) {
+            scanDevices();
+        }
+    }
+
+    private boolean updateDevicesForFace(final Level world, final Direction direction) {
+        final BlockPos pos = tileEntity.getBlockPos().relative(direction);
+
+        final HashSet<BlockDeviceInfo> newDevices = new HashSet<>();
+        if (canDetectDevicesTowards(direction)) {
+            final BlockDeviceQuery query = Devices.makeQuery(world, pos, direction);
+            for (final Optional<BlockDeviceInfo> deviceInfo : Devices.getDevices(query)) {
+                deviceInfo.ifPresent(newDevices::add);
+                deviceInfo.addListener(unused -> handleNeighborChanged(pos));
+            }
+        }
+
+        collectSyntheticDevices(world, pos, direction, newDevices);
+
+        return updateDevicesForGroup(direction.get3DDataValue(), newDevices);
     }
 
     private void scheduleBusScanInAdjacentBusElements() {
@@ -13,10 +13,12 @@ import li.cil.oc2.common.serialization.BlobStorage;
 import li.cil.oc2.common.serialization.TagSerialization;
 import li.cil.oc2.common.util.Event;
 import li.cil.oc2.common.util.NBTTagIds;
+import li.cil.oc2.common.vm.CollectPerformanceCountersEvent;
 import li.cil.sedna.api.device.BlockDevice;
 import li.cil.sedna.device.virtio.VirtIOBlockDevice;
 import net.minecraft.nbt.CompoundTag;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,6 +35,7 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
     ///////////////////////////////////////////////////////////////
 
     private BlobStorage.JobHandle jobHandle;
+    protected long blobStorageBytes;
     protected TBlock data;
     protected VirtIOBlockDevice device;
 
@@ -80,7 +83,11 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
             TagSerialization.deserialize(deviceTag, device);
         }
 
-        return VMDeviceLoadResult.success();
+        final VMDeviceLoadResult result = VMDeviceLoadResult.success();
+        if (jobHandle != null) {
+            result.withPendingInitialization(jobHandle.toCompletableFuture());
+        }
+        return result;
     }
 
     @Override
@@ -102,7 +109,14 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
 
     @Subscribe
     public void handleResumingRunningEvent(final VMResumingRunningEvent event) {
-        awaitStorageOperation();
+        if (!canAccessWhileSaving()) {
+            awaitStorageOperation();
+        }
+    }
+
+    @Subscribe
+    public void handleCollectPerformanceCountersEvent(final CollectPerformanceCountersEvent event) {
+        event.addBlobStorageBytes(blobStorageBytes);
     }
 
     @Override
@@ -166,11 +180,8 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
 
     public void serializeData() {
         if (data != null) {
-            final Optional<InputStream> optional = getSerializationStream(data);
-            optional.ifPresent(stream -> {
-                blobHandle = BlobStorage.validateHandle(blobHandle);
-                jobHandle = BlobStorage.submitSave(blobHandle, stream);
-            });
+            final Optional<BlobStorage.JobHandle> optional = submitSave(data);
+            optional.ifPresent(handle -> jobHandle = handle);
             if (!optional.isPresent()) {
                 BlobStorage.freeHandle(blobHandle);
                 blobHandle = null;
@@ -179,9 +190,12 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
     }
 
     public void deserializeData() {
-        if (data != null && blobHandle != null) {
+        if (data != null) {
             try {
-                jobHandle = BlobStorage.submitLoad(blobHandle, getDeserializationStream(data));
+                final BlobStorage.JobHandle handle = submitLoad(data);
+                if (handle != null) {
+                    jobHandle = handle;
+                }
             } catch (final UnsupportedOperationException ignored) {
                 // If logic producing the block data implementation changed between saves we
                 // can potentially end up in a state where we now have read only block data
@@ -204,6 +218,56 @@ public abstract class AbstractBlockDeviceVMDevice<TBlock extends BlockDevice, TI
     protected void handleDataAccess() {
     }
 
+    /**
+     * Whether the block device may be used while a job submitted by {@link #submitSave(BlockDevice)}
+     * is still running.
+     * <p>
+     * If not, the virtual machine waits for the job to complete before resuming. Loading always
+     * completes before the virtual machine starts.
+     *
+     * @return {@code true} if the device may be used during saves; {@code false} otherwise.
+     */
+    protected boolean canAccessWhileSaving() {
+        return false;
+    }
+
+    /**
+     * Submits a job persisting the data of the block device.
+     * <p>
+     * By default, the data provided by {@link #getSerializationStream(BlockDevice)} is written
+     * to the blob identified by {@link #blobHandle}.
+     *
+     * @param data the block device to persist.
+     * @return the handle of the submitted job, or nothing if there is no data to persist.
+     */
+    protected Optional<BlobStorage.JobHandle> submitSave(final TBlock data) {
+        return getSerializationStream(data).map(stream -> {
+            blobHandle = BlobStorage.validateHandle(blobHandle);
+            blobStorageBytes += getSize();
+            return BlobStorage.submitSave(blobHandle, stream);
+        });
+    }
+
+    /**
+     * Submits a job restoring the data of the block device.
+     * <p>
+     * By default, the blob identified by {@link #blobHandle} is read into the stream provided
+     * by {@link #getDeserializationStream(BlockDevice)}.
+     *
+     * @param data the block device to restore.
+     * @return the handle of the submitted job, or {@code null} if there is no data to restore.
+     */
+    @Nullable
+    protected BlobStorage.JobHandle submitLoad(final TBlock data) {
+        if (blobHandle == null) {
+            return null;
+        }
+
+        final BlobStorage.JobHandle handle = BlobStorage.submitLoad(blobHandle, getDeserializationStream(data));
+        blobStorageBytes += getSize();
+        return handle;
+    }
+
     ///////////////////////////////////////////////////////////////
 
     private boolean allocateDevice(final VMContext context) {
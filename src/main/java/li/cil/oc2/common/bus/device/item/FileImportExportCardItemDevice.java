@@ -32,6 +32,7 @@ import java.util.WeakHashMap;
 
 public final class FileImportExportCardItemDevice extends IdentityProxy<ItemStack> implements RPCDevice, DocumentedDevice, ItemDevice {
     public static final int MAX_TRANSFERRED_FILE_SIZE = 512 * 1024;
+    private static final int READ_IMPORT_FILE_SIZE = 32 * 1024;
 
     private static final String BEGIN_EXPORT_FILE = "beginExportFile";
     private static final String WRITE_EXPORT_FILE = "writeExportFile";
@@ -231,7 +232,7 @@ public final class FileImportExportCardItemDevice extends IdentityProxy<ItemStac
             return new byte[0];
         }
 
-        final byte[] buffer = new byte[512];
+        final byte[] buffer = new byte[READ_IMPORT_FILE_SIZE];
         final int count = importedFile.data.read(buffer);
         if (count <= 0) {
             reset();
@@ -1,9 +1,10 @@
 package li.cil.oc2.common.bus.device.item;
 
+import li.cil.oc2.common.serialization.BlobStorage;
 import li.cil.oc2.common.util.Location;
 import li.cil.oc2.common.util.SoundEvents;
 import li.cil.oc2.common.util.ThrottledSoundEmitter;
-import li.cil.sedna.device.block.ByteBufferBlockDevice;
+import li.cil.oc2.common.vm.FileBackedBlockDevice;
 import net.minecraft.world.item.ItemStack;
 
 import java.io.InputStream;
@@ -12,7 +13,13 @@ import java.time.Duration;
 import java.util.Optional;
 import java.util.function.Supplier;
 
-public final class HardDriveVMDevice extends AbstractBlockDeviceVMDevice<ByteBufferBlockDevice, ItemStack> {
+/**
+ * Hard drive storing its data in a block file in blob storage.
+ * <p>
+ * Data is read from the file on demand, and only blocks written to are written back when the
+ * device is saved. This keeps memory use and save times low for large, mostly untouched drives.
+ */
+public final class HardDriveVMDevice extends AbstractBlockDeviceVMDevice<FileBackedBlockDevice, ItemStack> {
     private final int size;
     private final boolean readonly;
     private final ThrottledSoundEmitter soundEmitter;
@@ -35,18 +42,49 @@ public final class HardDriveVMDevice extends AbstractBlockDeviceVMDevice<ByteBuf
     }
 
     @Override
-    protected ByteBufferBlockDevice createBlockDevice() {
-        return ByteBufferBlockDevice.create(size, readonly);
+    public void unload() {
+        final FileBackedBlockDevice device = data;
+
+        // Writes back pending changes.
+        super.unload();
+
+        if (device != null && blobHandle != null) {
+            BlobStorage.submitUpdate(blobHandle, device::close);
+        }
+    }
+
+    @Override
+    protected FileBackedBlockDevice createBlockDevice() {
+        return new FileBackedBlockDevice(size, readonly);
+    }
+
+    @Override
+    protected Optional<InputStream> getSerializationStream(final FileBackedBlockDevice device) {
+        return Optional.of(device.getInputStream(0));
+    }
+
+    @Override
+    protected OutputStream getDeserializationStream(final FileBackedBlockDevice device) {
+        return device.getOutputStream(0);
+    }
+
+    @Override
+    protected Optional<BlobStorage.JobHandle> submitSave(final FileBackedBlockDevice device) {
+        blobHandle = BlobStorage.validateHandle(blobHandle);
+        blobStorageBytes += (long) device.getDirtyBlockCount() * FileBackedBlockDevice.BLOCK_SIZE;
+        return Optional.of(BlobStorage.submitUpdate(blobHandle, device.prepareWriteBack()));
     }
 
     @Override
-    protected Optional<InputStream> getSerializationStream(final ByteBufferBlockDevice device) {
-        return Optional.of(device.getInputStream());
+    protected BlobStorage.JobHandle submitLoad(final FileBackedBlockDevice device) {
+        blobHandle = BlobStorage.validateHandle(blobHandle);
+        return BlobStorage.submitOpen(blobHandle, device::open);
     }
 
     @Override
-    protected OutputStream getDeserializationStream(final ByteBufferBlockDevice device) {
-        return device.getOutputStream();
+    protected boolean canAccessWhileSaving() {
+        // Blocks being written back are kept until the write completes.
+        return true;
     }
 
     @Override
@@ -5,35 +5,47 @@ import li.cil.oc2.api.bus.device.ItemDevice;
 import li.cil.oc2.api.bus.device.vm.VMDevice;
 import li.cil.oc2.api.bus.device.vm.VMDeviceLoadResult;
 import li.cil.oc2.api.bus.device.vm.context.VMContext;
-import li.cil.oc2.api.bus.device.vm.event.VMResumingRunningEvent;
 import li.cil.oc2.common.bus.device.util.IdentityProxy;
 import li.cil.oc2.common.bus.device.util.OptionalAddress;
 import li.cil.oc2.common.serialization.BlobStorage;
 import li.cil.oc2.common.util.NBTTagIds;
-import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.oc2.common.vm.Allocator;
+import li.cil.oc2.common.vm.CollectPerformanceCountersEvent;
+import li.cil.oc2.common.vm.DirtyPageTrackingMemory;
 import li.cil.sedna.device.memory.Memory;
-import li.cil.sedna.memory.PhysicalMemoryInputStream;
 import li.cil.sedna.memory.PhysicalMemoryOutputStream;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
 import net.minecraft.world.item.ItemStack;
 
+import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @SuppressWarnings("UnstableApiUsage")
 public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDevice, ItemDevice {
     private static final String BLOB_HANDLE_TAG_NAME = "blob";
+    private static final String DELTA_BLOB_HANDLES_TAG_NAME = "deltas";
+    private static final String DELTA_PAGE_COUNT_TAG_NAME = "deltaPages";
     private static final String ADDRESS_TAG_NAME = "address";
 
+    // Once this many deltas were saved since the last full snapshot, write a full snapshot
+    // again, to keep the number of blobs to load small.
+    private static final int MAX_DELTA_COUNT = 32;
+
     ///////////////////////////////////////////////////////////////
 
     private final int size;
     private BlobStorage.JobHandle jobHandle;
-    private PhysicalMemory device;
+    private DirtyPageTrackingMemory device;
+    private long blobStorageBytes;
 
     ///////////////////////////////////////////////////////////////
 
     private final OptionalAddress address = new OptionalAddress();
-    private UUID blobHandle;
+    private UUID blobHandle; // full snapshot of memory
+    private final ArrayList<UUID> deltaBlobHandles = new ArrayList<>(); // pages changed between saves, in save order
+    private int deltaPageCount; // pages in all deltas
 
     ///////////////////////////////////////////////////////////////
 
@@ -58,14 +70,19 @@ public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDe
 
         context.getEventBus().register(this);
 
-        return VMDeviceLoadResult.success();
+        final VMDeviceLoadResult result = VMDeviceLoadResult.success();
+        if (jobHandle != null) {
+            result.withPendingInitialization(jobHandle.toCompletableFuture());
+        }
+        return result;
     }
 
     @Override
     public void unload() {
-        // Memory is volatile, so free up our persisted blob when device is unloaded.
+        // Memory is volatile, so free up our persisted blobs when device is unloaded.
         BlobStorage.freeHandle(blobHandle);
         blobHandle = null;
+        freeDeltaBlobs();
         jobHandle = null;
 
         device = null;
@@ -73,8 +90,8 @@ public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDe
     }
 
     @Subscribe
-    public void handleResumingRunningEvent(final VMResumingRunningEvent event) {
-        awaitStorageOperation();
+    public void handleCollectPerformanceCountersEvent(final CollectPerformanceCountersEvent event) {
+        event.addBlobStorageBytes(blobStorageBytes);
     }
 
     @Override
@@ -82,10 +99,20 @@ public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDe
         final CompoundTag tag = new CompoundTag();
 
         if (device != null) {
-            blobHandle = BlobStorage.validateHandle(blobHandle);
+            saveMemory();
+        }
+        if (blobHandle != null) {
             tag.putUUID(BLOB_HANDLE_TAG_NAME, blobHandle);
-
-            jobHandle = BlobStorage.submitSave(blobHandle, new PhysicalMemoryInputStream(device));
+        }
+        if (!deltaBlobHandles.isEmpty()) {
+            final ListTag deltasTag = new ListTag();
+            for (final UUID deltaBlobHandle : deltaBlobHandles) {
+                final CompoundTag deltaTag = new CompoundTag();
+                deltaTag.putUUID(BLOB_HANDLE_TAG_NAME, deltaBlobHandle);
+                deltasTag.add(deltaTag);
+            }
+            tag.put(DELTA_BLOB_HANDLES_TAG_NAME, deltasTag);
+            tag.putInt(DELTA_PAGE_COUNT_TAG_NAME, deltaPageCount);
         }
         if (address.isPresent()) {
             tag.putLong(ADDRESS_TAG_NAME, address.getAsLong());
@@ -99,6 +126,15 @@ public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDe
         if (tag.hasUUID(BLOB_HANDLE_TAG_NAME)) {
             blobHandle = tag.getUUID(BLOB_HANDLE_TAG_NAME);
         }
+        deltaBlobHandles.clear();
+        final ListTag deltasTag = tag.getList(DELTA_BLOB_HANDLES_TAG_NAME, NBTTagIds.TAG_COMPOUND);
+        for (int i = 0; i < deltasTag.size(); i++) {
+            final CompoundTag deltaTag = deltasTag.getCompound(i);
+            if (deltaTag.hasUUID(BLOB_HANDLE_TAG_NAME)) {
+                deltaBlobHandles.add(deltaTag.getUUID(BLOB_HANDLE_TAG_NAME));
+            }
+        }
+        deltaPageCount = tag.getInt(DELTA_PAGE_COUNT_TAG_NAME);
         if (tag.contains(ADDRESS_TAG_NAME, NBTTagIds.TAG_LONG)) {
             address.set(tag.getLong(ADDRESS_TAG_NAME));
         }
@@ -111,21 +147,86 @@ public final class MemoryDevice extends IdentityProxy<ItemStack> implements VMDe
             return false;
         }
 
-        device = Memory.create(size);
+        device = new DirtyPageTrackingMemory(Memory.create(size));
 
         return true;
     }
 
+    private void saveMemory() {
+        // Nothing changed since the last save, the blobs we have are still up-to-date.
+        if (blobHandle != null && !device.isModified()) {
+            return;
+        }
+
+        // Memory is saved from a copy-on-write snapshot taken now, while the virtual machine is
+        // paused, so neither it nor the server need to wait for saves to complete. Snapshots of
+        // earlier saves may still be written, each snapshot is saved to its own blob, so they
+        // do not have to wait for each other. Only memory is saved asynchronously, the state of
+        // the CPU and the other devices is small and still serialized while the worker thread is
+        // joined, so it matches this snapshot.
+        device.clearModified();
+
+        final boolean isDelta = blobHandle != null &&
+                                deltaBlobHandles.size() < MAX_DELTA_COUNT &&
+                                !device.shouldWriteFullSnapshot(deltaPageCount);
+
+        // Pages written while the snapshot is read are copied. If we cannot reserve memory for
+        // those copies, the virtual machine waits for pages to be saved before writing them.
+        final long copyLimit = device.getSnapshotCopyLimit(isDelta);
+        final UUID snapshotAllocationHandle = Allocator.createHandle();
+        final boolean canCopyOnWrite = copyLimit <= Integer.MAX_VALUE && Allocator.claimMemory(snapshotAllocationHandle, (int) copyLimit);
+        final long snapshotCopyLimit = canCopyOnWrite ? copyLimit : 0;
+
+        if (isDelta) {
+            // Each delta only holds the pages changed since the previous save, so the amount
+            // of data written depends on how much memory changed since then.
+            final UUID deltaBlobHandle = BlobStorage.allocateHandle();
+            deltaBlobHandles.add(deltaBlobHandle);
+            deltaPageCount += device.getDirtyPageCount();
+            jobHandle = BlobStorage.submitSave(deltaBlobHandle, device.getDirtyPageInputStream(snapshotCopyLimit));
+            blobStorageBytes += device.getDirtyPageDataSize();
+        } else {
+            // Saving to the previous blob would have to wait for jobs still using it. The full
+            // snapshot contains all changes, so the previous blobs are freed once it is saved.
+            final ArrayList<UUID> replacedBlobHandles = new ArrayList<>(deltaBlobHandles);
+            replacedBlobHandles.add(blobHandle);
+            deltaBlobHandles.clear();
+            deltaPageCount = 0;
+
+            blobHandle = BlobStorage.allocateHandle();
+            jobHandle = BlobStorage.submitSave(blobHandle, device.getSnapshotInputStream(snapshotCopyLimit));
+            jobHandle.toCompletableFuture().thenRun(() -> replacedBlobHandles.forEach(BlobStorage::freeHandle));
+            blobStorageBytes += size;
+        }
+
+        // Pages written from here on go into the next save, the snapshot keeps the current contents.
+        device.clearDirtyPages();
+
+        if (canCopyOnWrite) {
+            jobHandle.toCompletableFuture().whenComplete((unused, error) -> Allocator.freeMemory(snapshotAllocationHandle));
+        }
+    }
+
     private void loadPersistedState() {
         if (blobHandle != null) {
-            jobHandle = BlobStorage.submitLoad(blobHandle, new PhysicalMemoryOutputStream(device));
+            jobHandle = BlobStorage.submitLoad(blobHandle, new PhysicalMemoryOutputStream(device.getBackingMemory()));
+            blobStorageBytes += size;
+
+            // Changes must be applied after the full snapshot and earlier changes have been loaded.
+            CompletableFuture<Void> load = jobHandle.toCompletableFuture();
+            for (final UUID deltaBlobHandle : deltaBlobHandles) {
+                load = load.thenCompose(unused ->
+                        BlobStorage.submitLoad(deltaBlobHandle, device.getDirtyPageOutputStream()).toCompletableFuture());
+            }
+            jobHandle = BlobStorage.JobHandle.of(load);
         }
     }
 
-    private void awaitStorageOperation() {
-        if (jobHandle != null) {
-            jobHandle.await();
-            jobHandle = null;
+    private void freeDeltaBlobs() {
+        for (final UUID deltaBlobHandle : deltaBlobHandles) {
+            BlobStorage.freeHandle(deltaBlobHandle);
         }
+        deltaBlobHandles.clear();
+        deltaPageCount = 0;
     }
 }
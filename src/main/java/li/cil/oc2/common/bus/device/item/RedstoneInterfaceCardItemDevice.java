@@ -6,6 +6,9 @@ import li.cil.oc2.api.bus.device.object.DocumentedDevice;
 import li.cil.oc2.api.bus.device.object.ObjectDevice;
 import li.cil.oc2.api.bus.device.object.Parameter;
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCEventEmitter;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.bus.device.rpc.RPCMethod;
 import li.cil.oc2.api.capabilities.RedstoneEmitter;
 import li.cil.oc2.common.Constants;
@@ -25,10 +28,11 @@ import net.minecraftforge.common.capabilities.ICapabilityProvider;
 import net.minecraftforge.common.util.Optional;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 
-public final class RedstoneInterfaceCardItemDevice extends IdentityProxy<ItemStack> implements RPCDevice, DocumentedDevice, ItemDevice, ICapabilityProvider {
+public final class RedstoneInterfaceCardItemDevice extends IdentityProxy<ItemStack> implements RPCDevice, RPCEventSource, DocumentedDevice, ItemDevice, ICapabilityProvider {
     private static final String OUTPUT_TAG_NAME = "output";
 
     private static final String GET_REDSTONE_INPUT = "getRedstoneInput";
@@ -36,6 +40,7 @@ public final class RedstoneInterfaceCardItemDevice extends IdentityProxy<ItemSta
     private static final String SET_REDSTONE_OUTPUT = "setRedstoneOutput";
     private static final String SIDE = "side";
     private static final String VALUE = "value";
+    private static final String REDSTONE_INPUT_EVENT = "redstone_input";
 
     ///////////////////////////////////////////////////////////////////
 
@@ -43,6 +48,8 @@ public final class RedstoneInterfaceCardItemDevice extends IdentityProxy<ItemSta
     private final ObjectDevice device;
     private final RedstoneEmitter[] capabilities;
     private final byte[] output = new byte[Constants.BLOCK_FACE_COUNT];
+    private final byte[] input = new byte[Constants.BLOCK_FACE_COUNT]; // last input levels, for change events
+    private final RPCEventEmitter events = new RPCEventEmitter();
 
     ///////////////////////////////////////////////////////////////////
 
@@ -70,6 +77,40 @@ public final class RedstoneInterfaceCardItemDevice extends IdentityProxy<ItemSta
         return Optional.empty();
     }
 
+    public void handleNeighborChanged() {
+        if (!events.hasListeners()) {
+            return;
+        }
+
+        for (final Direction side : Constants.DIRECTIONS) {
+            final byte value = (byte) getRedstoneInput(side);
+            if (value != input[side.get3DDataValue()]) {
+                input[side.get3DDataValue()] = value;
+
+                final HashMap<String, Object> data = new HashMap<>();
+                data.put(SIDE, side);
+                data.put(VALUE, value);
+                events.emit(REDSTONE_INPUT_EVENT, data);
+            }
+        }
+    }
+
+    @Override
+    public void addEventListener(final RPCEventListener listener) {
+        if (!events.hasListeners()) {
+            // Start from the current levels, so we only report actual changes.
+            for (final Direction side : Constants.DIRECTIONS) {
+                input[side.get3DDataValue()] = (byte) getRedstoneInput(side);
+            }
+        }
+        events.addEventListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(final RPCEventListener listener) {
+        events.removeEventListener(listener);
+    }
+
     @Override
     public CompoundTag serializeNBT() {
         final CompoundTag tag = new CompoundTag();
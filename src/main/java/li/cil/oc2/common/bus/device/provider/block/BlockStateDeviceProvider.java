@@ -9,8 +9,10 @@ import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.state.BlockState;
 
+import javax.annotation.Nullable;
 import java.util.Optional;
 
 public final class BlockStateDeviceProvider extends AbstractBlockDeviceProvider {
@@ -32,4 +34,9 @@ public final class BlockStateDeviceProvider extends AbstractBlockDeviceProvider
 
         return Optional.of(new ObjectDevice(block));
     }
+
+    @Override
+    public boolean canProvideDevice(final Block block, @Nullable final BlockEntityType<?> blockEntityType) {
+        return !block.is(Blocks.AIR) && Callbacks.hasMethods(block);
+    }
 }
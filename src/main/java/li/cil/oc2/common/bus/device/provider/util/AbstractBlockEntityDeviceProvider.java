@@ -3,12 +3,14 @@ package li.cil.oc2.common.bus.device.provider.util;
 import li.cil.oc2.api.bus.device.Device;
 import li.cil.oc2.api.bus.device.provider.BlockDeviceQuery;
 import li.cil.oc2.common.util.WorldUtils;
+import net.minecraft.world.level.block.Block;
 import net.minecraft.tileentity.BlockEntity;
 import net.minecraft.tileentity.BlockEntityType;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraftforge.common.util.Optional;
 
+import javax.annotation.Nullable;
 import java.util.Optional;
 
 public abstract class AbstractBlockEntityDeviceProvider<T extends BlockEntity> extends AbstractBlockDeviceProvider {
@@ -41,6 +43,15 @@ public abstract class AbstractBlockEntityDeviceProvider<T extends BlockEntity> e
         return getBlockDevice(query, (T) tileEntity);
     }
 
+    @Override
+    public boolean canProvideDevice(final Block block, @Nullable final BlockEntityType<?> blockEntityType) {
+        if (blockEntityType == null) {
+            return false;
+        }
+
+        return tileEntityType == null || blockEntityType == tileEntityType;
+    }
+
     ///////////////////////////////////////////////////////////////////
 
     protected abstract Optional<Device> getBlockDevice(final BlockDeviceQuery query, final T tileEntity);
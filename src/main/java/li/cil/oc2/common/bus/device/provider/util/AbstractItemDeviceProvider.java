@@ -5,8 +5,8 @@ import li.cil.oc2.api.bus.device.DeviceTypes;
 import li.cil.oc2.api.bus.device.ItemDevice;
 import li.cil.oc2.api.bus.device.provider.ItemDeviceProvider;
 import li.cil.oc2.api.bus.device.provider.ItemDeviceQuery;
-import net.minecraft.item.Item;
-import net.minecraft.item.ItemStack;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
 import net.minecraftforge.fml.RegistryObject;
 import net.minecraftforge.registries.ForgeRegistryEntry;
 
@@ -51,6 +51,11 @@ public abstract class AbstractItemDeviceProvider extends ForgeRegistryEntry<Item
         return matches(query) ? getItemDeviceEnergyConsumption(query) : 0;
     }
 
+    @Override
+    public boolean canProvideDevice(final Item item) {
+        return predicate.test(item);
+    }
+
     ///////////////////////////////////////////////////////////////////
 
     protected boolean matches(final ItemDeviceQuery query) {
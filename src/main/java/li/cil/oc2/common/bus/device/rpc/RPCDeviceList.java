@@ -1,16 +1,21 @@
 package li.cil.oc2.common.bus.device.rpc;
 
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.bus.device.rpc.RPCMethod;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
-public final class RPCDeviceList implements RPCDevice {
+public final class RPCDeviceList implements RPCDevice, RPCEventSource {
     private final ArrayList<RPCDevice> devices;
+    private List<String> typeNames;
+    private List<RPCMethod> methods;
 
     ///////////////////////////////////////////////////////////////////
 
@@ -20,19 +25,43 @@ public final class RPCDeviceList implements RPCDevice {
 
     @Override
     public List<String> getTypeNames() {
-        return devices.stream()
-                .map(RPCDevice::getTypeNames)
-                .flatMap(Collection::stream)
-                .distinct()
-                .collect(Collectors.toList());
+        if (typeNames == null) {
+            typeNames = Collections.unmodifiableList(devices.stream()
+                    .map(RPCDevice::getTypeNames)
+                    .flatMap(Collection::stream)
+                    .distinct()
+                    .collect(Collectors.toList()));
+        }
+        return typeNames;
     }
 
     @Override
     public List<RPCMethod> getMethods() {
-        return devices.stream()
-                .map(RPCDevice::getMethods)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
+        if (methods == null) {
+            methods = Collections.unmodifiableList(devices.stream()
+                    .map(RPCDevice::getMethods)
+                    .flatMap(Collection::stream)
+                    .collect(Collectors.toList()));
+        }
+        return methods;
+    }
+
+    @Override
+    public void addEventListener(final RPCEventListener listener) {
+        for (final RPCDevice device : devices) {
+            if (device instanceof RPCEventSource) {
+                ((RPCEventSource) device).addEventListener(listener);
+            }
+        }
+    }
+
+    @Override
+    public void removeEventListener(final RPCEventListener listener) {
+        for (final RPCDevice device : devices) {
+            if (device instanceof RPCEventSource) {
+                ((RPCEventSource) device).removeEventListener(listener);
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,161 @@
+package li.cil.oc2.common.bus.device.rpc;
+
+import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCMethod;
+import li.cil.oc2.api.bus.device.rpc.RPCParameter;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the methods of a single device by name and parameter count.
+ * <p>
+ * Built once when the devices on a bus change, so method invocations neither have to
+ * scan the method list nor resolve overloads by parameter count on every call.
+ */
+public final class RPCMethodDispatchTable {
+    private static final Entry[] NO_ENTRIES = {};
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final HashMap<String, Overloads> overloadsByName;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private RPCMethodDispatchTable(final HashMap<String, Overloads> overloadsByName) {
+        this.overloadsByName = overloadsByName;
+    }
+
+    public static RPCMethodDispatchTable of(final RPCDevice device, final RPCParameterDecoder.Factory decoders) {
+        final HashMap<String, ArrayList<Entry>> entriesByName = new HashMap<>();
+        for (final RPCMethod method : device.getMethods()) {
+            final RPCParameter[] parameters = method.getParameters();
+            final RPCParameterDecoder[] parameterDecoders = new RPCParameterDecoder[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                parameterDecoders[i] = decoders.get(parameters[i].getType());
+            }
+
+            entriesByName
+                    .computeIfAbsent(method.getName(), unused -> new ArrayList<>())
+                    .add(new Entry(method, parameterDecoders));
+        }
+
+        final HashMap<String, Overloads> overloadsByName = new HashMap<>();
+        for (final Map.Entry<String, ArrayList<Entry>> entry : entriesByName.entrySet()) {
+            overloadsByName.put(entry.getKey(), new Overloads(entry.getValue()));
+        }
+
+        return new RPCMethodDispatchTable(overloadsByName);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns all overloads of the method with the specified name.
+     *
+     * @param name the name of the method.
+     * @return the overloads of the method, or {@code null} if there is no such method.
+     */
+    @Nullable
+    public Overloads get(final String name) {
+        return overloadsByName.get(name);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static final class Entry {
+        public final RPCMethod method;
+        public final RPCParameterDecoder[] decoders;
+
+        private Entry(final RPCMethod method, final RPCParameterDecoder[] decoders) {
+            this.method = method;
+            this.decoders = decoders;
+        }
+    }
+
+    public static final class Overloads {
+        private final Entry[][] entriesByParameterCount;
+        private final Entry[] fallbackByParameterCount;
+
+        private Overloads(final List<Entry> entries) {
+            int maxParameterCount = 0;
+            for (final Entry entry : entries) {
+                maxParameterCount = Math.max(maxParameterCount, entry.decoders.length);
+            }
+
+            entriesByParameterCount = new Entry[maxParameterCount + 1][];
+            for (int count = 0; count <= maxParameterCount; count++) {
+                final ArrayList<Entry> matches = new ArrayList<>();
+                for (final Entry entry : entries) {
+                    if (entry.decoders.length == count) {
+                        matches.add(entry);
+                    }
+                }
+                entriesByParameterCount[count] = matches.toArray(NO_ENTRIES);
+            }
+
+            // Calls with fewer parameters than a method takes are allowed if the missing
+            // trailing parameters can be null, but only if that method is unambiguous.
+            fallbackByParameterCount = new Entry[maxParameterCount + 1];
+            for (int count = 0; count <= maxParameterCount; count++) {
+                Entry fallback = null;
+                int fallbackCount = 0;
+                for (final Entry entry : entries) {
+                    if (canTrailingParametersBeImplicitlyNull(entry.method.getParameters(), count)) {
+                        fallback = entry;
+                        fallbackCount++;
+                    }
+                }
+                fallbackByParameterCount[count] = fallbackCount == 1 ? fallback : null;
+            }
+        }
+
+        /**
+         * Returns the overloads taking exactly the specified number of parameters.
+         *
+         * @param parameterCount the number of parameters.
+         * @return the overloads taking the specified number of parameters.
+         */
+        public Entry[] get(final int parameterCount) {
+            if (parameterCount < entriesByParameterCount.length) {
+                return entriesByParameterCount[parameterCount];
+            } else {
+                return NO_ENTRIES;
+            }
+        }
+
+        /**
+         * Returns the single overload taking more than the specified number of parameters,
+         * where all additional parameters may be {@code null}.
+         *
+         * @param parameterCount the number of parameters.
+         * @return the overload to fall back to, or {@code null} if there is no unique one.
+         */
+        @Nullable
+        public Entry getFallback(final int parameterCount) {
+            if (parameterCount < fallbackByParameterCount.length) {
+                return fallbackByParameterCount[parameterCount];
+            } else {
+                return null;
+            }
+        }
+
+        private static boolean canTrailingParametersBeImplicitlyNull(final RPCParameter[] parametersSpec, final int parameterCount) {
+            if (parameterCount >= parametersSpec.length) {
+                return false;
+            }
+
+            for (int i = parameterCount; i < parametersSpec.length; i++) {
+                final Class<?> type = parametersSpec[i].getType();
+                if (type.isPrimitive()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
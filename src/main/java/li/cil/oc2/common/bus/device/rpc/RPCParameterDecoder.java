@@ -0,0 +1,102 @@
+package li.cil.oc2.common.bus.device.rpc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import li.cil.oc2.common.serialization.MessagePackReader;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * Decodes values of a single parameter type from JSON or MessagePack.
+ * <p>
+ * Decoders are looked up once per parameter type, so that decoding a parameter in an
+ * invocation does not have to look up type adapters again.
+ */
+public final class RPCParameterDecoder {
+    private final Class<?> type;
+    private final TypeAdapter<?> jsonAdapter;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private RPCParameterDecoder(final Class<?> type, final TypeAdapter<?> jsonAdapter) {
+        this.type = type;
+        this.jsonAdapter = jsonAdapter;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Nullable
+    public Object decode(final JsonElement value) {
+        final Object result = jsonAdapter.fromJsonTree(value);
+        // Gson silently truncates these, check them the same way as binary values.
+        if (result instanceof Short) {
+            checkRange(value.getAsLong(), Short.MIN_VALUE, Short.MAX_VALUE);
+        } else if (result instanceof Byte) {
+            checkRange(value.getAsLong(), Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        return result;
+    }
+
+    @Nullable
+    public Object decode(final MessagePackReader reader) {
+        // Read common types directly, only go through Gson for anything more complex, so
+        // that custom type adapters are honored.
+        if (reader.tryReadNil()) {
+            if (type.isPrimitive()) {
+                throw new IllegalArgumentException();
+            }
+            return null;
+        }
+
+        if (type == boolean.class || type == Boolean.class) {
+            return reader.readBoolean();
+        } else if (type == int.class || type == Integer.class) {
+            return (int) checkRange(reader.readLong(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+        } else if (type == long.class || type == Long.class) {
+            return reader.readLong();
+        } else if (type == short.class || type == Short.class) {
+            return (short) checkRange(reader.readLong(), Short.MIN_VALUE, Short.MAX_VALUE);
+        } else if (type == byte.class || type == Byte.class) {
+            return (byte) checkRange(reader.readLong(), Byte.MIN_VALUE, Byte.MAX_VALUE);
+        } else if (type == double.class || type == Double.class) {
+            return reader.readDouble();
+        } else if (type == float.class || type == Float.class) {
+            return (float) reader.readDouble();
+        } else if (type == String.class) {
+            return reader.readString();
+        } else {
+            return jsonAdapter.fromJsonTree(reader.readJsonElement());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static long checkRange(final long value, final long min, final long max) {
+        // Reject values that do not fit instead of silently truncating them, so another
+        // overload may match.
+        if (value < min || value > max) {
+            throw new ArithmeticException("value out of range");
+        }
+        return value;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates and caches decoders for parameter types using the type adapters of a {@link Gson} instance.
+     */
+    public static final class Factory {
+        private final Gson gson;
+        private final HashMap<Class<?>, RPCParameterDecoder> decoders = new HashMap<>();
+
+        public Factory(final Gson gson) {
+            this.gson = gson;
+        }
+
+        public RPCParameterDecoder get(final Class<?> type) {
+            return decoders.computeIfAbsent(type, t -> new RPCParameterDecoder(t, gson.getAdapter(t)));
+        }
+    }
+}
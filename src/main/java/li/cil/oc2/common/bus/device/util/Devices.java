@@ -1,5 +1,6 @@
 package li.cil.oc2.common.bus.device.util;
 
+import li.cil.oc2.api.API;
 import li.cil.oc2.api.bus.device.Device;
 import li.cil.oc2.api.bus.device.DeviceType;
 import li.cil.oc2.api.bus.device.ItemDevice;
@@ -8,21 +9,46 @@ import li.cil.oc2.api.bus.device.provider.BlockDeviceQuery;
 import li.cil.oc2.api.bus.device.provider.ItemDeviceProvider;
 import li.cil.oc2.api.bus.device.provider.ItemDeviceQuery;
 import li.cil.oc2.common.bus.device.provider.Providers;
+import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
+import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.PackType;
+import net.minecraft.server.packs.resources.ResourceManager;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.entity.BlockEntity;
-import net.minecraftforge.registries.IForgeRegistry;
+import net.minecraft.world.level.block.entity.BlockEntityType;
 import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Objects.requireNonNull;
 
 public final class Devices {
+    // Providers that may return a device for a block or item type, so lookups only need to
+    // query those. Providers declare this via their canProvideDevice methods.
+    private static final ConcurrentHashMap<BlockProviderKey, List<BlockDeviceProvider>> BLOCK_DEVICE_PROVIDERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Item, List<ItemDeviceProvider>> ITEM_DEVICE_PROVIDERS = new ConcurrentHashMap<>();
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static void initialize() {
+        ResourceManagerHelper.get(PackType.SERVER_DATA).registerReloadListener(new ProviderCacheReloadListener());
+    }
+
+    public static void invalidateProviderCache() {
+        BLOCK_DEVICE_PROVIDERS.clear();
+        ITEM_DEVICE_PROVIDERS.clear();
+    }
+
     public static BlockDeviceQuery makeQuery(final BlockEntity tileEntity, @Nullable final Direction side) {
         final Level world = requireNonNull(tileEntity.getLevel());
         final BlockPos pos = tileEntity.getBlockPos();
@@ -46,9 +72,8 @@ public final class Devices {
     }
 
     public static List<Optional<BlockDeviceInfo>> getDevices(final BlockDeviceQuery query) {
-        final IForgeRegistry<BlockDeviceProvider> registry = Providers.BLOCK_DEVICE_PROVIDER_REGISTRY.get();
         final ArrayList<Optional<BlockDeviceInfo>> devices = new ArrayList<>();
-        for (final BlockDeviceProvider provider : registry.getValues()) {
+        for (final BlockDeviceProvider provider : getProviders(query)) {
             final Optional<Device> device = provider.getDevice(query);
             if (device.isPresent()) {
                 final Optional<BlockDeviceInfo> info = device.map(d -> new BlockDeviceInfo(provider, d));
@@ -60,9 +85,8 @@ public final class Devices {
     }
 
     public static List<ItemDeviceInfo> getDevices(final ItemDeviceQuery query) {
-        final IForgeRegistry<ItemDeviceProvider> registry = Providers.ITEM_DEVICE_PROVIDER_REGISTRY.get();
         final ArrayList<ItemDeviceInfo> devices = new ArrayList<>();
-        for (final ItemDeviceProvider provider : registry.getValues()) {
+        for (final ItemDeviceProvider provider : getProviders(query)) {
             final Optional<ItemDevice> device = provider.getDevice(query);
             device.ifPresent(d -> devices.add(new ItemDeviceInfo(provider, d, provider.getEnergyConsumption(query))));
         }
@@ -70,9 +94,8 @@ public final class Devices {
     }
 
     public static Collection<DeviceType> getDeviceTypes(final ItemDeviceQuery query) {
-        final IForgeRegistry<ItemDeviceProvider> registry = Providers.ITEM_DEVICE_PROVIDER_REGISTRY.get();
         final HashSet<DeviceType> deviceTypes = new HashSet<>();
-        for (final ItemDeviceProvider provider : registry.getValues()) {
+        for (final ItemDeviceProvider provider : getProviders(query)) {
             final Optional<DeviceType> device = provider.getDeviceType(query);
             device.ifPresent(deviceTypes::add);
         }
@@ -80,9 +103,8 @@ public final class Devices {
     }
 
     public static int getEnergyConsumption(final ItemDeviceQuery query) {
-        final IForgeRegistry<ItemDeviceProvider> registry = Providers.ITEM_DEVICE_PROVIDER_REGISTRY.get();
         long accumulator = 0;
-        for (final ItemDeviceProvider provider : registry.getValues()) {
+        for (final ItemDeviceProvider provider : getProviders(query)) {
             accumulator += Math.max(0, provider.getEnergyConsumption(query));
         }
         if (accumulator > Integer.MAX_VALUE) {
@@ -94,6 +116,83 @@ public final class Devices {
 
     ///////////////////////////////////////////////////////////////////
 
+    private static Collection<BlockDeviceProvider> getProviders(final BlockDeviceQuery query) {
+        final Level world = query.getLevel();
+        final BlockPos pos = query.getQueryPosition();
+
+        // Don't load chunks just to find out which providers to skip, let providers decide.
+        final ChunkPos chunkPos = new ChunkPos(pos);
+        if (!world.hasChunk(chunkPos.x, chunkPos.z)) {
+            return Providers.BLOCK_DEVICE_PROVIDER_REGISTRY.get().getValues();
+        }
+
+        final Block block = world.getBlockState(pos).getBlock();
+        final BlockEntity blockEntity = world.getBlockEntity(pos);
+        final BlockEntityType<?> blockEntityType = blockEntity != null ? blockEntity.getType() : null;
+
+        return BLOCK_DEVICE_PROVIDERS.computeIfAbsent(new BlockProviderKey(block, blockEntityType), key -> {
+            final ArrayList<BlockDeviceProvider> providers = new ArrayList<>();
+            for (final BlockDeviceProvider provider : Providers.BLOCK_DEVICE_PROVIDER_REGISTRY.get().getValues()) {
+                if (provider.canProvideDevice(key.block, key.blockEntityType)) {
+                    providers.add(provider);
+                }
+            }
+            return providers;
+        });
+    }
+
+    private static Collection<ItemDeviceProvider> getProviders(final ItemDeviceQuery query) {
+        return ITEM_DEVICE_PROVIDERS.computeIfAbsent(query.getItemStack().getItem(), item -> {
+            final ArrayList<ItemDeviceProvider> providers = new ArrayList<>();
+            for (final ItemDeviceProvider provider : Providers.ITEM_DEVICE_PROVIDER_REGISTRY.get().getValues()) {
+                if (provider.canProvideDevice(item)) {
+                    providers.add(provider);
+                }
+            }
+            return providers;
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    // Providers may depend on data, e.g. tags, so the cache is cleared whenever data is reloaded.
+    private static final class ProviderCacheReloadListener implements SimpleSynchronousResourceReloadListener {
+        private static final ResourceLocation ID = new ResourceLocation(API.MOD_ID, "device_provider_cache");
+
+        @Override
+        public ResourceLocation getFabricId() {
+            return ID;
+        }
+
+        @Override
+        public void onResourceManagerReload(final ResourceManager resourceManager) {
+            invalidateProviderCache();
+        }
+    }
+
+    private static final class BlockProviderKey {
+        public final Block block;
+        @Nullable public final BlockEntityType<?> blockEntityType;
+
+        public BlockProviderKey(final Block block, @Nullable final BlockEntityType<?> blockEntityType) {
+            this.block = block;
+            this.blockEntityType = blockEntityType;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final BlockProviderKey that = (BlockProviderKey) o;
+            return block == that.block && blockEntityType == that.blockEntityType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(block, blockEntityType);
+        }
+    }
+
     private static class BlockQuery implements BlockDeviceQuery {
         private final Level world;
         private final BlockPos pos;
@@ -0,0 +1,80 @@
+package li.cil.oc2.common.command;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import li.cil.oc2.common.util.Location;
+import li.cil.oc2.common.vm.AbstractVirtualMachine;
+import li.cil.oc2.common.vm.VMPerformanceCounters;
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.TextComponent;
+import net.minecraft.server.level.ServerLevel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+public final class VMCommands {
+    private static final int DEFAULT_COUNT = 10;
+    private static final int OPERATOR_PERMISSION_LEVEL = 2;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static void initialize() {
+        CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> register(dispatcher));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static void register(final CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(Commands.literal("oc2")
+                .requires(source -> source.hasPermission(OPERATOR_PERMISSION_LEVEL))
+                .then(Commands.literal("top")
+                        .executes(context -> listMostExpensive(context.getSource(), DEFAULT_COUNT))
+                        .then(Commands.argument("count", IntegerArgumentType.integer(1))
+                                .executes(context -> listMostExpensive(context.getSource(), IntegerArgumentType.getInteger(context, "count"))))));
+    }
+
+    private static int listMostExpensive(final CommandSourceStack source, final int count) {
+        final ServerLevel level = source.getLevel();
+
+        final ArrayList<Entry> entries = new ArrayList<>();
+        for (final AbstractVirtualMachine virtualMachine : AbstractVirtualMachine.getRunningVirtualMachines()) {
+            final Optional<Location> location = virtualMachine.getLocation();
+            if (location.isPresent() && location.get().world == level) {
+                entries.add(new Entry(location.get().pos, virtualMachine.getPerformanceCounters()));
+            }
+        }
+
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.counters.runTimeLastTickInNanos).reversed());
+
+        final List<Entry> topEntries = entries.subList(0, Math.min(count, entries.size()));
+        source.sendSuccess(new TextComponent(String.format("%d running computers, top %d by run time:", entries.size(), topEntries.size())), false);
+        for (final Entry entry : topEntries) {
+            final VMPerformanceCounters counters = entry.counters;
+            source.sendSuccess(new TextComponent(String.format("[%d, %d, %d] %.2f ms/tick, %d/%d cycles, %d rpc msgs, %d energy",
+                    entry.pos.getX(), entry.pos.getY(), entry.pos.getZ(),
+                    counters.runTimeLastTickInNanos / 1_000_000.0,
+                    counters.cycles, counters.cycleLimit,
+                    counters.rpcMessagesReceived,
+                    counters.energyConsumed)), false);
+        }
+
+        return topEntries.size();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static final class Entry {
+        public final BlockPos pos;
+        public final VMPerformanceCounters counters;
+
+        private Entry(final BlockPos pos, final VMPerformanceCounters counters) {
+            this.pos = pos;
+            this.counters = counters;
+        }
+    }
+}
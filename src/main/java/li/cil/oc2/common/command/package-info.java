@@ -0,0 +1 @@
+package li.cil.oc2.common.command;
\ No newline at end of file
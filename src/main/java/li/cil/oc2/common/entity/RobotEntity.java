@@ -8,6 +8,9 @@ import li.cil.oc2.api.bus.device.object.Callback;
 import li.cil.oc2.api.bus.device.object.ObjectDevice;
 import li.cil.oc2.api.bus.device.object.Parameter;
 import li.cil.oc2.api.bus.device.provider.ItemDeviceQuery;
+import li.cil.oc2.api.bus.device.rpc.RPCEventEmitter;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.capabilities.Robot;
 import li.cil.oc2.common.Config;
 import li.cil.oc2.common.Constants;
@@ -26,6 +29,7 @@ import li.cil.oc2.common.network.Network;
 import li.cil.oc2.common.network.message.*;
 import li.cil.oc2.common.serialization.NBTSerialization;
 import li.cil.oc2.common.serialization.TagSerialization;
+import li.cil.oc2.common.util.Location;
 import li.cil.oc2.common.util.NBTTagIds;
 import li.cil.oc2.common.util.NBTUtils;
 import li.cil.oc2.common.util.TerminalUtils;
@@ -95,6 +99,8 @@ import org.jetbrains.annotations.Nullable;
 import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import static li.cil.oc2.common.Constants.*;
@@ -143,7 +149,7 @@ public final class RobotEntity extends Entity implements Robot {
         this.blocksBuilding = true;
         setNoGravity(true);
 
-        final CommonDeviceBusController busController = new CommonDeviceBusController(busElement, Config.robotEnergyPerTick);
+        final CommonDeviceBusController busController = new CommonDeviceBusController(busElement, Config.maxBusElementCount, Config.robotEnergyPerTick);
         virtualMachine = new RobotVirtualMachine(busController);
         virtualMachine.state.builtinDevices.rtcMinecraft.setWorld(world);
 
@@ -593,6 +599,8 @@ public final class RobotEntity extends Entity implements Robot {
 
     private static final class RobotActionProcessorResult {
         private static final String ACTION_ID_TAG_NAME = "action_id";
+        private static final String ACTION_ID_EVENT_NAME = "actionId";
+        private static final String RESULT_EVENT_NAME = "result";
         private static final String RESULT_TAG_NAME = "result";
 
         public int actionId;
@@ -607,6 +615,13 @@ public final class RobotEntity extends Entity implements Robot {
             deserialize(tag);
         }
 
+        public Map<String, Object> toEventData() {
+            final HashMap<String, Object> data = new HashMap<>();
+            data.put(ACTION_ID_EVENT_NAME, actionId);
+            data.put(RESULT_EVENT_NAME, result);
+            return data;
+        }
+
         public CompoundTag serialize() {
             final CompoundTag tag = new CompoundTag();
 
@@ -627,11 +642,14 @@ public final class RobotEntity extends Entity implements Robot {
         private static final String ACTION_TAG_NAME = "action";
         private static final String RESULTS_TAG_NAME = "results";
         private static final String LAST_ACTION_ID_TAG_NAME = "last_action_id";
+        private static final String ACTION_COMPLETE_EVENT = "action_complete";
 
         private final Queue<AbstractRobotAction> queue = new ArrayDeque<>(MAX_QUEUED_ACTIONS - 1);
         @Nullable private AbstractRobotAction action;
 
         private final Queue<RobotActionProcessorResult> results = new ArrayDeque<>(MAX_QUEUED_RESULTS);
+        private final HashMap<Integer, List<CompletableFuture<RobotActionResult>>> resultFutures = new HashMap<>(); // guarded by results
+        private final RPCEventEmitter events = new RPCEventEmitter();
         private int lastActionId;
 
         public boolean hasQueuedActions() {
@@ -662,7 +680,17 @@ public final class RobotEntity extends Entity implements Robot {
                                 results.remove();
                             }
 
-                            results.add(new RobotActionProcessorResult(action.getId(), result));
+                            final RobotActionProcessorResult processorResult = new RobotActionProcessorResult(action.getId(), result);
+                            results.add(processorResult);
+
+                            final List<CompletableFuture<RobotActionResult>> futures = resultFutures.remove(action.getId());
+                            if (futures != null) {
+                                futures.forEach(future -> future.complete(result));
+                            }
+
+                            if (events.hasListeners()) {
+                                events.emit(ACTION_COMPLETE_EVENT, processorResult.toEventData());
+                            }
                         }
 
                         action = null;
@@ -680,10 +708,55 @@ public final class RobotEntity extends Entity implements Robot {
 
         public void clear() {
             queue.clear();
-            results.clear();
+            synchronized (results) {
+                results.clear();
+                cancelResultFutures();
+            }
             lastActionId = 0;
         }
 
+        public CompletableFuture<RobotActionResult> getResultFuture(final int actionId) {
+            synchronized (results) {
+                final RobotActionResult result = getResult(actionId);
+                if (result == null) {
+                    final CompletableFuture<RobotActionResult> future = new CompletableFuture<>();
+                    future.completeExceptionally(new IllegalArgumentException("unknown action id"));
+                    return future;
+                }
+                if (result != RobotActionResult.INCOMPLETE) {
+                    return CompletableFuture.completedFuture(result);
+                }
+
+                final CompletableFuture<RobotActionResult> future = new CompletableFuture<>();
+                resultFutures.computeIfAbsent(actionId, id -> new ArrayList<>()).add(future);
+                return future;
+            }
+        }
+
+        @Nullable
+        public RobotActionResult getResult(final int actionId) {
+            final AbstractRobotAction currentAction = action;
+            if (currentAction != null && currentAction.getId() == actionId) {
+                return RobotActionResult.INCOMPLETE;
+            }
+            synchronized (queue) {
+                for (final AbstractRobotAction queuedAction : queue) {
+                    if (queuedAction.getId() == actionId) {
+                        return RobotActionResult.INCOMPLETE;
+                    }
+                }
+            }
+            synchronized (results) {
+                for (final RobotActionProcessorResult result : results) {
+                    if (result.actionId == actionId) {
+                        return result.result;
+                    }
+                }
+            }
+
+            return null;
+        }
+
         public CompoundTag serialize() {
             final CompoundTag tag = new CompoundTag();
 
@@ -710,7 +783,10 @@ public final class RobotEntity extends Entity implements Robot {
 
         public void deserialize(final ListTag tag) {
             queue.clear();
-            results.clear();
+            synchronized (results) {
+                results.clear();
+                cancelResultFutures();
+            }
 
             final ListTag queueTag = tag.getList(QUEUE_TAG_NAME, NBTTagIds.TAG_COMPOUND);
             for (int i = 0; i < Math.min(queueTag.size(), MAX_QUEUED_ACTIONS - 1); i++) {
@@ -733,6 +809,13 @@ public final class RobotEntity extends Entity implements Robot {
             lastActionId = tag.getInt(LAST_ACTION_ID_TAG_NAME);
         }
 
+        // Must be called while holding the lock on results.
+        private void cancelResultFutures() {
+            final CancellationException exception = new CancellationException("action discarded");
+            resultFutures.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(exception)));
+            resultFutures.clear();
+        }
+
         private boolean addAction(final AbstractRobotAction action) {
             if (getCommandSenderWorld().isClientSide) {
                 return false;
@@ -825,6 +908,11 @@ public final class RobotEntity extends Entity implements Robot {
             state.vmAdapter.setBaseAddressProvider(deviceItems::getDeviceAddressBase);
         }
 
+        @Override
+        public Optional<Location> getLocation() {
+            return Location.of(RobotEntity.this);
+        }
+
         @Override
         protected boolean consumeEnergy(final int amount, final boolean simulate) {
             if (!Config.robotsUseEnergy()) {
@@ -870,7 +958,7 @@ public final class RobotEntity extends Entity implements Robot {
         }
     }
 
-    public final class RobotDevice {
+    public final class RobotDevice implements RPCEventSource {
         @Callback(synchronize = false)
         public boolean move(@Parameter("direction") @Nullable final MovementDirection direction) {
             if (direction == null) throw new IllegalArgumentException();
@@ -906,26 +994,12 @@ public final class RobotEntity extends Entity implements Robot {
         @Nullable
         @Callback(synchronize = false)
         public RobotActionResult getActionResult(@Parameter("actionId") final int actionId) {
-            final AbstractRobotAction currentAction = actionProcessor.action;
-            if (currentAction != null && currentAction.getId() == actionId) {
-                return RobotActionResult.INCOMPLETE;
-            }
-            synchronized (actionProcessor.queue) {
-                for (final AbstractRobotAction action : actionProcessor.queue) {
-                    if (action.getId() == actionId) {
-                        return RobotActionResult.INCOMPLETE;
-                    }
-                }
-            }
-            synchronized (actionProcessor.results) {
-                for (final RobotActionProcessorResult result : actionProcessor.results) {
-                    if (result.actionId == actionId) {
-                        return result.result;
-                    }
-                }
-            }
+            return actionProcessor.getResult(actionId);
+        }
 
-            return null;
+        @Callback(synchronize = false)
+        public CompletableFuture<RobotActionResult> waitForAction(@Parameter("actionId") final int actionId) {
+            return actionProcessor.getResultFuture(actionId);
         }
 
         @Callback(synchronize = false)
@@ -943,6 +1017,16 @@ public final class RobotEntity extends Entity implements Robot {
             return inventory.getStackInSlot(slot);
         }
 
+        @Override
+        public void addEventListener(final RPCEventListener listener) {
+            actionProcessor.events.addEventListener(listener);
+        }
+
+        @Override
+        public void removeEventListener(final RPCEventListener listener) {
+            actionProcessor.events.removeEventListener(listener);
+        }
+
         private RobotDevice() {
         }
     }
@@ -0,0 +1,48 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding used for blobs persisted by {@link BlobStorage}.
+ * <p>
+ * Codecs are registered in {@link BlobCodecs}. The id of the codec used to encode a blob is
+ * stored in the blob's header, so it must never change once blobs using it have been written.
+ */
+public interface BlobCodec {
+    /**
+     * The id identifying this codec in blob headers.
+     *
+     * @return the id of this codec.
+     */
+    int getId();
+
+    /**
+     * The name used to select this codec in the configuration.
+     *
+     * @return the name of this codec.
+     */
+    String getName();
+
+    /**
+     * Wraps a stream so that data written to it is encoded.
+     * <p>
+     * The returned stream must be closed to finish encoding. Closing it also closes the
+     * underlying stream.
+     *
+     * @param output the stream to write encoded data to.
+     * @return a stream to write the data to encode to.
+     * @throws IOException if setting up the stream fails.
+     */
+    OutputStream encode(OutputStream output) throws IOException;
+
+    /**
+     * Wraps a stream so that data read from it is decoded.
+     *
+     * @param input the stream to read encoded data from.
+     * @return a stream to read decoded data from.
+     * @throws IOException if setting up the stream fails.
+     */
+    InputStream decode(InputStream input) throws IOException;
+}
@@ -0,0 +1,95 @@
+package li.cil.oc2.common.serialization;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of known {@link BlobCodec}s and handling of blob headers.
+ * <p>
+ * Blobs start with a header consisting of a four byte magic value followed by the id of the
+ * codec used to encode the blob. Blobs written before headers were introduced are plain GZIP
+ * streams, which are detected by their own magic value.
+ */
+public final class BlobCodecs {
+    public static final BlobCodec GZIP = new GzipBlobCodec();
+    public static final BlobCodec BLOCK_LZ = new BlockBlobCodec(1, "lz", BlockBlobCodec.DEFAULT_BLOCK_SIZE);
+
+    private static final byte[] MAGIC = {'O', 'C', '2', 'B'};
+    private static final int GZIP_MAGIC_0 = 0x1F;
+    private static final int GZIP_MAGIC_1 = 0x8B;
+
+    private static final ConcurrentHashMap<Integer, BlobCodec> CODECS_BY_ID = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, BlobCodec> CODECS_BY_NAME = new ConcurrentHashMap<>();
+
+    static {
+        register(GZIP);
+        register(BLOCK_LZ);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static void register(final BlobCodec codec) {
+        if (codec.getId() < 0 || codec.getId() > 0xFF) {
+            throw new IllegalArgumentException("Codec id must fit into a byte.");
+        }
+        if (CODECS_BY_ID.putIfAbsent(codec.getId(), codec) != null) {
+            throw new IllegalArgumentException("Duplicate codec id [" + codec.getId() + "].");
+        }
+        CODECS_BY_NAME.put(codec.getName(), codec);
+    }
+
+    @Nullable
+    public static BlobCodec getByName(final String name) {
+        return CODECS_BY_NAME.get(name);
+    }
+
+    /**
+     * Writes the header for the specified codec and returns a stream encoding data with it.
+     *
+     * @param codec  the codec to encode data with.
+     * @param output the stream to write the blob to.
+     * @return a stream to write the data to encode to.
+     * @throws IOException if writing the header fails.
+     */
+    public static OutputStream encode(final BlobCodec codec, final OutputStream output) throws IOException {
+        output.write(MAGIC);
+        output.write(codec.getId());
+        return codec.encode(output);
+    }
+
+    /**
+     * Reads the header of a blob and returns a stream decoding its data using the codec
+     * the blob was written with.
+     *
+     * @param input the stream to read the blob from.
+     * @return a stream to read the decoded data from.
+     * @throws IOException if the header is invalid or names an unknown codec.
+     */
+    public static InputStream decode(final InputStream input) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(input, 2);
+        final int first = pushback.read();
+        final int second = pushback.read();
+        if (first == GZIP_MAGIC_0 && second == GZIP_MAGIC_1) {
+            // Blob from before headers were written.
+            pushback.unread(second);
+            pushback.unread(first);
+            return GZIP.decode(pushback);
+        }
+
+        if (first != MAGIC[0] || second != MAGIC[1] || pushback.read() != MAGIC[2] || pushback.read() != MAGIC[3]) {
+            throw new IOException("Unknown blob format.");
+        }
+
+        final int id = pushback.read();
+        final BlobCodec codec = id >= 0 ? CODECS_BY_ID.get(id) : null;
+        if (codec == null) {
+            throw new IOException("Unknown blob codec [" + id + "].");
+        }
+
+        return codec.decode(pushback);
+    }
+}
@@ -1,6 +1,7 @@
 package li.cil.oc2.common.serialization;
 
 import com.google.common.collect.HashMultimap;
+import li.cil.oc2.common.Config;
 import li.cil.oc2.common.Constants;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.storage.LevelResource;
@@ -10,6 +11,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -19,20 +22,30 @@ import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.function.Consumer;
 
 /**
  * This class facilitates storing binary chunks of data in an efficient, parallelized fashion.
+ * <p>
+ * Blobs are stored as content-addressed chunks, see {@link ChunkStore}, so that identical
+ * data, e.g. in copies of the same floppy, is only stored once.
+ * <p>
+ * Blobs opened as block files, see {@link #submitOpen}, are converted to plain sparse files
+ * for random access and are not deduplicated from then on. Moving block files into the chunk
+ * store when they are closed is left for a later change.
  */
 public final class BlobStorage {
     private static final Logger LOGGER = LogManager.getLogger();
 
     ///////////////////////////////////////////////////////////////////
 
-    private static final HashMultimap<UUID, Future<Void>> WRITE_HANDLES = HashMultimap.create();
-    private static final HashMultimap<UUID, Future<Void>> READ_HANDLES = HashMultimap.create();
+    private static final String BLOCK_FILE_SUFFIX = ".blocks";
+    private static final int BLOCK_FILE_CONVERSION_CHUNK_SIZE = 4 * Constants.KILOBYTE;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static final HashMultimap<UUID, CompletableFuture<Void>> WRITE_HANDLES = HashMultimap.create();
+    private static final HashMultimap<UUID, CompletableFuture<Void>> READ_HANDLES = HashMultimap.create();
     private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
         final Thread thread = new Thread(r, "Blob Storage I/O");
         thread.setDaemon(false);
@@ -40,6 +53,7 @@ public final class BlobStorage {
     });
 
     private static Path dataDirectory; // Directory blobs get saved to.
+    private static ChunkStore chunkStore; // Storage for the data of blobs in dataDirectory.
 
     static {
         Runtime.getRuntime().addShutdownHook(new Thread(BlobStorage::synchronize));
@@ -56,14 +70,14 @@ public final class BlobStorage {
      * deserialized data.
      */
     public static final class JobHandle {
-        private final Set<Future<Void>> futures;
+        private final Set<CompletableFuture<Void>> futures;
 
-        private JobHandle(final Future<Void> future) {
+        private JobHandle(final CompletableFuture<Void> future) {
             this.futures = new HashSet<>();
             futures.add(future);
         }
 
-        private JobHandle(final Set<Future<Void>> futures) {
+        private JobHandle(final Set<CompletableFuture<Void>> futures) {
             this.futures = futures;
         }
 
@@ -71,7 +85,7 @@ public final class BlobStorage {
          * Blocks until the jobs described by this job handle are complete.
          */
         public void await() {
-            for (final Future<Void> future : futures) {
+            for (final CompletableFuture<Void> future : futures) {
                 try {
                     future.get();
                 } catch (final Throwable e) {
@@ -81,6 +95,29 @@ public final class BlobStorage {
             futures.clear();
         }
 
+        /**
+         * Returns a future that completes when the jobs described by this job handle are complete.
+         * <p>
+         * Use this to wait for jobs without blocking.
+         *
+         * @return a future completing with the jobs of this handle.
+         */
+        public CompletableFuture<Void> toCompletableFuture() {
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        }
+
+        /**
+         * Creates a job handle for an operation composed of other jobs.
+         * <p>
+         * This allows returning a single handle for jobs that must run one after the other.
+         *
+         * @param future the future completing when the composed jobs are complete.
+         * @return a job handle that can be used to await the future.
+         */
+        public static JobHandle of(final CompletableFuture<Void> future) {
+            return new JobHandle(future);
+        }
+
         /**
          * Combines a list of job handles into a single job handle.
          * <p>
@@ -93,7 +130,7 @@ public final class BlobStorage {
          * @return a job handle that can be used to await all passed job handles.
          */
         public static JobHandle combine(final JobHandle... jobHandles) {
-            final HashSet<Future<Void>> futures = new HashSet<>();
+            final HashSet<CompletableFuture<Void>> futures = new HashSet<>();
             for (final JobHandle jobHandle : jobHandles) {
                 if (jobHandle == null) {
                     continue;
@@ -116,8 +153,9 @@ public final class BlobStorage {
     public static void setServer(final MinecraftServer server) {
         synchronize();
         dataDirectory = server.getWorldPath(LevelResource.ROOT);
+        chunkStore = new ChunkStore(dataDirectory, dataDirectory.resolve("oc2-blobs").resolve("chunks"));
         try {
-            Files.createDirectories(dataDirectory.resolve("oc2-blobs"));
+            chunkStore.initialize();
         } catch (final IOException e) {
             LOGGER.error(e);
         }
@@ -145,23 +183,16 @@ public final class BlobStorage {
     }
 
     /**
-     * Frees a handle, marking the data associated with it for deletion.
-     * <p>
-     * Deletions are enacted upon the next call to {@link #synchronize()}, which is called when
-     * the server is shut down.
+     * Frees a handle, deleting the data associated with it.
      * <p>
-     * Validating this handle or submitting a serialization or deserialization for this handle
-     * will "revive" the handle and the data associated with it will <em>not</em> be deleted with
-     * the next call to {@link #synchronize()}.
+     * The deletion runs on a worker thread once all jobs previously submitted for the handle
+     * have completed, so this does not block. {@link #synchronize()} waits for pending deletions.
      *
      * @param handle the handle to free.
      */
     public static void freeHandle(@Nullable final UUID handle) {
         if (handle != null) {
-            awaitCompletion(READ_HANDLES, handle);
-            awaitCompletion(WRITE_HANDLES, handle);
-
-            submitJob(WRITE_HANDLES, handle, () -> delete(handle));
+            submitJob(WRITE_HANDLES, handle, getPendingJobs(handle), () -> delete(handle));
         }
     }
 
@@ -219,9 +250,46 @@ public final class BlobStorage {
      */
     public static JobHandle submitLoad(final UUID handle, final OutputStream dataAccess) {
         // Multiple jobs may read from a handle at a time but none may write to it when reading from it.
-        awaitCompletion(WRITE_HANDLES, handle);
+        // Instead of waiting for pending writes here, we let the read run once they completed.
+        final CompletableFuture<Void> pendingWrites = getPendingJobs(WRITE_HANDLES, handle);
 
-        return submitJob(READ_HANDLES, handle, () -> load(handle, dataAccess));
+        return submitJob(READ_HANDLES, handle, pendingWrites, () -> load(handle, dataAccess));
+    }
+
+    /**
+     * Submits a job opening the blob identified by the specified handle for random access.
+     * <p>
+     * Blobs opened this way are stored uncompressed, in a sparse file, so that parts of them can
+     * be read and written without processing the whole blob. If the blob was previously written
+     * using {@link #submitSave(UUID, InputStream)}, it is converted first.
+     * <p>
+     * The callback takes ownership of the channel. Writes to the channel should be submitted
+     * using {@link #submitUpdate(UUID, Runnable)}, so they are ordered with other jobs for the
+     * same handle. If the blob cannot be opened, the callback is not called.
+     * <p>
+     * <b>The callback will be called from a worker thread.</b>
+     *
+     * @param handle   the handle identifying the blob to open.
+     * @param callback called with the opened channel.
+     * @return a job handle that can be used to wait for the blob to be opened.
+     */
+    public static JobHandle submitOpen(final UUID handle, final Consumer<FileChannel> callback) {
+        return submitJob(WRITE_HANDLES, handle, getPendingJobs(handle), () -> open(handle, callback));
+    }
+
+    /**
+     * Submits a job modifying a blob opened using {@link #submitOpen(UUID, Consumer)}.
+     * <p>
+     * The job runs once all previously submitted jobs for the handle have completed.
+     * <p>
+     * <b>The given job will be run on a worker thread.</b>
+     *
+     * @param handle the handle identifying the modified blob.
+     * @param update the job modifying the blob.
+     * @return a job handle that can be used to wait for the job to complete.
+     */
+    public static JobHandle submitUpdate(final UUID handle, final Runnable update) {
+        return submitJob(WRITE_HANDLES, handle, getPendingJobs(handle), update);
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -229,11 +297,7 @@ public final class BlobStorage {
     private static void save(final UUID handle, final InputStream input) {
         try {
             final Path path = dataDirectory.resolve(handle.toString());
-            try (final OutputStream output = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                final GZIPOutputStream zipped = new GZIPOutputStream(output);
-                copyData(input, zipped);
-                zipped.finish();
-            }
+            chunkStore.write(path, input, getCodec());
         } catch (final Throwable e) {
             LOGGER.error(e);
         } finally {
@@ -251,9 +315,8 @@ public final class BlobStorage {
             if (!Files.exists(path)) {
                 return;
             }
-            try (final InputStream input = Files.newInputStream(path, StandardOpenOption.READ)) {
-                final GZIPInputStream zipped = new GZIPInputStream(input);
-                copyData(zipped, output);
+            try (final InputStream input = chunkStore.openInputStream(path)) {
+                copyData(input, output);
             }
         } catch (final Throwable e) {
             LOGGER.error(e);
@@ -266,10 +329,74 @@ public final class BlobStorage {
         }
     }
 
+    private static BlobCodec getCodec() {
+        final BlobCodec codec = BlobCodecs.getByName(Config.blobStorageCodec);
+        if (codec == null) {
+            LOGGER.warn("Unknown blob storage codec [{}], using [{}].", Config.blobStorageCodec, BlobCodecs.GZIP.getName());
+            return BlobCodecs.GZIP;
+        }
+        return codec;
+    }
+
+    private static void open(final UUID handle, final Consumer<FileChannel> callback) {
+        try {
+            final Path path = dataDirectory.resolve(handle.toString());
+            final FileChannel channel = FileChannel.open(getBlockFilePath(handle), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                // Only delete the old blob once it has been converted completely, so we get
+                // another go at it, should we fail.
+                if (Files.exists(path)) {
+                    convertToBlockFile(path, channel);
+                    chunkStore.delete(path);
+                }
+            } catch (final Throwable e) {
+                channel.close();
+                throw e;
+            }
+
+            callback.accept(channel);
+        } catch (final Throwable e) {
+            LOGGER.error(e);
+        }
+    }
+
+    private static void convertToBlockFile(final Path path, final FileChannel channel) throws IOException {
+        channel.truncate(0);
+        try (final InputStream input = chunkStore.openInputStream(path)) {
+            final byte[] buffer = new byte[BLOCK_FILE_CONVERSION_CHUNK_SIZE];
+            long position = 0;
+            int count;
+            while ((count = ChunkStore.readChunk(input, buffer)) > 0) {
+                // Skip chunks of zeros to keep the file sparse.
+                if (!isZero(buffer, count)) {
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                    while (data.hasRemaining()) {
+                        channel.write(data, position + data.position());
+                    }
+                }
+                position += count;
+            }
+        }
+    }
+
+    private static boolean isZero(final byte[] buffer, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Path getBlockFilePath(final UUID handle) {
+        return dataDirectory.resolve(handle + BLOCK_FILE_SUFFIX);
+    }
+
     private static void delete(final UUID handle) {
         try {
             final Path path = dataDirectory.resolve(handle.toString());
-            Files.deleteIfExists(path);
+            chunkStore.delete(path);
+            Files.deleteIfExists(getBlockFilePath(handle));
         } catch (final Throwable e) {
             LOGGER.error(e);
         }
@@ -283,51 +410,72 @@ public final class BlobStorage {
         }
     }
 
-    private static JobHandle submitJob(final HashMultimap<UUID, Future<Void>> map, final UUID handle, final Runnable runnable) {
-        final CompletableFuture<Void> future = CompletableFuture.runAsync(runnable, WORKERS);
-        map.put(handle, future);
+    private static JobHandle submitJob(final HashMultimap<UUID, CompletableFuture<Void>> map, final UUID handle, final Runnable runnable) {
+        return submitJob(map, handle, CompletableFuture.completedFuture(null), runnable);
+    }
+
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") // I know what I'm doing - famous last words.
+    private static JobHandle submitJob(final HashMultimap<UUID, CompletableFuture<Void>> map, final UUID handle, final CompletableFuture<Void> dependency, final Runnable runnable) {
+        // Failed dependencies have been logged by whoever awaited them, we still want to run.
+        final CompletableFuture<Void> future = dependency
+                .handle((unused, throwable) -> null)
+                .thenRunAsync(runnable, WORKERS);
+        synchronized (map) {
+            map.put(handle, future);
+        }
         return new JobHandle(future.thenAccept(unused -> completeJob(map, handle, future)));
     }
 
     @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") // I know what I'm doing - famous last words.
-    private static void completeJob(final HashMultimap<UUID, Future<Void>> handles, final UUID handle, final Future<Void> future) {
+    private static CompletableFuture<Void> getPendingJobs(final HashMultimap<UUID, CompletableFuture<Void>> handles, final UUID handle) {
+        synchronized (handles) {
+            return CompletableFuture.allOf(handles.get(handle).toArray(new CompletableFuture[0]));
+        }
+    }
+
+    private static CompletableFuture<Void> getPendingJobs(final UUID handle) {
+        return CompletableFuture.allOf(getPendingJobs(READ_HANDLES, handle), getPendingJobs(WRITE_HANDLES, handle));
+    }
+
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") // I know what I'm doing - famous last words.
+    private static void completeJob(final HashMultimap<UUID, CompletableFuture<Void>> handles, final UUID handle, final CompletableFuture<Void> future) {
         synchronized (handles) {
             handles.remove(handle, future);
         }
     }
 
     @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") // I know what I'm doing - famous last words.
-    private static void awaitCompletion(final HashMultimap<UUID, Future<Void>> handles, final UUID handle) {
+    private static void awaitCompletion(final HashMultimap<UUID, CompletableFuture<Void>> handles, final UUID handle) {
         // Jobs remove themselves from the list on completion, so we must synchronize access to
         // the map of pending jobs, but must release the lock when waiting for the job so as not
         // to create a deadlock.
-        final Set<Future<Void>> futures;
+        final Set<CompletableFuture<Void>> futures;
         synchronized (handles) {
             futures = handles.removeAll(handle);
         }
 
-        for (final Future<Void> future : futures) {
+        for (final CompletableFuture<Void> future : futures) {
             await(future);
         }
     }
 
     @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") // I know what I'm doing - famous last words.
-    private static void awaitCompletion(final HashMultimap<UUID, Future<Void>> handles) {
+    private static void awaitCompletion(final HashMultimap<UUID, CompletableFuture<Void>> handles) {
         // Jobs remove themselves from the list on completion, so we must synchronize access to
         // the map of pending jobs, but must release the lock when waiting for the job so as not
         // to create a deadlock.
-        final Set<Future<Void>> futures;
+        final Set<CompletableFuture<Void>> futures;
         synchronized (handles) {
             futures = new HashSet<>(handles.values());
             handles.clear();
         }
 
-        for (final Future<Void> future : futures) {
+        for (final CompletableFuture<Void> future : futures) {
             await(future);
         }
     }
 
-    private static void await(final Future<Void> future) {
+    private static void await(final CompletableFuture<Void> future) {
         try {
             future.get();
         } catch (final Throwable e) {
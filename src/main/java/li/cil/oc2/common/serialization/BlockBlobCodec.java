@@ -0,0 +1,325 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes blobs as a sequence of independently compressed blocks using {@link LZBlockCompressor}.
+ * <p>
+ * Since blocks do not depend on each other, multiple blocks are compressed and decompressed in
+ * parallel. Each block starts with its decompressed length and its stored length, followed by
+ * a byte indicating whether the block is compressed or stored as-is, followed by the stored
+ * data. Blocks that do not compress well are stored as-is. A decompressed length of zero marks
+ * the end of the blob.
+ * <p>
+ * Blocks are processed on a dedicated pool of worker threads, so that encoding large blobs
+ * does not compete with other users of the common pool.
+ */
+final class BlockBlobCodec implements BlobCodec {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService WORKERS = createWorkers();
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_LZ = 1;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final int id;
+    private final String name;
+    private final int blockSize;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public BlockBlobCodec(final int id, final String name, final int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be in (0, " + MAX_BLOCK_SIZE + "].");
+        }
+
+        this.id = id;
+        this.name = name;
+        this.blockSize = blockSize;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public OutputStream encode(final OutputStream output) {
+        return new BlockOutputStream(output, blockSize);
+    }
+
+    @Override
+    public InputStream decode(final InputStream input) {
+        return new BlockInputStream(input);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static ExecutorService createWorkers() {
+        final AtomicInteger threadIndex = new AtomicInteger();
+        return Executors.newFixedThreadPool(PARALLELISM, r -> {
+            final Thread thread = new Thread(r);
+            thread.setDaemon(true); // Callers wait for their blocks, so they keep the process alive.
+            thread.setName("Blob Codec #" + threadIndex.incrementAndGet());
+            return thread;
+        });
+    }
+
+    private static final class EncodedBlock {
+        public final int length;
+        public final int method;
+        public final byte[] data;
+        public final int dataLength;
+
+        public EncodedBlock(final int length, final int method, final byte[] data, final int dataLength) {
+            this.length = length;
+            this.method = method;
+            this.data = data;
+            this.dataLength = dataLength;
+        }
+
+        public static EncodedBlock encode(final byte[] block) {
+            final byte[] compressed = new byte[LZBlockCompressor.getMaxCompressedLength(block.length)];
+            final int compressedLength = LZBlockCompressor.compress(block, block.length, compressed);
+            if (compressedLength < block.length) {
+                return new EncodedBlock(block.length, METHOD_LZ, compressed, compressedLength);
+            } else {
+                return new EncodedBlock(block.length, METHOD_STORED, block, block.length);
+            }
+        }
+
+        public byte[] decode() throws IOException {
+            switch (method) {
+                case METHOD_STORED: {
+                    if (dataLength != length) {
+                        throw new IOException("Malformed block.");
+                    }
+                    return data;
+                }
+                case METHOD_LZ: {
+                    final byte[] block = new byte[length];
+                    LZBlockCompressor.decompress(data, dataLength, block, length);
+                    return block;
+                }
+                default: {
+                    throw new IOException("Unknown block method [" + method + "].");
+                }
+            }
+        }
+    }
+
+    private static <T> List<T> join(final List<CompletableFuture<T>> futures) throws IOException {
+        final ArrayList<T> results = new ArrayList<>(futures.size());
+        try {
+            for (final CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    private static final class BlockOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final int blockSize;
+        private final ArrayList<byte[]> pendingBlocks = new ArrayList<>();
+        private byte[] block;
+        private int blockLength;
+        private boolean isClosed;
+
+        public BlockOutputStream(final OutputStream output, final int blockSize) {
+            this.output = new DataOutputStream(new BufferedOutputStream(output));
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public void write(final int value) throws IOException {
+            block[blockLength++] = (byte) value;
+            if (blockLength == blockSize) {
+                finishBlock();
+            }
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = Math.min(length, blockSize - blockLength);
+                System.arraycopy(bytes, offset, block, blockLength, count);
+                blockLength += count;
+                offset += count;
+                length -= count;
+                if (blockLength == blockSize) {
+                    finishBlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+
+            try {
+                if (blockLength > 0) {
+                    pendingBlocks.add(Arrays.copyOf(block, blockLength));
+                    blockLength = 0;
+                }
+                writePendingBlocks();
+                output.writeInt(0);
+                output.flush();
+            } finally {
+                output.close();
+            }
+        }
+
+        private void finishBlock() throws IOException {
+            pendingBlocks.add(block);
+            block = new byte[blockSize];
+            blockLength = 0;
+
+            if (pendingBlocks.size() >= PARALLELISM) {
+                writePendingBlocks();
+            }
+        }
+
+        private void writePendingBlocks() throws IOException {
+            if (pendingBlocks.isEmpty()) {
+                return;
+            }
+
+            final ArrayList<CompletableFuture<EncodedBlock>> futures = new ArrayList<>(pendingBlocks.size());
+            for (final byte[] pendingBlock : pendingBlocks) {
+                futures.add(CompletableFuture.supplyAsync(() -> EncodedBlock.encode(pendingBlock), WORKERS));
+            }
+            pendingBlocks.clear();
+
+            for (final EncodedBlock encodedBlock : join(futures)) {
+                output.writeInt(encodedBlock.length);
+                output.writeInt(encodedBlock.dataLength);
+                output.writeByte(encodedBlock.method);
+                output.write(encodedBlock.data, 0, encodedBlock.dataLength);
+            }
+        }
+    }
+
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream input;
+        private final ArrayDeque<byte[]> decodedBlocks = new ArrayDeque<>();
+        private byte[] block = new byte[0];
+        private int blockPosition;
+        private boolean isEndOfStream;
+
+        public BlockInputStream(final InputStream input) {
+            this.input = new DataInputStream(new BufferedInputStream(input));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fillBlock()) {
+                return -1;
+            }
+            return block[blockPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fillBlock()) {
+                return -1;
+            }
+
+            final int count = Math.min(length, block.length - blockPosition);
+            System.arraycopy(block, blockPosition, bytes, offset, count);
+            blockPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+        private boolean fillBlock() throws IOException {
+            if (blockPosition < block.length) {
+                return true;
+            }
+
+            if (decodedBlocks.isEmpty()) {
+                readBlocks();
+            }
+            if (decodedBlocks.isEmpty()) {
+                return false;
+            }
+
+            block = decodedBlocks.removeFirst();
+            blockPosition = 0;
+            return true;
+        }
+
+        private void readBlocks() throws IOException {
+            final ArrayList<CompletableFuture<byte[]>> futures = new ArrayList<>(PARALLELISM);
+            while (!isEndOfStream && futures.size() < PARALLELISM) {
+                final int length = input.readInt();
+                if (length == 0) {
+                    isEndOfStream = true;
+                    break;
+                }
+
+                final int dataLength = input.readInt();
+                final int method = input.readUnsignedByte();
+                if (length < 0 || length > MAX_BLOCK_SIZE || dataLength < 0 || dataLength > LZBlockCompressor.getMaxCompressedLength(length)) {
+                    throw new IOException("Malformed block header.");
+                }
+
+                final byte[] data = new byte[dataLength];
+                input.readFully(data);
+
+                final EncodedBlock encodedBlock = new EncodedBlock(length, method, data, dataLength);
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return encodedBlock.decode();
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, WORKERS));
+            }
+
+            decodedBlocks.addAll(join(futures));
+        }
+    }
+}
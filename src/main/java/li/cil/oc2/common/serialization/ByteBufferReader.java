@@ -0,0 +1,145 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Reader} decoding UTF-8 encoded text directly from a {@link ByteBuffer}.
+ * <p>
+ * Instances can be pointed at a new buffer using {@link #reset(ByteBuffer)}, so a single
+ * reader can be reused for any number of messages. Malformed input is replaced with the
+ * Unicode replacement character.
+ */
+public final class ByteBufferReader extends Reader {
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    ///////////////////////////////////////////////////////////////////
+
+    private ByteBuffer buffer = EMPTY_BUFFER;
+    private int pendingLowSurrogate = -1;
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the buffer to read from. Reading starts at the current position of the buffer
+     * and ends at its limit. Reading advances the position of the buffer.
+     *
+     * @param buffer the buffer to read from.
+     */
+    public void reset(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pendingLowSurrogate = -1;
+    }
+
+    /**
+     * Checks whether the remaining data in the buffer consists only of whitespace.
+     * <p>
+     * Does not change the position of the buffer.
+     *
+     * @return {@code true} if the remaining data is blank; {@code false} otherwise.
+     */
+    public boolean isBlank() {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            final byte value = buffer.get(i);
+            if (value != ' ' && value != '\t' && value != '\n' && value != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() {
+        if (pendingLowSurrogate >= 0) {
+            final char value = (char) pendingLowSurrogate;
+            pendingLowSurrogate = -1;
+            return value;
+        }
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        return decodeNext();
+    }
+
+    @Override
+    public int read(final char[] chars, final int offset, final int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < length) {
+            final int value = read();
+            if (value < 0) {
+                break;
+            }
+            chars[offset + count++] = (char) value;
+        }
+
+        return count > 0 ? count : -1;
+    }
+
+    @Override
+    public boolean ready() {
+        return pendingLowSurrogate >= 0 || buffer.hasRemaining();
+    }
+
+    @Override
+    public void close() {
+        reset(EMPTY_BUFFER);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private int decodeNext() {
+        final int first = buffer.get() & 0xFF;
+        if (first < 0x80) {
+            return first;
+        }
+
+        final int continuationCount;
+        int codePoint;
+        if ((first & 0xE0) == 0xC0) {
+            continuationCount = 1;
+            codePoint = first & 0x1F;
+        } else if ((first & 0xF0) == 0xE0) {
+            continuationCount = 2;
+            codePoint = first & 0x0F;
+        } else if ((first & 0xF8) == 0xF0) {
+            continuationCount = 3;
+            codePoint = first & 0x07;
+        } else {
+            return REPLACEMENT_CHARACTER;
+        }
+
+        for (int i = 0; i < continuationCount; i++) {
+            if (!buffer.hasRemaining()) {
+                return REPLACEMENT_CHARACTER;
+            }
+            final int next = buffer.get(buffer.position()) & 0xFF;
+            if ((next & 0xC0) != 0x80) {
+                return REPLACEMENT_CHARACTER;
+            }
+            buffer.get();
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+
+        if (codePoint > Character.MAX_CODE_POINT ||
+            (continuationCount == 1 && codePoint < 0x80) ||
+            (continuationCount == 2 && codePoint < 0x800) ||
+            (continuationCount == 3 && codePoint < 0x10000) ||
+            (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return REPLACEMENT_CHARACTER;
+        }
+
+        if (Character.isBmpCodePoint(codePoint)) {
+            return codePoint;
+        }
+
+        pendingLowSurrogate = Character.lowSurrogate(codePoint);
+        return Character.highSurrogate(codePoint);
+    }
+}
@@ -0,0 +1,133 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link Writer} encoding text as UTF-8 into a growing buffer.
+ * <p>
+ * The buffer is kept when calling {@link #clear()}, so a single writer can be reused for
+ * any number of messages without allocating. Unpaired surrogates are encoded as {@code '?'}.
+ */
+public final class ByteBufferWriter extends Writer {
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private ByteBuffer buffer;
+    private int pendingHighSurrogate = -1;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public ByteBufferWriter() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ByteBufferWriter(final int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public int size() {
+        return buffer.position();
+    }
+
+    public void clear() {
+        buffer.clear();
+        pendingHighSurrogate = -1;
+    }
+
+    /**
+     * Copies the data written so far into the specified buffer.
+     *
+     * @param target the buffer to copy the data into.
+     */
+    public void copyTo(final ByteBuffer target) {
+        target.put(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    /**
+     * Returns a copy of the data written so far.
+     *
+     * @return the data written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.position());
+    }
+
+    @Override
+    public void write(final int value) {
+        final char c = (char) value;
+        if (pendingHighSurrogate >= 0) {
+            final char high = (char) pendingHighSurrogate;
+            pendingHighSurrogate = -1;
+            if (Character.isLowSurrogate(c)) {
+                writeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            writeCodePoint('?');
+        }
+
+        if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            writeCodePoint('?');
+        } else {
+            writeCodePoint(c);
+        }
+    }
+
+    @Override
+    public void write(final char[] chars, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            write(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(final String value, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            write(value.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private void writeCodePoint(final int codePoint) {
+        ensureCapacity(4);
+        if (codePoint < 0x80) {
+            buffer.put((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            buffer.put((byte) (0xC0 | (codePoint >> 6)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        } else if (codePoint < 0x10000) {
+            buffer.put((byte) (0xE0 | (codePoint >> 12)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        } else {
+            buffer.put((byte) (0xF0 | (codePoint >> 18)));
+            buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+    }
+
+    private void ensureCapacity(final int count) {
+        if (buffer.remaining() < count) {
+            final ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package li.cil.oc2.common.serialization;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Stores blobs as content-addressed chunks, so that identical data is only stored once.
+ * <p>
+ * Blob data is split into chunks of a fixed size. Each chunk is stored in a file named after
+ * the SHA-256 hash of its contents, encoded using a {@link BlobCodec}. Blobs themselves are
+ * stored as manifests, listing the hashes of their chunks. Chunks are reference counted, and
+ * deleted when the last manifest referencing them is deleted or replaced.
+ * <p>
+ * Reference counts are not persisted. Instead, they are rebuilt from the manifests present
+ * when the store is {@link #initialize() initialized}, which also deletes chunks left over
+ * from interrupted operations.
+ * <p>
+ * Files that are not manifests, such as blobs written before chunking was introduced, are read
+ * as a single encoded blob.
+ * <p>
+ * Hard drive images kept in block files by {@link BlobStorage} do not go through this store, so
+ * copies of the same drive are not deduplicated while they are in use.
+ */
+final class ChunkStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    ///////////////////////////////////////////////////////////////////
+
+    // Spans multiple codec blocks, so chunks are compressed in parallel by block codecs. Also
+    // keeps the number of chunk files of large blobs, such as memory snapshots, manageable.
+    public static final int CHUNK_SIZE = 16 * BlockBlobCodec.DEFAULT_BLOCK_SIZE;
+
+    private static final byte[] MANIFEST_MAGIC = {'O', 'C', '2', 'M'};
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final Path manifestDirectory;
+    private final Path chunkDirectory;
+    private final Object2IntOpenHashMap<String> referenceCounts = new Object2IntOpenHashMap<>();
+
+    ///////////////////////////////////////////////////////////////////
+
+    public ChunkStore(final Path manifestDirectory, final Path chunkDirectory) {
+        this.manifestDirectory = manifestDirectory;
+        this.chunkDirectory = chunkDirectory;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Counts the references to chunks from all manifests and deletes unreferenced chunks.
+     * <p>
+     * Must not be called while other operations on this store are in progress.
+     *
+     * @throws IOException if listing manifests or chunks fails.
+     */
+    public void initialize() throws IOException {
+        synchronized (referenceCounts) {
+            referenceCounts.clear();
+        }
+
+        Files.createDirectories(chunkDirectory);
+
+        try (final DirectoryStream<Path> paths = Files.newDirectoryStream(manifestDirectory, ChunkStore::isManifestName)) {
+            for (final Path path : paths) {
+                try {
+                    for (final String hash : readManifest(path)) {
+                        acquire(hash);
+                    }
+                } catch (final IOException e) {
+                    LOGGER.error("Failed reading blob manifest [{}].", path, e);
+                }
+            }
+        }
+
+        try (final Stream<Path> paths = Files.walk(chunkDirectory)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(path -> !isReferenced(path.getFileName().toString()))
+                    .forEach(ChunkStore::deleteQuietly);
+        }
+    }
+
+    /**
+     * Writes data to the blob at the specified path, replacing any existing blob.
+     *
+     * @param path  the path of the blob.
+     * @param input the stream to read the data to store from.
+     * @param codec the codec to encode newly stored chunks with.
+     * @throws IOException if reading the data or writing the blob fails.
+     */
+    public void write(final Path path, final InputStream input, final BlobCodec codec) throws IOException {
+        final List<String> previousHashes = Files.exists(path) ? readManifest(path) : Collections.emptyList();
+
+        final ArrayList<String> hashes = new ArrayList<>();
+        try {
+            final MessageDigest digest = createDigest();
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            long length = 0;
+            int count;
+            while ((count = readChunk(input, buffer)) > 0) {
+                digest.update(buffer, 0, count);
+                final String hash = toHexString(digest.digest());
+
+                acquire(hash);
+                hashes.add(hash);
+
+                writeChunk(hash, buffer, count, codec);
+                length += count;
+            }
+
+            writeManifest(path, length, hashes);
+        } catch (final Throwable e) {
+            release(hashes);
+            throw e;
+        }
+
+        release(previousHashes);
+    }
+
+    /**
+     * Opens a stream reading the data of the blob at the specified path.
+     *
+     * @param path the path of the blob.
+     * @return a stream to read the data of the blob from.
+     * @throws IOException if opening the blob fails.
+     */
+    public InputStream openInputStream(final Path path) throws IOException {
+        final InputStream file = Files.newInputStream(path, StandardOpenOption.READ);
+        try {
+            final BufferedInputStream input = new BufferedInputStream(file);
+            input.mark(MANIFEST_MAGIC.length);
+            final byte[] magic = new byte[MANIFEST_MAGIC.length];
+            final int count = readChunk(input, magic);
+            if (count == magic.length && Arrays.equals(magic, MANIFEST_MAGIC)) {
+                final DataInputStream data = new DataInputStream(input);
+                final long length = data.readLong();
+                final List<String> hashes = readHashes(data);
+                file.close();
+                return new ChunkInputStream(hashes, length);
+            }
+
+            input.reset();
+            return BlobCodecs.decode(input);
+        } catch (final Throwable e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the blob at the specified path, releasing the chunks it references.
+     *
+     * @param path the path of the blob.
+     * @throws IOException if reading or deleting the blob fails.
+     */
+    public void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        final List<String> hashes = readManifest(path);
+        Files.delete(path);
+        release(hashes);
+    }
+
+    /**
+     * Reads up to the length of the specified buffer bytes, only returning less at the end of
+     * the stream.
+     *
+     * @param input  the stream to read from.
+     * @param buffer the buffer to read into.
+     * @return the number of bytes read.
+     * @throws IOException if reading from the stream fails.
+     */
+    public static int readChunk(final InputStream input, final byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int count = input.read(buffer, offset, buffer.length - offset);
+            if (count < 0) {
+                break;
+            }
+            offset += count;
+        }
+        return offset;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private void acquire(final String hash) {
+        synchronized (referenceCounts) {
+            referenceCounts.addTo(hash, 1);
+        }
+    }
+
+    private void release(final List<String> hashes) {
+        // Deleting while holding the lock makes sure no other job acquires a chunk, sees the
+        // file still exists, and then has it deleted from under it.
+        synchronized (referenceCounts) {
+            for (final String hash : hashes) {
+                if (referenceCounts.addTo(hash, -1) <= 1) {
+                    referenceCounts.removeInt(hash);
+                    deleteQuietly(getChunkPath(hash));
+                }
+            }
+        }
+    }
+
+    private boolean isReferenced(final String hash) {
+        synchronized (referenceCounts) {
+            return referenceCounts.containsKey(hash);
+        }
+    }
+
+    private void writeChunk(final String hash, final byte[] buffer, final int count, final BlobCodec codec) throws IOException {
+        final Path path = getChunkPath(hash);
+        if (Files.exists(path)) {
+            return;
+        }
+
+        // Write to a temporary file first, so a chunk file is never seen partially written.
+        Files.createDirectories(path.getParent());
+        final Path temporaryPath = path.resolveSibling(hash + "." + UUID.randomUUID() + TEMPORARY_FILE_SUFFIX);
+        try {
+            try (final OutputStream file = Files.newOutputStream(temporaryPath, StandardOpenOption.CREATE_NEW);
+                 final OutputStream output = BlobCodecs.encode(codec, file)) {
+                output.write(buffer, 0, count);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            // Another job may have stored the same chunk in the meantime.
+            if (!Files.exists(path)) {
+                throw e;
+            }
+        } finally {
+            deleteQuietly(temporaryPath);
+        }
+    }
+
+    private void writeManifest(final Path path, final long length, final List<String> hashes) throws IOException {
+        final Path temporaryPath = path.resolveSibling(path.getFileName() + TEMPORARY_FILE_SUFFIX);
+        try {
+            try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+                output.write(MANIFEST_MAGIC);
+                output.writeLong(length);
+                output.writeInt(hashes.size());
+                for (final String hash : hashes) {
+                    output.write(fromHexString(hash));
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            deleteQuietly(temporaryPath);
+        }
+    }
+
+    private List<String> readManifest(final Path path) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            final byte[] magic = new byte[MANIFEST_MAGIC.length];
+            if (readChunk(input, magic) != magic.length || !Arrays.equals(magic, MANIFEST_MAGIC)) {
+                return Collections.emptyList(); // Not chunked, does not reference any chunks.
+            }
+
+            input.readLong(); // Length.
+            return readHashes(input);
+        }
+    }
+
+    private static List<String> readHashes(final DataInputStream input) throws IOException {
+        final int count = input.readInt();
+        if (count < 0) {
+            throw new IOException("Malformed blob manifest.");
+        }
+
+        final ArrayList<String> hashes = new ArrayList<>(Math.min(count, 1024));
+        final byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            input.readFully(hash);
+            hashes.add(toHexString(hash));
+        }
+        return hashes;
+    }
+
+    private Path getChunkPath(final String hash) {
+        return chunkDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static boolean isManifestName(final Path path) {
+        final String name = path.getFileName().toString();
+        if (name.length() != 36) {
+            return false;
+        }
+
+        try {
+            UUID.fromString(name);
+            return Files.isRegularFile(path);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHexString(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (final byte value : bytes) {
+            builder.append(Character.forDigit((value >>> 4) & 0xF, 16));
+            builder.append(Character.forDigit(value & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHexString(final String value) {
+        final byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void deleteQuietly(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final class ChunkInputStream extends InputStream {
+        private final List<String> hashes;
+        private final long length;
+        private int nextChunk;
+        private long position;
+        private InputStream chunk;
+
+        public ChunkInputStream(final List<String> hashes, final long length) {
+            this.hashes = hashes;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buffer = new byte[1];
+            if (read(buffer, 0, 1) <= 0) {
+                return -1;
+            }
+            return buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (true) {
+                if (chunk == null) {
+                    if (nextChunk >= hashes.size()) {
+                        if (position != this.length) {
+                            throw new IOException("Blob is shorter than expected.");
+                        }
+                        return -1;
+                    }
+
+                    final Path path = getChunkPath(hashes.get(nextChunk++));
+                    final InputStream file = Files.newInputStream(path, StandardOpenOption.READ);
+                    try {
+                        chunk = BlobCodecs.decode(file);
+                    } catch (final Throwable e) {
+                        file.close();
+                        throw e;
+                    }
+                }
+
+                final int count = chunk.read(bytes, offset, length);
+                if (count > 0) {
+                    position += count;
+                    return count;
+                }
+
+                chunk.close();
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (chunk != null) {
+                chunk.close();
+                chunk = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes blobs as a single GZIP stream. This is the format blobs were stored in before codecs
+ * became configurable.
+ */
+final class GzipBlobCodec implements BlobCodec {
+    @Override
+    public int getId() {
+        return 0;
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public OutputStream encode(final OutputStream output) throws IOException {
+        return new GZIPOutputStream(output);
+    }
+
+    @Override
+    public InputStream decode(final InputStream input) throws IOException {
+        return new GZIPInputStream(input);
+    }
+}
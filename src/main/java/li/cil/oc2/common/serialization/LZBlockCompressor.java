@@ -0,0 +1,187 @@
+package li.cil.oc2.common.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 style compressor for single blocks of data, using the LZ4 sequence layout.
+ * <p>
+ * Data is encoded as a series of sequences. Each sequence starts with a token byte, holding
+ * the number of literals in the high and the match length minus four in the low nibble. A
+ * nibble value of 15 means the length continues in the following bytes, each adding their
+ * value, until a byte that is not 255. Literals follow the token, then the little-endian 16-bit
+ * match offset and the continuation of the match length. The last sequence only consists of
+ * literals, and ends at the end of the block.
+ * <p>
+ * Decompression needs the decompressed size of a block, which must be stored alongside it.
+ */
+final class LZBlockCompressor {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 14;
+    private static final int RUN_MASK = 15;
+
+    private static final ThreadLocal<int[]> HASH_TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the maximum size of the compressed form of data with the specified length.
+     *
+     * @param length the length of the data to compress.
+     * @return the size the output buffer must at least have.
+     */
+    public static int getMaxCompressedLength(final int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses data into the specified buffer.
+     *
+     * @param src    the data to compress.
+     * @param length the length of the data to compress.
+     * @param dst    the buffer to write to, of at least {@link #getMaxCompressedLength(int)} bytes.
+     * @return the length of the compressed data.
+     */
+    public static int compress(final byte[] src, final int length, final byte[] dst) {
+        final int[] table = HASH_TABLES.get();
+        Arrays.fill(table, 0); // Stores position + 1, so zero means empty.
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+
+        final int matchLimit = length - MIN_MATCH;
+        while (ip <= matchLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            final int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeLiterals(src, anchor, ip - anchor, matchLength - MIN_MATCH, dst, op);
+
+            final int offset = ip - ref;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (matchLength - MIN_MATCH >= RUN_MASK) {
+                op = writeLength(matchLength - MIN_MATCH - RUN_MASK, dst, op);
+            }
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        return writeLiterals(src, anchor, length - anchor, 0, dst, op);
+    }
+
+    /**
+     * Decompresses data into the specified buffer.
+     *
+     * @param src       the compressed data.
+     * @param srcLength the length of the compressed data.
+     * @param dst       the buffer to write the decompressed data to.
+     * @param dstLength the length of the decompressed data.
+     * @throws IOException if the compressed data is malformed.
+     */
+    public static void decompress(final byte[] src, final int srcLength, final byte[] dst, final int dstLength) throws IOException {
+        try {
+            int ip = 0;
+            int op = 0;
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+
+                int literalCount = token >>> 4;
+                if (literalCount == RUN_MASK) {
+                    int value;
+                    do {
+                        value = src[ip++] & 0xFF;
+                        literalCount += value;
+                    } while (value == 0xFF);
+                }
+
+                if (literalCount > srcLength - ip || literalCount > dstLength - op) {
+                    throw new IOException("Malformed compressed data.");
+                }
+                System.arraycopy(src, ip, dst, op, literalCount);
+                ip += literalCount;
+                op += literalCount;
+
+                if (ip == srcLength) {
+                    break;
+                }
+
+                final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int value;
+                    do {
+                        value = src[ip++] & 0xFF;
+                        matchLength += value;
+                    } while (value == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+
+                if (offset == 0 || offset > op || matchLength > dstLength - op) {
+                    throw new IOException("Malformed compressed data.");
+                }
+
+                // Matches may overlap the bytes they produce, repeating the last offset bytes. Copy
+                // in chunks that never read past what has been written already.
+                int copied = 0;
+                while (copied < matchLength) {
+                    final int count = Math.min(matchLength - copied, offset + copied);
+                    System.arraycopy(dst, op - offset, dst, op + copied, count);
+                    copied += count;
+                }
+                op += matchLength;
+            }
+
+            if (op != dstLength) {
+                throw new IOException("Malformed compressed data.");
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed compressed data.", e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static int writeLiterals(final byte[] src, final int offset, final int count, final int matchLengthNibble, final byte[] dst, int op) {
+        final int token = (Math.min(count, RUN_MASK) << 4) | Math.min(matchLengthNibble, RUN_MASK);
+        dst[op++] = (byte) token;
+        if (count >= RUN_MASK) {
+            op = writeLength(count - RUN_MASK, dst, op);
+        }
+
+        System.arraycopy(src, offset, dst, op, count);
+        return op + count;
+    }
+
+    private static int writeLength(int length, final byte[] dst, int op) {
+        while (length >= 0xFF) {
+            dst[op++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xFF) |
+               ((data[offset + 1] & 0xFF) << 8) |
+               ((data[offset + 2] & 0xFF) << 16) |
+               ((data[offset + 3] & 0xFF) << 24);
+    }
+}
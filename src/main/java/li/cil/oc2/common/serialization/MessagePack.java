@@ -0,0 +1,43 @@
+package li.cil.oc2.common.serialization;
+
+/**
+ * Type markers of the MessagePack format, as far as they are supported by
+ * {@link MessagePackReader} and {@link MessagePackWriter}.
+ * <p>
+ * See <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">the specification</a>
+ * for details on the format.
+ */
+final class MessagePack {
+    public static final int POSITIVE_FIXINT_MAX = 0x7f;
+    public static final int FIXMAP = 0x80;
+    public static final int FIXARRAY = 0x90;
+    public static final int FIXSTR = 0xa0;
+    public static final int NIL = 0xc0;
+    public static final int FALSE = 0xc2;
+    public static final int TRUE = 0xc3;
+    public static final int BIN8 = 0xc4;
+    public static final int BIN16 = 0xc5;
+    public static final int BIN32 = 0xc6;
+    public static final int FLOAT32 = 0xca;
+    public static final int FLOAT64 = 0xcb;
+    public static final int UINT8 = 0xcc;
+    public static final int UINT16 = 0xcd;
+    public static final int UINT32 = 0xce;
+    public static final int UINT64 = 0xcf;
+    public static final int INT8 = 0xd0;
+    public static final int INT16 = 0xd1;
+    public static final int INT32 = 0xd2;
+    public static final int INT64 = 0xd3;
+    public static final int STR8 = 0xd9;
+    public static final int STR16 = 0xda;
+    public static final int STR32 = 0xdb;
+    public static final int ARRAY16 = 0xdc;
+    public static final int ARRAY32 = 0xdd;
+    public static final int MAP16 = 0xde;
+    public static final int MAP32 = 0xdf;
+    public static final int NEGATIVE_FIXINT_MIN = 0xe0;
+
+    public static final int FIXMAP_MAX_SIZE = 0x0f;
+    public static final int FIXARRAY_MAX_SIZE = 0x0f;
+    public static final int FIXSTR_MAX_SIZE = 0x1f;
+}
@@ -0,0 +1,333 @@
+package li.cil.oc2.common.serialization;
+
+import com.google.gson.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static li.cil.oc2.common.serialization.MessagePack.*;
+
+/**
+ * Reads values encoded in the MessagePack format from a buffer.
+ * <p>
+ * Supports nil, booleans, integers, floats, strings, binary data, arrays and maps.
+ * Extension types are not supported. Reading a value of an unexpected type or
+ * reading past the end of the buffer throws an unchecked exception.
+ */
+public final class MessagePackReader {
+    private final ByteBuffer buffer;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public MessagePackReader(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public boolean isNil() {
+        return (buffer.get(buffer.position()) & 0xFF) == NIL;
+    }
+
+    public boolean isString() {
+        final int type = buffer.get(buffer.position()) & 0xFF;
+        return (type & 0xe0) == FIXSTR || type == STR8 || type == STR16 || type == STR32;
+    }
+
+    public boolean isArray() {
+        final int type = buffer.get(buffer.position()) & 0xFF;
+        return (type & 0xf0) == FIXARRAY || type == ARRAY16 || type == ARRAY32;
+    }
+
+    public boolean tryReadNil() {
+        if (isNil()) {
+            buffer.get();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean readBoolean() {
+        final int type = readType();
+        switch (type) {
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            default:
+                throw unexpectedType("boolean", type);
+        }
+    }
+
+    public long readLong() {
+        final int type = readType();
+        if (type <= POSITIVE_FIXINT_MAX) {
+            return type;
+        }
+        if (type >= NEGATIVE_FIXINT_MIN) {
+            return (byte) type;
+        }
+
+        switch (type) {
+            case UINT8:
+                return buffer.get() & 0xFF;
+            case UINT16:
+                return buffer.getShort() & 0xFFFF;
+            case UINT32:
+                return buffer.getInt() & 0xFFFFFFFFL;
+            case UINT64: // Values larger than Long.MAX_VALUE wrap around, same as in Lua.
+            case INT64:
+                return buffer.getLong();
+            case INT8:
+                return buffer.get();
+            case INT16:
+                return buffer.getShort();
+            case INT32:
+                return buffer.getInt();
+            case FLOAT32:
+                return toIntegral(buffer.getFloat());
+            case FLOAT64:
+                return toIntegral(buffer.getDouble());
+            default:
+                throw unexpectedType("integer", type);
+        }
+    }
+
+    public double readDouble() {
+        final int type = peekType();
+        switch (type) {
+            case FLOAT32:
+                buffer.get();
+                return buffer.getFloat();
+            case FLOAT64:
+                buffer.get();
+                return buffer.getDouble();
+            default:
+                return readLong();
+        }
+    }
+
+    public String readString() {
+        final int length = readStringHeader();
+        if (buffer.hasArray()) {
+            final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        } else {
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    public int readArrayHeader() {
+        final int type = readType();
+        if ((type & 0xf0) == FIXARRAY) {
+            return type & 0x0f;
+        }
+
+        switch (type) {
+            case ARRAY16:
+                return buffer.getShort() & 0xFFFF;
+            case ARRAY32:
+                return checkLength(buffer.getInt());
+            default:
+                throw unexpectedType("array", type);
+        }
+    }
+
+    public int readMapHeader() {
+        final int type = readType();
+        if ((type & 0xf0) == FIXMAP) {
+            return type & 0x0f;
+        }
+
+        switch (type) {
+            case MAP16:
+                return buffer.getShort() & 0xFFFF;
+            case MAP32:
+                return checkLength(buffer.getInt());
+            default:
+                throw unexpectedType("map", type);
+        }
+    }
+
+    public void skipValue() {
+        final int type = readType();
+        if (type <= POSITIVE_FIXINT_MAX || type >= NEGATIVE_FIXINT_MIN) {
+            return;
+        }
+        if ((type & 0xf0) == FIXMAP) {
+            skipValues((type & 0x0f) * 2);
+            return;
+        }
+        if ((type & 0xf0) == FIXARRAY) {
+            skipValues(type & 0x0f);
+            return;
+        }
+        if ((type & 0xe0) == FIXSTR) {
+            skipBytes(type & 0x1f);
+            return;
+        }
+
+        switch (type) {
+            case NIL:
+            case FALSE:
+            case TRUE:
+                break;
+            case UINT8:
+            case INT8:
+                skipBytes(1);
+                break;
+            case UINT16:
+            case INT16:
+                skipBytes(2);
+                break;
+            case UINT32:
+            case INT32:
+            case FLOAT32:
+                skipBytes(4);
+                break;
+            case UINT64:
+            case INT64:
+            case FLOAT64:
+                skipBytes(8);
+                break;
+            case STR8:
+            case BIN8:
+                skipBytes(buffer.get() & 0xFF);
+                break;
+            case STR16:
+            case BIN16:
+                skipBytes(buffer.getShort() & 0xFFFF);
+                break;
+            case STR32:
+            case BIN32:
+                skipBytes(checkLength(buffer.getInt()));
+                break;
+            case ARRAY16:
+                skipValues(buffer.getShort() & 0xFFFF);
+                break;
+            case ARRAY32:
+                skipValues(checkLength(buffer.getInt()));
+                break;
+            case MAP16:
+                skipValues((buffer.getShort() & 0xFFFF) * 2);
+                break;
+            case MAP32:
+                skipValues(checkLength(buffer.getInt()) * 2L);
+                break;
+            default:
+                throw unexpectedType("value", type);
+        }
+    }
+
+    /**
+     * Reads the next value as a JSON tree.
+     * <p>
+     * This is used to support types that can only be deserialized via Gson type adapters.
+     * Map keys that are not strings are converted to their string representation.
+     *
+     * @return the next value as a JSON tree.
+     */
+    public JsonElement readJsonElement() {
+        final int type = peekType();
+        if (type == NIL) {
+            buffer.get();
+            return JsonNull.INSTANCE;
+        }
+        if (type == FALSE || type == TRUE) {
+            return new JsonPrimitive(readBoolean());
+        }
+        if (type == FLOAT32 || type == FLOAT64) {
+            return new JsonPrimitive(readDouble());
+        }
+        if (isString() || type == BIN8 || type == BIN16 || type == BIN32) {
+            return new JsonPrimitive(readString());
+        }
+        if (isArray()) {
+            final int length = readArrayHeader();
+            final JsonArray array = new JsonArray();
+            for (int i = 0; i < length; i++) {
+                array.add(readJsonElement());
+            }
+            return array;
+        }
+        if ((type & 0xf0) == FIXMAP || type == MAP16 || type == MAP32) {
+            final int length = readMapHeader();
+            final JsonObject object = new JsonObject();
+            for (int i = 0; i < length; i++) {
+                final String key = isString() ? readString() : readJsonElement().getAsString();
+                object.add(key, readJsonElement());
+            }
+            return object;
+        }
+
+        return new JsonPrimitive(readLong());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private int peekType() {
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    private int readType() {
+        return buffer.get() & 0xFF;
+    }
+
+    private int readStringHeader() {
+        final int type = readType();
+        if ((type & 0xe0) == FIXSTR) {
+            return type & 0x1f;
+        }
+
+        switch (type) {
+            case STR8:
+            case BIN8:
+                return buffer.get() & 0xFF;
+            case STR16:
+            case BIN16:
+                return buffer.getShort() & 0xFFFF;
+            case STR32:
+            case BIN32:
+                return checkLength(buffer.getInt());
+            default:
+                throw unexpectedType("string", type);
+        }
+    }
+
+    private void skipValues(final long count) {
+        for (long i = 0; i < count; i++) {
+            skipValue();
+        }
+    }
+
+    private void skipBytes(final int count) {
+        buffer.position(buffer.position() + count);
+    }
+
+    private int checkLength(final int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid length");
+        }
+        return length;
+    }
+
+    private static long toIntegral(final double value) {
+        final long integral = (long) value;
+        if (integral != value) {
+            throw new IllegalArgumentException("expected integer, got " + value);
+        }
+        return integral;
+    }
+
+    private static IllegalArgumentException unexpectedType(final String expected, final int type) {
+        return new IllegalArgumentException(String.format("expected %s, got type 0x%02x", expected, type));
+    }
+}
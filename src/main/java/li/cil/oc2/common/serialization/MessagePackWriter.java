@@ -0,0 +1,247 @@
+package li.cil.oc2.common.serialization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import static li.cil.oc2.common.serialization.MessagePack.*;
+
+/**
+ * Writes values in the MessagePack format into a growing buffer.
+ * <p>
+ * Always picks the most compact representation for integers, strings, arrays and maps.
+ * Floating point values are always written as 64-bit floats.
+ */
+public final class MessagePackWriter {
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private ByteBuffer buffer;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public MessagePackWriter() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public MessagePackWriter(final int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public int size() {
+        return buffer.position();
+    }
+
+    public void clear() {
+        buffer.clear();
+    }
+
+    /**
+     * Copies the data written so far into the specified buffer.
+     *
+     * @param target the buffer to copy the data into.
+     */
+    public void copyTo(final ByteBuffer target) {
+        target.put(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    /**
+     * Returns a copy of the data written so far.
+     *
+     * @return the data written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.position());
+    }
+
+    public void writeNil() {
+        ensureCapacity(1);
+        buffer.put((byte) NIL);
+    }
+
+    public void writeBoolean(final boolean value) {
+        ensureCapacity(1);
+        buffer.put((byte) (value ? TRUE : FALSE));
+    }
+
+    public void writeLong(final long value) {
+        ensureCapacity(9);
+        if (value >= 0) {
+            if (value <= POSITIVE_FIXINT_MAX) {
+                buffer.put((byte) value);
+            } else if (value <= 0xFF) {
+                buffer.put((byte) UINT8).put((byte) value);
+            } else if (value <= 0xFFFF) {
+                buffer.put((byte) UINT16).putShort((short) value);
+            } else if (value <= 0xFFFFFFFFL) {
+                buffer.put((byte) UINT32).putInt((int) value);
+            } else {
+                buffer.put((byte) INT64).putLong(value);
+            }
+        } else {
+            if (value >= -32) {
+                buffer.put((byte) value);
+            } else if (value >= Byte.MIN_VALUE) {
+                buffer.put((byte) INT8).put((byte) value);
+            } else if (value >= Short.MIN_VALUE) {
+                buffer.put((byte) INT16).putShort((short) value);
+            } else if (value >= Integer.MIN_VALUE) {
+                buffer.put((byte) INT32).putInt((int) value);
+            } else {
+                buffer.put((byte) INT64).putLong(value);
+            }
+        }
+    }
+
+    public void writeDouble(final double value) {
+        ensureCapacity(9);
+        buffer.put((byte) FLOAT64).putDouble(value);
+    }
+
+    public void writeString(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = bytes.length;
+        ensureCapacity(5 + length);
+        if (length <= FIXSTR_MAX_SIZE) {
+            buffer.put((byte) (FIXSTR | length));
+        } else if (length <= 0xFF) {
+            buffer.put((byte) STR8).put((byte) length);
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) STR16).putShort((short) length);
+        } else {
+            buffer.put((byte) STR32).putInt(length);
+        }
+        buffer.put(bytes);
+    }
+
+    public void writeArrayHeader(final int length) {
+        ensureCapacity(5);
+        if (length <= FIXARRAY_MAX_SIZE) {
+            buffer.put((byte) (FIXARRAY | length));
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) ARRAY16).putShort((short) length);
+        } else {
+            buffer.put((byte) ARRAY32).putInt(length);
+        }
+    }
+
+    public void writeMapHeader(final int length) {
+        ensureCapacity(5);
+        if (length <= FIXMAP_MAX_SIZE) {
+            buffer.put((byte) (FIXMAP | length));
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) MAP16).putShort((short) length);
+        } else {
+            buffer.put((byte) MAP32).putInt(length);
+        }
+    }
+
+    public void writeJsonElement(final JsonElement value) {
+        if (value.isJsonNull()) {
+            writeNil();
+        } else if (value.isJsonPrimitive()) {
+            final JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                writeBoolean(primitive.getAsBoolean());
+            } else if (primitive.isNumber()) {
+                writeNumber(primitive.getAsNumber());
+            } else {
+                writeString(primitive.getAsString());
+            }
+        } else if (value.isJsonArray()) {
+            final JsonArray array = value.getAsJsonArray();
+            writeArrayHeader(array.size());
+            for (final JsonElement element : array) {
+                writeJsonElement(element);
+            }
+        } else {
+            final JsonObject object = value.getAsJsonObject();
+            writeMapHeader(object.size());
+            for (final Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeString(entry.getKey());
+                writeJsonElement(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes an arbitrary value.
+     * <p>
+     * Primitives, strings, arrays, collections and maps are written directly. All other
+     * values are converted to a JSON tree using the specified {@link Gson} instance first,
+     * so that registered type adapters are honored.
+     *
+     * @param value the value to write.
+     * @param gson  the Gson instance used to convert values with no direct representation.
+     */
+    public void writeObject(@Nullable final Object value, final Gson gson) {
+        if (value == null) {
+            writeNil();
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String || value instanceof Character) {
+            writeString(value.toString());
+        } else if (value instanceof JsonElement) {
+            writeJsonElement((JsonElement) value);
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(collection.size());
+            for (final Object element : collection) {
+                writeObject(element, gson);
+            }
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeMapHeader(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()));
+                writeObject(entry.getValue(), gson);
+            }
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            writeArrayHeader(length);
+            for (int i = 0; i < length; i++) {
+                writeObject(Array.get(value, i), gson);
+            }
+        } else {
+            writeJsonElement(gson.toJsonTree(value));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private void writeNumber(final Number value) {
+        final double doubleValue = value.doubleValue();
+        final long longValue = value.longValue();
+        if (doubleValue == longValue && !(value instanceof Float || value instanceof Double)) {
+            writeLong(longValue);
+        } else {
+            writeDouble(doubleValue);
+        }
+    }
+
+    private void ensureCapacity(final int count) {
+        if (buffer.remaining() < count) {
+            final ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+}
@@ -13,11 +13,14 @@ public final class MessageJsonDeserializer implements JsonDeserializer<RPCDevice
         final String messageType = jsonObject.get("type").getAsString();
         final Object messageData;
         switch (messageType) {
+            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_PROTOCOLS:
             case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_LIST: {
                 messageData = null;
                 break;
             }
-            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_METHODS: {
+            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_METHODS:
+            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_SUBSCRIBE:
+            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_UNSUBSCRIBE: {
                 messageData = UUID.fromString(jsonObject.getAsJsonPrimitive("data").getAsString());
                 break;
             }
@@ -25,11 +28,23 @@ public final class MessageJsonDeserializer implements JsonDeserializer<RPCDevice
                 messageData = context.deserialize(jsonObject.getAsJsonObject("data"), RPCDeviceBusAdapter.MethodInvocation.class);
                 break;
             }
+            case RPCDeviceBusAdapter.Message.MESSAGE_TYPE_BATCH: {
+                final JsonArray invocationsJson = jsonObject.getAsJsonArray("data");
+                final RPCDeviceBusAdapter.MethodInvocation[] invocations = new RPCDeviceBusAdapter.MethodInvocation[invocationsJson.size()];
+                for (int i = 0; i < invocations.length; i++) {
+                    invocations[i] = context.deserialize(invocationsJson.get(i), RPCDeviceBusAdapter.MethodInvocation.class);
+                }
+                messageData = new RPCDeviceBusAdapter.MethodInvocationBatch(invocations, false);
+                break;
+            }
             default: {
                 throw new JsonParseException(RPCDeviceBusAdapter.ERROR_UNKNOWN_MESSAGE_TYPE);
             }
         }
 
-        return new RPCDeviceBusAdapter.Message(messageType, messageData);
+        final JsonElement id = jsonObject.get("id");
+        final Long messageId = id != null && id.isJsonPrimitive() ? id.getAsLong() : null;
+
+        return new RPCDeviceBusAdapter.Message(messageId, messageType, messageData);
     }
 }
@@ -13,6 +13,7 @@ import li.cil.oc2.common.block.ComputerBlock;
 import li.cil.oc2.common.bus.CommonDeviceBusController;
 import li.cil.oc2.common.bus.BlockEntityDeviceBusController;
 import li.cil.oc2.common.bus.BlockEntityDeviceBusElement;
+import li.cil.oc2.common.bus.device.item.RedstoneInterfaceCardItemDevice;
 import li.cil.oc2.common.bus.device.util.BlockDeviceInfo;
 import li.cil.oc2.common.bus.device.util.Devices;
 import li.cil.oc2.common.capabilities.Capabilities;
@@ -74,7 +75,7 @@ public final class ComputerBlockEntity extends AbstractBlockEntity implements Ti
     private final BlockEntityDeviceBusElement busElement = new ComputerBusElement();
     private final ComputerContainerHelpers deviceItems = new ComputerContainerHelpers();
     private final FixedEnergyStorage energy = new FixedEnergyStorage(Config.computerEnergyStorage);
-    private final ComputerVirtualMachine virtualMachine = new ComputerVirtualMachine(new BlockEntityDeviceBusController(busElement, Config.computerEnergyPerTick, this), deviceItems::getDeviceAddressBase);
+    private final ComputerVirtualMachine virtualMachine = new ComputerVirtualMachine(new BlockEntityDeviceBusController(busElement, Config.maxBusElementCount, Config.computerEnergyPerTick, this), deviceItems::getDeviceAddressBase);
     private final Set<Player> terminalUsers = Collections.newSetFromMap(new WeakHashMap<>());
 
     ///////////////////////////////////////////////////////////////////
@@ -180,6 +181,12 @@ public final class ComputerBlockEntity extends AbstractBlockEntity implements Ti
 
     public void handleNeighborChanged() {
         virtualMachine.busController.scheduleBusScan();
+
+        for (final Device device : virtualMachine.busController.getDevices()) {
+            if (device instanceof RedstoneInterfaceCardItemDevice) {
+                ((RedstoneInterfaceCardItemDevice) device).handleNeighborChanged();
+            }
+        }
     }
 
     @Override
@@ -424,6 +431,11 @@ public final class ComputerBlockEntity extends AbstractBlockEntity implements Ti
             super.tick();
         }
 
+        @Override
+        public Optional<Location> getLocation() {
+            return Location.of(ComputerBlockEntity.this);
+        }
+
         @Override
         protected boolean consumeEnergy(final int amount, final boolean simulate) {
             if (!Config.computersUseEnergy()) {
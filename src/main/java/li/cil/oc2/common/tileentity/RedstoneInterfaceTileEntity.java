@@ -4,6 +4,9 @@ import li.cil.oc2.api.bus.device.object.Callback;
 import li.cil.oc2.api.bus.device.object.DocumentedDevice;
 import li.cil.oc2.api.bus.device.object.NamedDevice;
 import li.cil.oc2.api.bus.device.object.Parameter;
+import li.cil.oc2.api.bus.device.rpc.RPCEventEmitter;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.common.Constants;
 import li.cil.oc2.common.util.HorizontalDirectionalBlockUtils;
 import net.minecraft.core.BlockPos;
@@ -16,10 +19,11 @@ import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
 
 import java.util.Collection;
+import java.util.HashMap;
 
 import static java.util.Collections.singletonList;
 
-public final class RedstoneInterfaceBlockEntity extends BlockEntity implements NamedDevice, DocumentedDevice {
+public final class RedstoneInterfaceBlockEntity extends BlockEntity implements NamedDevice, DocumentedDevice, RPCEventSource {
     private static final String OUTPUT_TAG_NAME = "output";
 
     private static final String GET_REDSTONE_INPUT = "getRedstoneInput";
@@ -27,10 +31,13 @@ public final class RedstoneInterfaceBlockEntity extends BlockEntity implements N
     private static final String SET_REDSTONE_OUTPUT = "setRedstoneOutput";
     private static final String SIDE = "side";
     private static final String VALUE = "value";
+    private static final String REDSTONE_INPUT_EVENT = "redstone_input";
 
     ///////////////////////////////////////////////////////////////////
 
     private final byte[] output = new byte[Constants.BLOCK_FACE_COUNT];
+    private final byte[] input = new byte[Constants.BLOCK_FACE_COUNT]; // last input levels, for change events
+    private final RPCEventEmitter events = new RPCEventEmitter();
 
     ///////////////////////////////////////////////////////////////////
 
@@ -54,6 +61,24 @@ public final class RedstoneInterfaceBlockEntity extends BlockEntity implements N
         System.arraycopy(serializedOutput, 0, output, 0, Math.min(serializedOutput.length, output.length));
     }
 
+    public void handleNeighborChanged() {
+        if (!events.hasListeners()) {
+            return;
+        }
+
+        for (final Direction side : Constants.DIRECTIONS) {
+            final byte value = (byte) setSignal(side);
+            if (value != input[side.get3DDataValue()]) {
+                input[side.get3DDataValue()] = value;
+
+                final HashMap<String, Object> data = new HashMap<>();
+                data.put(SIDE, side);
+                data.put(VALUE, value);
+                events.emit(REDSTONE_INPUT_EVENT, data);
+            }
+        }
+    }
+
     public int getOutputForDirection(final Direction direction) {
         final Direction localDirection = HorizontalDirectionalBlockUtils.toLocal(getBlockState(), direction);
         assert localDirection != null;
@@ -103,6 +128,22 @@ public final class RedstoneInterfaceBlockEntity extends BlockEntity implements N
         setChanged();
     }
 
+    @Override
+    public void addEventListener(final RPCEventListener listener) {
+        if (!events.hasListeners()) {
+            // Start from the current levels, so we only report actual changes.
+            for (final Direction side : Constants.DIRECTIONS) {
+                input[side.get3DDataValue()] = (byte) setSignal(side);
+            }
+        }
+        events.addEventListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(final RPCEventListener listener) {
+        events.removeEventListener(listener);
+    }
+
     @Override
     public Collection<String> getDeviceTypeNames() {
         return singletonList("redstone");
@@ -14,6 +14,8 @@ public abstract class AbstractTerminalVMRunner extends VMRunner {
     // Thread-local buffers for lock-free read/writes in inner loop.
     private final ByteArrayFIFOQueue outputBuffer = new ByteArrayFIFOQueue(1024);
     private final ByteArrayFIFOQueue inputBuffer = new ByteArrayFIFOQueue(32);
+    private boolean didTransferData;
+    private volatile long terminalBytesSent; // written by the VM thread, read on the main thread
 
     ///////////////////////////////////////////////////////////////////
 
@@ -25,6 +27,12 @@ public abstract class AbstractTerminalVMRunner extends VMRunner {
 
     ///////////////////////////////////////////////////////////////////
 
+    public long getTerminalBytesSent() {
+        return terminalBytesSent;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
     protected abstract void sendTerminalUpdateToClient(final ByteBuffer output);
 
     ///////////////////////////////////////////////////////////////////
@@ -43,17 +51,31 @@ public abstract class AbstractTerminalVMRunner extends VMRunner {
     protected void step(final int cyclesPerStep) {
         super.step(cyclesPerStep);
 
+        didTransferData = false;
+
         while (!inputBuffer.isEmpty() && uart.canPutByte()) {
             uart.putByte(inputBuffer.dequeueByte());
+            didTransferData = true;
         }
         uart.flush();
 
         int value;
         while ((value = uart.read()) != -1) {
             outputBuffer.enqueue((byte) value);
+            didTransferData = true;
         }
     }
 
+    @Override
+    protected boolean canHibernate() {
+        return super.canHibernate() && !terminal.hasInput();
+    }
+
+    @Override
+    protected boolean hasPendingIO() {
+        return super.hasPendingIO() || didTransferData || !inputBuffer.isEmpty();
+    }
+
     @Override
     protected void handleAfterRun() {
         super.handleAfterRun();
@@ -71,6 +93,7 @@ public abstract class AbstractTerminalVMRunner extends VMRunner {
 
     private void putTerminalOutput(final ByteBuffer output) {
         if (output.hasRemaining()) {
+            terminalBytesSent += output.remaining();
             terminal.putOutput(output);
 
             output.flip();
@@ -1,13 +1,19 @@
 package li.cil.oc2.common.vm;
 
 import li.cil.ceres.api.Serialized;
+import li.cil.oc2.api.bus.device.object.ObjectDevice;
 import li.cil.oc2.api.bus.device.vm.FirmwareLoader;
 import li.cil.oc2.api.bus.device.vm.VMDeviceLoadResult;
 import li.cil.oc2.api.bus.device.vm.event.VMPausingEvent;
+import li.cil.oc2.common.Config;
 import li.cil.oc2.common.Constants;
 import li.cil.oc2.common.bus.CommonDeviceBusController;
+import li.cil.oc2.common.bus.FallbackRPCTransport;
 import li.cil.oc2.common.bus.RPCDeviceBusAdapter;
+import li.cil.oc2.common.bus.RPCTransport;
+import li.cil.oc2.common.bus.SerialDeviceRPCTransport;
 import li.cil.oc2.common.serialization.TagSerialization;
+import li.cil.oc2.common.util.Location;
 import li.cil.oc2.common.util.NBTTagIds;
 import li.cil.oc2.common.util.NBTUtils;
 import li.cil.oc2.common.vm.context.global.GlobalVMContext;
@@ -20,7 +26,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Objects;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public abstract class AbstractVirtualMachine implements VirtualMachine {
     private static final Logger LOGGER = LogManager.getLogger();
@@ -36,6 +43,11 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
 
     private static final int DEVICE_LOAD_RETRY_INTERVAL = 10 * Constants.TICK_SECONDS;
 
+    private static final UUID PERFORMANCE_COUNTERS_DEVICE_ID = UUID.fromString("5d4c3f6a-0f3b-4a53-9a2e-7f1e8c0b2d41");
+
+    // All virtual machines, so operators can find out which ones are expensive.
+    private static final Set<AbstractVirtualMachine> VIRTUAL_MACHINES = Collections.newSetFromMap(new WeakHashMap<>());
+
     ///////////////////////////////////////////////////////////////////
 
     public final CommonDeviceBusController busController;
@@ -55,6 +67,7 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
     public AbstractTerminalVMRunner runner;
     private VMRunState runState = VMRunState.STOPPED;
     private Component bootError;
+    private long energyConsumed;
 
     ///////////////////////////////////////////////////////////////////
 
@@ -68,13 +81,43 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
 
         state.board = new R5Board();
         state.context = new GlobalVMContext(state.board, this::joinWorkerThread);
-        state.builtinDevices = new BuiltinDevices(state.context);
-        state.rpcAdapter = new RPCDeviceBusAdapter(state.builtinDevices.rpcSerialDevice);
+        state.builtinDevices = new BuiltinDevices(state.context, Config.rpcUseMemoryTransport);
+        // The console stays in use until the guest sets up the memory transport, so guests
+        // without a driver for it keep working.
+        final RPCTransport consoleTransport = new SerialDeviceRPCTransport(state.builtinDevices.rpcSerialDevice);
+        final RPCTransport rpcTransport = state.builtinDevices.rpcMemoryDevice != null
+                ? new FallbackRPCTransport(state.builtinDevices.rpcMemoryDevice, consoleTransport)
+                : consoleTransport;
+        state.rpcAdapter = new RPCDeviceBusAdapter(rpcTransport,
+                Config.rpcMaxMessageSize, Config.rpcMaxInFlightRequests, Config.rpcMaxPendingResponseSize,
+                Config.rpcMaxChunkedMessageSize, new AllocatorMessageMemory());
         state.vmAdapter = new VMDeviceBusAdapter(state.context);
 
         state.board.getCpu().setFrequency(Constants.CPU_FREQUENCY);
         state.board.setBootArguments("root=/dev/vda rw");
         state.board.setStandardOutputDevice(state.builtinDevices.uart);
+
+        state.rpcAdapter.addBuiltinDevice(PERFORMANCE_COUNTERS_DEVICE_ID,
+                new ObjectDevice(new PerformanceCountersDevice(this), PerformanceCountersDevice.TYPE_NAME));
+
+        synchronized (VIRTUAL_MACHINES) {
+            VIRTUAL_MACHINES.add(this);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns all running virtual machines.
+     *
+     * @return the list of running virtual machines.
+     */
+    public static List<AbstractVirtualMachine> getRunningVirtualMachines() {
+        synchronized (VIRTUAL_MACHINES) {
+            return VIRTUAL_MACHINES.stream()
+                    .filter(AbstractVirtualMachine::isRunning)
+                    .collect(Collectors.toList());
+        }
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -82,8 +125,43 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
     public void unload() {
         joinWorkerThread();
         state.vmAdapter.suspend();
+        state.rpcAdapter.dispose();
         state.context.invalidate();
         busController.dispose();
+
+        synchronized (VIRTUAL_MACHINES) {
+            VIRTUAL_MACHINES.remove(this);
+        }
+    }
+
+    /**
+     * The location of the virtual machine in the world, if any.
+     *
+     * @return the current location.
+     */
+    public Optional<Location> getLocation() {
+        return Optional.empty();
+    }
+
+    public VMPerformanceCounters getPerformanceCounters() {
+        final VMPerformanceCounters counters = new VMPerformanceCounters();
+
+        if (runner != null) {
+            counters.cycles = runner.getCycles();
+            counters.cycleLimit = runner.getCycleLimit();
+            counters.runTimeLastTickInNanos = runner.getRunTimeLastTickInNanos();
+            counters.terminalBytesSent = runner.getTerminalBytesSent();
+        }
+
+        counters.rpcMessagesReceived = state.rpcAdapter.getMessagesReceived();
+        counters.rpcMessagesSent = state.rpcAdapter.getMessagesSent();
+        counters.rpcBytesReceived = state.rpcAdapter.getBytesReceived();
+        counters.rpcBytesSent = state.rpcAdapter.getBytesSent();
+        counters.energyConsumed = energyConsumed;
+
+        state.context.postEvent(new CollectPerformanceCountersEvent(counters));
+
+        return counters;
     }
 
     @Override
@@ -203,6 +281,7 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
         state.vmAdapter.unload();
 
         runner = null;
+        energyConsumed = 0;
     }
 
     public void tick() {
@@ -315,6 +394,12 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
             return;
         }
 
+        // Devices restore their data, e.g. memory and disk contents, in the background. Keep
+        // checking each tick instead of blocking the server until they are done.
+        if (!state.vmAdapter.isInitializationComplete()) {
+            return;
+        }
+
         if (busController.getDevices().stream().noneMatch(device -> device instanceof FirmwareLoader)) {
             error(new TranslatableComponent(Constants.COMPUTER_ERROR_MISSING_FIRMWARE));
             return;
@@ -361,11 +446,14 @@ public abstract class AbstractVirtualMachine implements VirtualMachine {
             return;
         }
 
-        if (!consumeEnergy(busController.getEnergyConsumption(), false)) {
+        final int energyConsumption = busController.getEnergyConsumption();
+        if (!consumeEnergy(energyConsumption, false)) {
             error(new TranslatableComponent(Constants.COMPUTER_ERROR_NOT_ENOUGH_ENERGY));
             return;
         }
 
+        energyConsumed += energyConsumption;
+
         runner.tick();
     }
 
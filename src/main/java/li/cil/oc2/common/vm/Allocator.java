@@ -14,6 +14,8 @@ import java.util.stream.Collectors;
  * <p>
  * Call sites must be cooperative and only free claimed memory when actually being sure the
  * allocated memory associated with the claim will be garbage collected.
+ * <p>
+ * Memory may be claimed and freed from any thread.
  */
 public final class Allocator {
     private static final Logger LOGGER = LogManager.getLogger();
@@ -43,7 +45,7 @@ public final class Allocator {
      * @param size   the amount of memory to claim.
      * @return {@code true} if the memory was successfully claimed; {@code false} otherwise.
      */
-    public static boolean claimMemory(final UUID handle, final int size) {
+    public static synchronized boolean claimMemory(final UUID handle, final int size) {
         if (!checkArgs(handle, size)) {
             return false;
         }
@@ -62,7 +64,7 @@ public final class Allocator {
      *
      * @param handle the handle to release the claimed memory for.
      */
-    public static void freeMemory(final UUID handle) {
+    public static synchronized void freeMemory(final UUID handle) {
         final Allocation allocation = ALLOCATIONS.remove(handle);
         if (allocation != null) {
             allocated -= allocation.size;
@@ -72,7 +74,7 @@ public final class Allocator {
     /**
      * Clears all remaining allocations and logs their stack traces.
      */
-    public static void resetAndCheckLeaks() {
+    public static synchronized void resetAndCheckLeaks() {
         if (allocated > 0) {
             for (final Allocation allocation : ALLOCATIONS.values()) {
                 // Skip first three: Allocator::claimMemory, Allocation::new, Throwable::getStacktrace
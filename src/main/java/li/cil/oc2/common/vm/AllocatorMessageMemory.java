@@ -0,0 +1,20 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.oc2.common.bus.RPCMessageMemory;
+
+import java.util.UUID;
+
+/**
+ * Charges the memory used for assembling chunked RPC messages against the {@link Allocator}.
+ */
+public final class AllocatorMessageMemory implements RPCMessageMemory {
+    private final UUID handle = Allocator.createHandle();
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean resize(final int size) {
+        Allocator.freeMemory(handle);
+        return size == 0 || Allocator.claimMemory(handle, size);
+    }
+}
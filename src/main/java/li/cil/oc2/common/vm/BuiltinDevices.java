@@ -9,12 +9,15 @@ import li.cil.sedna.device.serial.UART16550A;
 import li.cil.sedna.device.virtio.VirtIOConsoleDevice;
 import li.cil.sedna.device.virtio.VirtIOFileSystemDevice;
 
+import javax.annotation.Nullable;
+
 public final class BuiltinDevices {
     public static final int RTC_HOST_INTERRUPT = 0x1;
     public static final int RTC_MINECRAFT_INTERRUPT = 0x2;
     public static final int RPC_INTERRUPT = 0x3;
     private static final int UART_INTERRUPT = 0x4;
     private static final int VFS_INTERRUPT = 0x5;
+    public static final int RPC_MEMORY_INTERRUPT = 0x6;
 
     ///////////////////////////////////////////////////////////////////
 
@@ -23,12 +26,13 @@ public final class BuiltinDevices {
     ///////////////////////////////////////////////////////////////////
 
     @Serialized public VirtIOConsoleDevice rpcSerialDevice;
+    @Serialized @Nullable public RPCMemoryTransportDevice rpcMemoryDevice; // only present if enabled
     @Serialized public UART16550A uart;
     @Serialized public VirtIOFileSystemDevice vfs;
 
     ///////////////////////////////////////////////////////////////////
 
-    public BuiltinDevices(final GlobalVMContext context) {
+    public BuiltinDevices(final GlobalVMContext context, final boolean useMemoryTransport) {
         final GoldfishRTC rtcHost = new GoldfishRTC(SystemTimeRealTimeCounter.get());
         if (!context.getInterruptAllocator().claimInterrupt(RTC_HOST_INTERRUPT)) throw new IllegalStateException();
         rtcHost.getInterrupt().set(RTC_HOST_INTERRUPT, context.getInterruptController());
@@ -53,5 +57,13 @@ public final class BuiltinDevices {
         if (!context.getInterruptAllocator().claimInterrupt(VFS_INTERRUPT)) throw new IllegalStateException();
         vfs.getInterrupt().set(VFS_INTERRUPT, context.getInterruptController());
         context.getMemoryRangeAllocator().claimMemoryRange(vfs);
+
+        // Claimed last, so enabling it does not move the devices above in existing VMs.
+        if (useMemoryTransport) {
+            rpcMemoryDevice = new RPCMemoryTransportDevice(context.getMemoryMap());
+            if (!context.getInterruptAllocator().claimInterrupt(RPC_MEMORY_INTERRUPT)) throw new IllegalStateException();
+            rpcMemoryDevice.getInterrupt().set(RPC_MEMORY_INTERRUPT, context.getInterruptController());
+            context.getMemoryRangeAllocator().claimMemoryRange(rpcMemoryDevice);
+        }
     }
 }
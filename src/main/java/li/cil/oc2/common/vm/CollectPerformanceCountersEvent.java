@@ -0,0 +1,21 @@
+package li.cil.oc2.common.vm;
+
+/**
+ * Posted to the event bus of a virtual machine when its performance counters are queried,
+ * allowing devices to contribute their own statistics.
+ */
+public final class CollectPerformanceCountersEvent {
+    private final VMPerformanceCounters counters;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public CollectPerformanceCountersEvent(final VMPerformanceCounters counters) {
+        this.counters = counters;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public void addBlobStorageBytes(final long value) {
+        counters.blobStorageBytes += value;
+    }
+}
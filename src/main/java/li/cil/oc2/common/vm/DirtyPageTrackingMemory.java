@@ -0,0 +1,472 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Wraps a {@link PhysicalMemory} and keeps track of the pages written to since the last
+ * call to {@link #clearDirtyPages()}.
+ * <p>
+ * This allows persisting only the parts of memory that changed since the last save. Dirty
+ * pages are serialized as a sequence of records, each consisting of the 32-bit page
+ * index, big-endian, followed by the contents of the page.
+ * <p>
+ * Streams reading memory contents work on a copy-on-write snapshot of memory taken when the
+ * stream is created: pages not read yet are copied right before they are first written to
+ * while the stream is open. This allows the virtual machine to keep running while the stream
+ * is consumed. Multiple such streams may be open at a time. Copies take up to
+ * {@link #getSnapshotCopyLimit(boolean)} bytes of memory, which callers should reserve using
+ * the {@link Allocator}. Streams may be limited to fewer bytes for copies, in which case writes
+ * to pages not read yet wait for the stream to read them once that limit is reached.
+ * <p>
+ * Snapshots must be started while the virtual machine is paused. Data written to the
+ * {@link #getBackingMemory() backing memory} or via {@link #getDirtyPageOutputStream()} is not
+ * tracked, since it has already been saved.
+ */
+public final class DirtyPageTrackingMemory extends PhysicalMemory {
+    public static final int PAGE_SIZE = 4 * 1024;
+    private static final int PAGE_SIZE_LOG2 = 12;
+    private static final int PAGE_INDEX_SIZE = 4;
+    private static final Snapshot[] NO_SNAPSHOTS = {};
+
+    // Once this many pages were saved in deltas since the last full snapshot, write a full
+    // snapshot again instead of another delta, to keep the deltas from outgrowing the snapshot.
+    public static final int MAX_DELTA_PAGE_COUNT_DIVISOR = 2;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final PhysicalMemory memory;
+    private final int pageCount;
+    private final long[] dirtyPages;
+    private int dirtyPageCount;
+    private boolean isModified; // since the last call to clearModified()
+    private volatile Snapshot[] snapshots = NO_SNAPSHOTS;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public DirtyPageTrackingMemory(final PhysicalMemory memory) {
+        this.memory = memory;
+        this.pageCount = (memory.getLength() + PAGE_SIZE - 1) >>> PAGE_SIZE_LOG2;
+        this.dirtyPages = new long[(pageCount + 63) >>> 6];
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public PhysicalMemory getBackingMemory() {
+        return memory;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public int getDirtyPageCount() {
+        return dirtyPageCount;
+    }
+
+    /**
+     * The size of the data produced by {@link #getDirtyPageInputStream()} in bytes.
+     *
+     * @return the size of the serialized dirty pages.
+     */
+    public long getDirtyPageDataSize() {
+        return (long) dirtyPageCount * (PAGE_INDEX_SIZE + PAGE_SIZE);
+    }
+
+    /**
+     * Whether so many pages changed since the last full snapshot that a full snapshot should
+     * be written instead of another delta.
+     *
+     * @param savedDeltaPageCount the number of pages in deltas saved since the last full snapshot.
+     * @return {@code true} if a full snapshot should be written; {@code false} otherwise.
+     */
+    public boolean shouldWriteFullSnapshot(final int savedDeltaPageCount) {
+        return (long) savedDeltaPageCount + dirtyPageCount > pageCount / MAX_DELTA_PAGE_COUNT_DIVISOR;
+    }
+
+    /**
+     * The maximum amount of memory in bytes pages copied for a stream created by
+     * {@link #getSnapshotInputStream()} or {@link #getDirtyPageInputStream()} may take up,
+     * if the stream is created now.
+     *
+     * @param isDelta whether the limit for a dirty page stream is requested.
+     * @return the maximum size of page copies.
+     */
+    public long getSnapshotCopyLimit(final boolean isDelta) {
+        return isDelta ? (long) dirtyPageCount * PAGE_SIZE : memory.getLength();
+    }
+
+    public void clearDirtyPages() {
+        Arrays.fill(dirtyPages, 0);
+        dirtyPageCount = 0;
+    }
+
+    /**
+     * Whether memory has been written to since the last call to {@link #clearModified()}.
+     *
+     * @return {@code true} if memory was written to; {@code false} otherwise.
+     */
+    public boolean isModified() {
+        return isModified;
+    }
+
+    public void clearModified() {
+        isModified = false;
+    }
+
+    /**
+     * Whether a stream created by {@link #getSnapshotInputStream()} or {@link #getDirtyPageInputStream()}
+     * is currently open.
+     *
+     * @return {@code true} if a snapshot is being read; {@code false} otherwise.
+     */
+    public boolean isSnapshotActive() {
+        return snapshots.length > 0;
+    }
+
+    /**
+     * Creates a stream of the full contents of memory at the time of this call.
+     *
+     * @return a stream of the memory contents.
+     */
+    public InputStream getSnapshotInputStream() {
+        return getSnapshotInputStream(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a stream of the full contents of memory at the time of this call.
+     *
+     * @param copyLimit the maximum number of bytes to use for page copies.
+     * @return a stream of the memory contents.
+     */
+    public InputStream getSnapshotInputStream(final long copyLimit) {
+        return new SnapshotInputStream(beginSnapshot(null, copyLimit));
+    }
+
+    /**
+     * Creates a stream of records for all pages currently marked dirty, with their contents at
+     * the time of this call.
+     *
+     * @return a stream of dirty page records.
+     */
+    public InputStream getDirtyPageInputStream() {
+        return getDirtyPageInputStream(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a stream of records for all pages currently marked dirty, with their contents at
+     * the time of this call.
+     *
+     * @param copyLimit the maximum number of bytes to use for page copies.
+     * @return a stream of dirty page records.
+     */
+    public InputStream getDirtyPageInputStream(final long copyLimit) {
+        return new SnapshotInputStream(beginSnapshot(dirtyPages.clone(), copyLimit));
+    }
+
+    /**
+     * Creates a stream that applies records written to it to the backing memory.
+     * <p>
+     * Records for pages outside of memory are ignored.
+     *
+     * @return a stream to write dirty page records to.
+     */
+    public OutputStream getDirtyPageOutputStream() {
+        return new DirtyPageOutputStream();
+    }
+
+    @Override
+    public int getLength() {
+        return memory.getLength();
+    }
+
+    @Override
+    public long load(final int offset, final int sizeLog2) throws MemoryAccessException {
+        return memory.load(offset, sizeLog2);
+    }
+
+    @Override
+    public void store(final int offset, final long value, final int sizeLog2) throws MemoryAccessException {
+        for (final Snapshot snapshot : snapshots) {
+            snapshot.preserve(offset, 1 << sizeLog2);
+        }
+
+        memory.store(offset, value, sizeLog2);
+        markModified(offset, 1 << sizeLog2);
+    }
+
+    @Override
+    public void load(final int offset, final ByteBuffer dst) throws MemoryAccessException {
+        memory.load(offset, dst);
+    }
+
+    @Override
+    public void store(final int offset, final ByteBuffer src) throws MemoryAccessException {
+        final int length = src.remaining();
+
+        for (final Snapshot snapshot : snapshots) {
+            snapshot.preserve(offset, length);
+        }
+
+        memory.store(offset, src);
+        markModified(offset, length);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    // Snapshots are only added on the thread running the virtual machine, while it is paused,
+    // but are removed from the threads reading them.
+    private synchronized Snapshot beginSnapshot(@Nullable final long[] pages, final long copyLimit) {
+        final Snapshot snapshot = new Snapshot(pages, copyLimit);
+        final Snapshot[] newSnapshots = Arrays.copyOf(snapshots, snapshots.length + 1);
+        newSnapshots[snapshots.length] = snapshot;
+        snapshots = newSnapshots;
+        return snapshot;
+    }
+
+    private synchronized void endSnapshot(final Snapshot value) {
+        value.close();
+
+        final ArrayList<Snapshot> newSnapshots = new ArrayList<>(Arrays.asList(snapshots));
+        if (newSnapshots.remove(value)) {
+            snapshots = newSnapshots.toArray(NO_SNAPSHOTS);
+        }
+    }
+
+    private void markModified(final int offset, final int length) {
+        isModified = true;
+        markDirty(offset, length);
+    }
+
+    private void markDirty(final int offset, final int length) {
+        final int firstPage = offset >>> PAGE_SIZE_LOG2;
+        final int lastPage = Math.min(pageCount - 1, (offset + length - 1) >>> PAGE_SIZE_LOG2);
+        for (int page = firstPage; page <= lastPage; page++) {
+            final long mask = 1L << page;
+            final int index = page >>> 6;
+            if ((dirtyPages[index] & mask) == 0) {
+                dirtyPages[index] |= mask;
+                dirtyPageCount++;
+            }
+        }
+    }
+
+    private static boolean isPageSet(final long[] pages, final int page) {
+        return (pages[page >>> 6] & (1L << page)) != 0;
+    }
+
+    private int getPageLength(final int page) {
+        return Math.min(PAGE_SIZE, memory.getLength() - (page << PAGE_SIZE_LOG2));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final class Snapshot {
+        // Original contents of pages written to since the snapshot was taken. Only the thread
+        // running the virtual machine adds pages, and readers hold the lock while reading a page,
+        // so a page cannot change while it is being read.
+        private final byte[][] pageCopies = new byte[pageCount][];
+        @Nullable public final long[] pages; // null for all pages
+        private long remainingCopyBytes;
+        private volatile int nextPage; // pages before this have been read, pages are read in order
+        private boolean isClosed;
+
+        public Snapshot(@Nullable final long[] pages, final long copyLimit) {
+            this.pages = pages;
+            this.remainingCopyBytes = copyLimit;
+        }
+
+        public void preserve(final int offset, final int length) throws MemoryAccessException {
+            final int firstPage = Math.max(nextPage, offset >>> PAGE_SIZE_LOG2);
+            final int lastPage = Math.min(pageCount - 1, (offset + length - 1) >>> PAGE_SIZE_LOG2);
+            for (int page = firstPage; page <= lastPage; page++) {
+                // Pages not part of the snapshot are never read, no need to copy them.
+                if (pageCopies[page] == null && (pages == null || isPageSet(pages, page))) {
+                    preservePage(page);
+                }
+            }
+        }
+
+        public synchronized void readPage(final int page, final ByteBuffer dst) throws MemoryAccessException {
+            final byte[] copy = pageCopies[page];
+            if (copy != null) {
+                dst.put(copy);
+                pageCopies[page] = null;
+            } else {
+                memory.load(page << PAGE_SIZE_LOG2, dst);
+            }
+
+            nextPage = page + 1;
+            notifyAll();
+        }
+
+        public synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+
+        private synchronized void preservePage(final int page) throws MemoryAccessException {
+            boolean wasInterrupted = false;
+            while (!isClosed && page >= nextPage && pageCopies[page] == null) {
+                final int length = getPageLength(page);
+                if (remainingCopyBytes >= length) {
+                    final byte[] copy = new byte[length];
+                    memory.load(page << PAGE_SIZE_LOG2, ByteBuffer.wrap(copy));
+                    pageCopies[page] = copy;
+                    remainingCopyBytes -= length;
+                    break;
+                }
+
+                // Out of memory for copies, wait for the page to be read before it is changed.
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    wasInterrupted = true;
+                }
+            }
+
+            if (wasInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class SnapshotInputStream extends InputStream {
+        private final Snapshot snapshot;
+        @Nullable private final long[] pages; // null for all pages, without page indices
+        private final ByteBuffer record = ByteBuffer.allocate(PAGE_INDEX_SIZE + PAGE_SIZE);
+        private int nextPage;
+
+        public SnapshotInputStream(final Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.pages = snapshot.pages;
+            record.limit(0);
+        }
+
+        @Override
+        public void close() {
+            endSnapshot(snapshot);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fillRecord()) {
+                return -1;
+            }
+            return record.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fillRecord()) {
+                return -1;
+            }
+
+            final int count = Math.min(length, record.remaining());
+            record.get(bytes, offset, count);
+            return count;
+        }
+
+        private boolean fillRecord() throws IOException {
+            if (record.hasRemaining()) {
+                return true;
+            }
+
+            if (pages != null) {
+                while (nextPage < pageCount && !isPageSet(pages, nextPage)) {
+                    nextPage++;
+                }
+            }
+            if (nextPage >= pageCount) {
+                return false;
+            }
+
+            final int page = nextPage++;
+            record.clear();
+            if (pages != null) {
+                record.putInt(page);
+            }
+            record.limit(record.position() + getPageLength(page));
+            try {
+                snapshot.readPage(page, record);
+            } catch (final MemoryAccessException e) {
+                throw new IOException(e);
+            }
+            record.flip();
+
+            return true;
+        }
+    }
+
+    private final class DirtyPageOutputStream extends OutputStream {
+        private final ByteBuffer record = ByteBuffer.allocate(PAGE_INDEX_SIZE + PAGE_SIZE);
+        private int page = -1; // -1 while reading the page index of the current record
+
+        public DirtyPageOutputStream() {
+            record.limit(PAGE_INDEX_SIZE);
+        }
+
+        @Override
+        public void write(final int value) throws IOException {
+            record.put((byte) value);
+            handleRecordData();
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = Math.min(length, record.remaining());
+                record.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+                handleRecordData();
+            }
+        }
+
+        private void handleRecordData() throws IOException {
+            if (page < 0) {
+                if (record.hasRemaining()) {
+                    return;
+                }
+
+                page = record.getInt(0);
+                if (page < 0 || page >= pageCount) {
+                    // Not a page we have, skip over a full page worth of data.
+                    page = Integer.MAX_VALUE;
+                    record.limit(PAGE_INDEX_SIZE + PAGE_SIZE);
+                } else {
+                    record.limit(PAGE_INDEX_SIZE + getPageLength(page));
+                }
+            }
+
+            if (record.hasRemaining()) {
+                return;
+            }
+
+            if (page < pageCount) {
+                record.flip();
+                record.position(PAGE_INDEX_SIZE);
+                try {
+                    memory.store(page << PAGE_SIZE_LOG2, record);
+                } catch (final MemoryAccessException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            record.clear();
+            record.limit(PAGE_INDEX_SIZE);
+            page = -1;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package li.cil.oc2.common.vm;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import li.cil.sedna.api.device.BlockDevice;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link BlockDevice} reading its data on demand from a file.
+ * <p>
+ * Written blocks are kept in memory until {@link #prepareWriteBack()} is called, and the returned
+ * job is run. This way the file only ever contains data from the last save. Blocks that have
+ * never been written are not stored in the file, so it stays sparse.
+ * <p>
+ * Until a file is {@link #open(FileChannel) opened}, the device reads as all zeros.
+ */
+public final class FileBackedBlockDevice implements BlockDevice {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static final int BLOCK_SIZE = 4 * 1024;
+    private static final int BLOCK_SIZE_LOG2 = 12;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final long capacity;
+    private final boolean readonly;
+
+    // Blocks written since the last call to prepareWriteBack().
+    private Int2ObjectOpenHashMap<byte[]> dirtyBlocks = new Int2ObjectOpenHashMap<>();
+    // Blocks handed to a write back job that has not completed yet. Never modified, writes
+    // to these blocks create a copy in dirtyBlocks instead.
+    private final Int2ObjectOpenHashMap<byte[]> writeBackBlocks = new Int2ObjectOpenHashMap<>();
+    @Nullable private FileChannel channel;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public FileBackedBlockDevice(final long capacity, final boolean readonly) {
+        this.capacity = capacity;
+        this.readonly = readonly;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the file to read blocks from and write blocks back to.
+     * <p>
+     * The device takes ownership of the channel and closes it when it is closed.
+     *
+     * @param channel the channel to the file.
+     */
+    public synchronized void open(final FileChannel channel) {
+        closeChannel();
+        this.channel = channel;
+    }
+
+    public synchronized int getDirtyBlockCount() {
+        return dirtyBlocks.size();
+    }
+
+    /**
+     * Takes the blocks written since the last call and creates a job writing them to the file.
+     * <p>
+     * The device may be used while the job runs. Jobs must be run in the order they were
+     * created in, one at a time.
+     *
+     * @return the job writing the blocks to the file.
+     */
+    public synchronized Runnable prepareWriteBack() {
+        final Int2ObjectOpenHashMap<byte[]> blocks = dirtyBlocks;
+        dirtyBlocks = new Int2ObjectOpenHashMap<>();
+        writeBackBlocks.putAll(blocks);
+        return () -> writeBack(blocks);
+    }
+
+    @Override
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset) {
+        return new BlockInputStream(offset);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final long offset) {
+        if (readonly) {
+            throw new UnsupportedOperationException();
+        }
+        return new BlockOutputStream(offset);
+    }
+
+    @Override
+    public void flush() {
+        // Blocks are only written to the file when the device is saved.
+    }
+
+    @Override
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private synchronized int read(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+        final int blockOffset = (int) (position & (BLOCK_SIZE - 1));
+        final int count = (int) Math.min(Math.min(length, BLOCK_SIZE - blockOffset), capacity - position);
+        if (count <= 0) {
+            return -1;
+        }
+
+        final byte[] block = getCachedBlock((int) (position >>> BLOCK_SIZE_LOG2));
+        if (block != null) {
+            System.arraycopy(block, blockOffset, bytes, offset, count);
+        } else {
+            readFromFile(position, bytes, offset, count);
+        }
+
+        return count;
+    }
+
+    private synchronized int write(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+        final int blockOffset = (int) (position & (BLOCK_SIZE - 1));
+        final int count = (int) Math.min(Math.min(length, BLOCK_SIZE - blockOffset), capacity - position);
+        if (count <= 0) {
+            throw new IOException("Write past end of device.");
+        }
+
+        final int index = (int) (position >>> BLOCK_SIZE_LOG2);
+        byte[] block = dirtyBlocks.get(index);
+        if (block == null) {
+            final byte[] writeBackBlock = writeBackBlocks.get(index);
+            if (writeBackBlock != null) {
+                block = writeBackBlock.clone();
+            } else {
+                block = new byte[BLOCK_SIZE];
+                if (count < BLOCK_SIZE) {
+                    readFromFile((long) index << BLOCK_SIZE_LOG2, block, 0, getBlockLength(index));
+                }
+            }
+            dirtyBlocks.put(index, block);
+        }
+
+        System.arraycopy(bytes, offset, block, blockOffset, count);
+        return count;
+    }
+
+    @Nullable
+    private byte[] getCachedBlock(final int index) {
+        final byte[] block = dirtyBlocks.get(index);
+        return block != null ? block : writeBackBlocks.get(index);
+    }
+
+    private void readFromFile(long position, final byte[] bytes, int offset, int length) throws IOException {
+        if (channel != null) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+                    break;
+                }
+            }
+            offset = buffer.position();
+            length = buffer.remaining();
+        }
+
+        // Not written yet, or past the end of a sparse file.
+        Arrays.fill(bytes, offset, offset + length, (byte) 0);
+    }
+
+    private void writeBack(final Int2ObjectOpenHashMap<byte[]> blocks) {
+        final FileChannel channel;
+        synchronized (this) {
+            channel = this.channel;
+        }
+
+        try {
+            if (channel != null) {
+                for (final Int2ObjectMap.Entry<byte[]> entry : blocks.int2ObjectEntrySet()) {
+                    final int index = entry.getIntKey();
+                    final long position = (long) index << BLOCK_SIZE_LOG2;
+                    final ByteBuffer buffer = ByteBuffer.wrap(entry.getValue(), 0, getBlockLength(index));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, position + buffer.position());
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        } finally {
+            synchronized (this) {
+                for (final Int2ObjectMap.Entry<byte[]> entry : blocks.int2ObjectEntrySet()) {
+                    writeBackBlocks.remove(entry.getIntKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private int getBlockLength(final int index) {
+        return (int) Math.min(BLOCK_SIZE, capacity - ((long) index << BLOCK_SIZE_LOG2));
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOGGER.error(e);
+            }
+            channel = null;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final class BlockInputStream extends InputStream {
+        private long position;
+
+        public BlockInputStream(final long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buffer = new byte[1];
+            if (read(buffer, 0, 1) <= 0) {
+                return -1;
+            }
+            return buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            final int count = FileBackedBlockDevice.this.read(position, bytes, offset, length);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long count = Math.max(0, Math.min(n, capacity - position));
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, capacity - position));
+        }
+    }
+
+    private final class BlockOutputStream extends OutputStream {
+        private long position;
+
+        public BlockOutputStream(final long position) {
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = FileBackedBlockDevice.this.write(position, bytes, offset, length);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
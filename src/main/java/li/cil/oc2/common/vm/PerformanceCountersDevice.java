@@ -0,0 +1,27 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.oc2.api.bus.device.object.Callback;
+
+/**
+ * Built-in device exposing the performance counters of a virtual machine to the VM itself.
+ */
+public final class PerformanceCountersDevice {
+    public static final String TYPE_NAME = "performance_counters";
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final AbstractVirtualMachine virtualMachine;
+
+    ///////////////////////////////////////////////////////////////////
+
+    public PerformanceCountersDevice(final AbstractVirtualMachine virtualMachine) {
+        this.virtualMachine = virtualMachine;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Callback(description = "Returns statistics on the resources used by this computer.")
+    public VMPerformanceCounters getPerformanceCounters() {
+        return virtualMachine.getPerformanceCounters();
+    }
+}
@@ -0,0 +1,295 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.ceres.api.Serialized;
+import li.cil.oc2.common.bus.RPCTransport;
+import li.cil.sedna.api.Interrupt;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.memory.MemoryMaps;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RPC transport using descriptor rings in guest memory, as an alternative to the virtio console.
+ * <p>
+ * The guest sets up two rings of descriptors, one for buffers holding request data and one for
+ * empty buffers to receive response data into. Each descriptor is 16 bytes: a 64-bit guest
+ * physical address, a 32-bit buffer length and a 32-bit used length, all little-endian. The
+ * host only writes the used length, and only for response descriptors.
+ * <p>
+ * The guest makes descriptors available by advancing the tail index of a ring, the host marks
+ * them as processed by advancing the head index. Indices increase monotonically and wrap at
+ * 2<sup>32</sup>; the slot of an index is the index modulo the ring size, which must be a power
+ * of two. Data is copied in bulk, and at most one interrupt is raised per batch of processed
+ * descriptors.
+ * <p>
+ * Data in the rings is a byte stream, using the same framing as the console transport, so
+ * messages may span multiple buffers.
+ * <p>
+ * The transport is only {@link #isAvailable() available} while both rings are set up, until
+ * then the VM keeps using the console.
+ */
+public final class RPCMemoryTransportDevice implements MemoryMappedDevice, RPCTransport {
+    private static final int MAGIC = 0x5243324f; // "OC2R", little-endian
+    private static final int VERSION = 1;
+
+    private static final int REG_MAGIC = 0x00;
+    private static final int REG_VERSION = 0x04;
+    private static final int REG_REQUEST_RING_ADDRESS_LOW = 0x08;
+    private static final int REG_REQUEST_RING_ADDRESS_HIGH = 0x0C;
+    private static final int REG_REQUEST_RING_SIZE = 0x10;
+    private static final int REG_REQUEST_HEAD = 0x14;
+    private static final int REG_REQUEST_TAIL = 0x18;
+    private static final int REG_RESPONSE_RING_ADDRESS_LOW = 0x20;
+    private static final int REG_RESPONSE_RING_ADDRESS_HIGH = 0x24;
+    private static final int REG_RESPONSE_RING_SIZE = 0x28;
+    private static final int REG_RESPONSE_HEAD = 0x2C;
+    private static final int REG_RESPONSE_TAIL = 0x30;
+    private static final int REG_INTERRUPT_STATUS = 0x38; // write 1s to acknowledge
+    private static final int DEVICE_LENGTH = 0x40;
+
+    private static final int INTERRUPT_REQUESTS_PROCESSED = 0x1;
+    private static final int INTERRUPT_RESPONSES_AVAILABLE = 0x2;
+
+    private static final int DESCRIPTOR_SIZE = 16;
+    private static final int DESCRIPTOR_LENGTH_OFFSET = 8;
+    private static final int DESCRIPTOR_USED_LENGTH_OFFSET = 12;
+    private static final int MAX_RING_SIZE = 1024;
+
+    private static final int SIZE_32_LOG2 = 2;
+    private static final int SIZE_64_LOG2 = 3;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private final MemoryMap memoryMap;
+    private final Interrupt interrupt = new Interrupt();
+
+    @Serialized private long requestRingAddress;
+    @Serialized private int requestRingSize;
+    @Serialized private int requestHead;
+    @Serialized private int requestTail;
+    @Serialized private int requestOffset; // bytes of the descriptor at the head already read
+    @Serialized private long responseRingAddress;
+    @Serialized private int responseRingSize;
+    @Serialized private int responseHead;
+    @Serialized private int responseTail;
+    @Serialized private int responseOffset; // bytes of the descriptor at the head already written
+    @Serialized private int interruptStatus;
+    @Serialized private int pendingInterrupts; // raised on next flush
+
+    ///////////////////////////////////////////////////////////////////
+
+    public RPCMemoryTransportDevice(final MemoryMap memoryMap) {
+        this.memoryMap = memoryMap;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public Interrupt getInterrupt() {
+        return interrupt;
+    }
+
+    @Override
+    public int getLength() {
+        return DEVICE_LENGTH;
+    }
+
+    @Override
+    public long load(final int offset, final int sizeLog2) {
+        if (sizeLog2 != SIZE_32_LOG2) {
+            return 0;
+        }
+
+        switch (offset) {
+            case REG_MAGIC:
+                return MAGIC;
+            case REG_VERSION:
+                return VERSION;
+            case REG_REQUEST_RING_ADDRESS_LOW:
+                return (int) requestRingAddress;
+            case REG_REQUEST_RING_ADDRESS_HIGH:
+                return (int) (requestRingAddress >>> 32);
+            case REG_REQUEST_RING_SIZE:
+                return requestRingSize;
+            case REG_REQUEST_HEAD:
+                return requestHead;
+            case REG_REQUEST_TAIL:
+                return requestTail;
+            case REG_RESPONSE_RING_ADDRESS_LOW:
+                return (int) responseRingAddress;
+            case REG_RESPONSE_RING_ADDRESS_HIGH:
+                return (int) (responseRingAddress >>> 32);
+            case REG_RESPONSE_RING_SIZE:
+                return responseRingSize;
+            case REG_RESPONSE_HEAD:
+                return responseHead;
+            case REG_RESPONSE_TAIL:
+                return responseTail;
+            case REG_INTERRUPT_STATUS:
+                return interruptStatus;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void store(final int offset, final long value, final int sizeLog2) {
+        if (sizeLog2 != SIZE_32_LOG2) {
+            return;
+        }
+
+        final int intValue = (int) value;
+        switch (offset) {
+            case REG_REQUEST_RING_ADDRESS_LOW:
+                requestRingAddress = (requestRingAddress & 0xFFFFFFFF00000000L) | (intValue & 0xFFFFFFFFL);
+                break;
+            case REG_REQUEST_RING_ADDRESS_HIGH:
+                requestRingAddress = (requestRingAddress & 0xFFFFFFFFL) | ((long) intValue << 32);
+                break;
+            case REG_REQUEST_RING_SIZE:
+                // Changing the ring size resets the ring.
+                requestRingSize = isValidRingSize(intValue) ? intValue : 0;
+                requestHead = requestTail = requestOffset = 0;
+                break;
+            case REG_REQUEST_TAIL:
+                requestTail = intValue;
+                break;
+            case REG_RESPONSE_RING_ADDRESS_LOW:
+                responseRingAddress = (responseRingAddress & 0xFFFFFFFF00000000L) | (intValue & 0xFFFFFFFFL);
+                break;
+            case REG_RESPONSE_RING_ADDRESS_HIGH:
+                responseRingAddress = (responseRingAddress & 0xFFFFFFFFL) | ((long) intValue << 32);
+                break;
+            case REG_RESPONSE_RING_SIZE:
+                responseRingSize = isValidRingSize(intValue) ? intValue : 0;
+                responseHead = responseTail = responseOffset = 0;
+                break;
+            case REG_RESPONSE_TAIL:
+                responseTail = intValue;
+                break;
+            case REG_INTERRUPT_STATUS:
+                interruptStatus &= ~intValue;
+                if (interruptStatus == 0) {
+                    interrupt.lowerInterrupt();
+                }
+                break;
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return requestRingSize != 0 && responseRingSize != 0;
+    }
+
+    @Override
+    public int read(final ByteBuffer target) {
+        if (requestRingSize == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        try {
+            while (target.hasRemaining() && requestHead != requestTail && isValidIndexDistance(requestHead, requestTail, requestRingSize)) {
+                final long descriptor = getDescriptorAddress(requestRingAddress, requestRingSize, requestHead);
+                final long address = memoryMap.load(descriptor, SIZE_64_LOG2);
+                final int length = (int) memoryMap.load(descriptor + DESCRIPTOR_LENGTH_OFFSET, SIZE_32_LOG2);
+
+                final int chunkSize = Math.min(Math.max(0, length - requestOffset), target.remaining());
+                if (chunkSize > 0) {
+                    final ByteBuffer chunk = target.slice();
+                    chunk.limit(chunkSize);
+                    MemoryMaps.load(memoryMap, address + requestOffset, chunk);
+                    target.position(target.position() + chunkSize);
+                    requestOffset += chunkSize;
+                    count += chunkSize;
+                }
+
+                if (requestOffset >= length) {
+                    requestHead++;
+                    requestOffset = 0;
+                    pendingInterrupts |= INTERRUPT_REQUESTS_PROCESSED;
+                }
+            }
+        } catch (final MemoryAccessException e) {
+            // Guest gave us garbage, drop the ring until it is set up again.
+            requestRingSize = 0;
+        }
+
+        return count;
+    }
+
+    @Override
+    public int write(final ByteBuffer source) {
+        if (responseRingSize == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        try {
+            while (source.hasRemaining() && responseHead != responseTail && isValidIndexDistance(responseHead, responseTail, responseRingSize)) {
+                final long descriptor = getDescriptorAddress(responseRingAddress, responseRingSize, responseHead);
+                final long address = memoryMap.load(descriptor, SIZE_64_LOG2);
+                final int length = (int) memoryMap.load(descriptor + DESCRIPTOR_LENGTH_OFFSET, SIZE_32_LOG2);
+
+                final int chunkSize = Math.min(Math.max(0, length - responseOffset), source.remaining());
+                if (chunkSize > 0) {
+                    final ByteBuffer chunk = source.slice();
+                    chunk.limit(chunkSize);
+                    MemoryMaps.store(memoryMap, address + responseOffset, chunk);
+                    source.position(source.position() + chunkSize);
+                    responseOffset += chunkSize;
+                    count += chunkSize;
+                }
+
+                if (responseOffset >= length) {
+                    completeResponseDescriptor(descriptor);
+                }
+            }
+        } catch (final MemoryAccessException e) {
+            responseRingSize = 0;
+        }
+
+        return count;
+    }
+
+    @Override
+    public void flush() {
+        // Hand out partially filled buffers, so the guest sees complete messages right away.
+        if (responseOffset > 0 && responseRingSize != 0) {
+            try {
+                completeResponseDescriptor(getDescriptorAddress(responseRingAddress, responseRingSize, responseHead));
+            } catch (final MemoryAccessException e) {
+                responseRingSize = 0;
+            }
+        }
+
+        if (pendingInterrupts != 0) {
+            interruptStatus |= pendingInterrupts;
+            pendingInterrupts = 0;
+            interrupt.raiseInterrupt();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private void completeResponseDescriptor(final long descriptor) throws MemoryAccessException {
+        memoryMap.store(descriptor + DESCRIPTOR_USED_LENGTH_OFFSET, responseOffset, SIZE_32_LOG2);
+        responseHead++;
+        responseOffset = 0;
+        pendingInterrupts |= INTERRUPT_RESPONSES_AVAILABLE;
+    }
+
+    private static boolean isValidRingSize(final int size) {
+        return size > 0 && size <= MAX_RING_SIZE && Integer.bitCount(size) == 1;
+    }
+
+    private static boolean isValidIndexDistance(final int head, final int tail, final int ringSize) {
+        // Guard against the guest advancing the tail past descriptors we have not processed yet.
+        return Integer.compareUnsigned(tail - head, ringSize) <= 0;
+    }
+
+    private static long getDescriptorAddress(final long ringAddress, final int ringSize, final int index) {
+        return ringAddress + (long) (index & (ringSize - 1)) * DESCRIPTOR_SIZE;
+    }
+}
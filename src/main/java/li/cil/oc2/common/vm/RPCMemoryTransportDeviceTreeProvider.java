@@ -0,0 +1,41 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.sedna.api.device.Device;
+import li.cil.sedna.api.devicetree.DevicePropertyNames;
+import li.cil.sedna.api.devicetree.DeviceTree;
+import li.cil.sedna.api.devicetree.DeviceTreeProvider;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.devicetree.DeviceTreeRegistry;
+
+import java.util.Optional;
+
+/**
+ * Describes the {@link RPCMemoryTransportDevice} in the device tree, so the guest driver can find it.
+ * <p>
+ * The {@code reg} entry is added by Sedna's generic provider for memory mapped devices, which also
+ * creates the node under {@code /soc}.
+ */
+public final class RPCMemoryTransportDeviceTreeProvider implements DeviceTreeProvider {
+    public static final String COMPATIBLE = "li-cil,oc2-rpc-memory";
+
+    ///////////////////////////////////////////////////////////////////
+
+    public static void initialize() {
+        DeviceTreeRegistry.putProvider(RPCMemoryTransportDevice.class, new RPCMemoryTransportDeviceTreeProvider());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public Optional<String> getName(final Device device) {
+        return Optional.of("rpc");
+    }
+
+    @Override
+    public void visit(final DeviceTree node, final MemoryMap memoryMap, final Device device) {
+        final RPCMemoryTransportDevice transport = (RPCMemoryTransportDevice) device;
+        node.addProp(DevicePropertyNames.COMPATIBLE, COMPATIBLE)
+                .addProp(DevicePropertyNames.INTERRUPTS, transport.getInterrupt().getId())
+                .addProp(DevicePropertyNames.INTERRUPT_PARENT, node.getPHandle(transport.getInterrupt().controller));
+    }
+}
@@ -117,6 +117,10 @@ public final class Terminal {
         ((Renderer) renderer).render(dirty, stack);
     }
 
+    public synchronized boolean hasInput() {
+        return !input.isEmpty();
+    }
+
     public synchronized int readInput() {
         if (input.isEmpty()) {
             return -1;
@@ -11,10 +11,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.OptionalLong;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
 
 public final class VMDeviceBusAdapter {
     private final HashMap<VMDevice, ManagedVMContext> deviceContexts = new HashMap<>();
     private final ArrayList<VMDevice> incompleteLoads = new ArrayList<>();
+    private final ArrayList<Future<?>> pendingInitializations = new ArrayList<>();
     private BaseAddressProvider baseAddressProvider = unused -> OptionalLong.empty();
 
     ///////////////////////////////////////////////////////////////////
@@ -52,6 +55,11 @@ public final class VMDeviceBusAdapter {
                 }
                 return result;
             }
+
+            final CompletionStage<?> pendingInitialization = result.getPendingInitialization();
+            if (pendingInitialization != null) {
+                pendingInitializations.add(pendingInitialization.toCompletableFuture());
+            }
         }
 
         incompleteLoads.clear();
@@ -61,6 +69,19 @@ public final class VMDeviceBusAdapter {
         return VMDeviceLoadResult.success();
     }
 
+    /**
+     * Checks whether all asynchronous initialization started by loaded devices has completed.
+     * <p>
+     * Devices may start loading their data in the background when they are loaded. The virtual
+     * machine must not run before this returns {@code true}.
+     *
+     * @return {@code true} if all devices finished initializing; {@code false} otherwise.
+     */
+    public boolean isInitializationComplete() {
+        pendingInitializations.removeIf(Future::isDone);
+        return pendingInitializations.isEmpty();
+    }
+
     public void unload() {
         for (final VMDevice device : deviceContexts.keySet()) {
             device.unload();
@@ -78,6 +99,9 @@ public final class VMDeviceBusAdapter {
 
         incompleteLoads.clear();
         incompleteLoads.addAll(deviceContexts.keySet());
+
+        // Devices start their initialization again when they are loaded again.
+        pendingInitializations.clear();
     }
 
     public void addDevices(final Collection<Device> devices) {
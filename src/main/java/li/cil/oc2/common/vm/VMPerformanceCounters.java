@@ -0,0 +1,20 @@
+package li.cil.oc2.common.vm;
+
+/**
+ * Snapshot of the performance counters of a single virtual machine.
+ * <p>
+ * Byte and message counts are totals since the VM was last started, run times are
+ * for the last tick.
+ */
+public final class VMPerformanceCounters {
+    public long cycles;
+    public long cycleLimit;
+    public long runTimeLastTickInNanos;
+    public long rpcMessagesReceived;
+    public long rpcMessagesSent;
+    public long rpcBytesReceived;
+    public long rpcBytesSent;
+    public long terminalBytesSent;
+    public long blobStorageBytes;
+    public long energyConsumed;
+}
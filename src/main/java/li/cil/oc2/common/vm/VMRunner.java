@@ -8,34 +8,64 @@ import li.cil.oc2.api.bus.device.vm.event.VMResumingRunningEvent;
 import li.cil.oc2.common.Constants;
 import li.cil.oc2.common.bus.RPCDeviceBusAdapter;
 import li.cil.oc2.common.vm.context.global.GlobalVMContext;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.riscv.R5Board;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.TranslatableComponent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Field;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class VMRunner implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    ///////////////////////////////////////////////////////////////////
+
     private static final int TICKS_PER_SECOND = 20;
-    private static final int TIMESLICE_IN_MS = 1000 / TICKS_PER_SECOND;
 
-    private static final ExecutorService VM_RUNNERS = Executors.newCachedThreadPool(r -> {
-        final Thread thread = new Thread(r);
-        thread.setDaemon(true);
-        thread.setName("VirtualMachine Runner");
-        return thread;
-    });
+    // Step sizes used while devices need servicing and while the guest is not doing
+    // any I/O. The upper bound limits the added latency for I/O initiated by the guest.
+    // Idle guests are fast-forwarded to their next timer interrupt instead.
+    static final int MIN_CYCLES_PER_STEP = 1_000;
+    static final int MAX_CYCLES_PER_STEP = 100_000;
+
+    // Sedna does not expose whether the CPU is stalled on a WFI instruction, so we
+    // peek at the field it uses internally. If it ever gets renamed we just lose
+    // the ability to detect idle guests. Looked up once per CPU class.
+    private static final String WAITING_FOR_INTERRUPT_FIELD_NAME = "waitingForInterrupt";
+    private static final ClassValue<Optional<Field>> WAITING_FOR_INTERRUPT_FIELDS = new ClassValue<Optional<Field>>() {
+        @Override
+        protected Optional<Field> computeValue(final Class<?> type) {
+            return findWaitingForInterruptField(type);
+        }
+    };
+
+    // Machine timer registers of the core local interruptor of the R5Board. The board
+    // uses the CPU as its real time counter, so these count CPU cycles.
+    private static final long CLINT_ADDRESS = 0x02000000L;
+    static final long MTIMECMP_ADDRESS = CLINT_ADDRESS + 0x4000;
+    static final long MTIME_ADDRESS = CLINT_ADDRESS + 0xBFF8;
+    static final int SIZE_64_LOG2 = 3;
 
     ///////////////////////////////////////////////////////////////////
 
     private final R5Board board;
     private final GlobalVMContext context;
     private final RPCDeviceBusAdapter rpcAdapter;
-    private final AtomicInteger timeQuotaInMillis = new AtomicInteger();
+    @Nullable private final Field waitingForInterruptField;
+    private final AtomicLong timeQuotaInNanos = new AtomicLong();
+    private final AtomicLong runTimeInNanos = new AtomicLong();
+    private long runTimeLastTickInNanos;
     private Future<?> lastSchedule;
+    private int cyclesPerStep = MIN_CYCLES_PER_STEP;
+    long schedulerWindow = -1; // Managed by VMScheduler.
 
     ///////////////////////////////////////////////////////////////////
 
@@ -43,15 +73,22 @@ public class VMRunner implements Runnable {
     @Serialized private boolean firedInitializationEvent;
     @Serialized private Component runtimeError;
 
-    @Serialized private long cycleLimit;
-    @Serialized private long cycles;
+    // Volatile since these are also read on the main thread, e.g. for performance counters.
+    // Each is only ever written by one thread at a time.
+    @Serialized private volatile long cycleLimit;
+    @Serialized private volatile long cycles;
 
     ///////////////////////////////////////////////////////////////////
 
     public VMRunner(final AbstractVirtualMachine virtualMachine) {
-        this.board = virtualMachine.state.board;
-        context = virtualMachine.state.context;
-        rpcAdapter = virtualMachine.state.rpcAdapter;
+        this(virtualMachine.state.board, virtualMachine.state.context, virtualMachine.state.rpcAdapter);
+    }
+
+    VMRunner(final R5Board board, final GlobalVMContext context, final RPCDeviceBusAdapter rpcAdapter) {
+        this.board = board;
+        this.context = context;
+        this.rpcAdapter = rpcAdapter;
+        waitingForInterruptField = WAITING_FOR_INTERRUPT_FIELDS.get(board.getCpu().getClass()).orElse(null);
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -65,15 +102,34 @@ public class VMRunner implements Runnable {
         return runtimeError;
     }
 
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getCycleLimit() {
+        return cycleLimit;
+    }
+
+    public long getRunTimeLastTickInNanos() {
+        return runTimeLastTickInNanos;
+    }
+
     public void tick() {
+        runTimeLastTickInNanos = runTimeInNanos.getAndSet(0);
+
         rpcAdapter.tick();
 
         cycleLimit += getCyclesPerTick();
 
-        final int timeQuota = timeQuotaInMillis.updateAndGet(x -> Math.min(x + TIMESLICE_IN_MS, TIMESLICE_IN_MS));
         final boolean needsScheduling = lastSchedule == null || lastSchedule.isDone() || lastSchedule.isCancelled();
+        if (needsScheduling && canHibernate()) {
+            return;
+        }
+
+        final long quotaPerTick = getTimeQuotaPerTickInNanos();
+        final long timeQuota = timeQuotaInNanos.updateAndGet(x -> Math.min(x + quotaPerTick, quotaPerTick));
         if (cycleLimit > 0 && timeQuota > 0 && needsScheduling) {
-            lastSchedule = VM_RUNNERS.submit(this);
+            lastSchedule = schedule();
         }
     }
 
@@ -89,36 +145,51 @@ public class VMRunner implements Runnable {
         }
     }
 
+    /**
+     * Runs the VM for a single time slice.
+     * <p>
+     * Called by the {@link VMScheduler} until {@link #canContinue()} returns {@code false}.
+     */
     @Override
     public void run() {
-        do {
-            final long start = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long sliceEnd = start + Math.min(VMScheduler.getTimeSliceInNanos(), timeQuotaInNanos.get());
 
-            final int cycleBudget = getCyclesPerTick();
-            final int cyclesPerStep = 1_000;
-            final int maxSteps = cycleBudget / cyclesPerStep;
+        long remainingCycles = Math.min(getCyclesPerTick(), cycleLimit - cycles);
 
-            handleBeforeRun();
+        handleBeforeRun();
 
-            if (!board.isRunning()) {
-                break;
-            }
+        if (!board.isRunning()) {
+            return;
+        }
 
-            for (int i = 0; i < maxSteps; i++) {
-                cycles += cyclesPerStep;
-                board.step(cyclesPerStep);
-                step(cyclesPerStep);
+        while (remainingCycles > 0) {
+            final int cyclesPerStep = (int) Math.min(remainingCycles, updateCyclesPerStep(remainingCycles));
+            remainingCycles -= cyclesPerStep;
 
-                if (System.currentTimeMillis() - start > timeQuotaInMillis.get()) {
-                    break;
-                }
+            cycles += cyclesPerStep;
+            board.step(cyclesPerStep);
+            step(cyclesPerStep);
+
+            if (System.nanoTime() >= sliceEnd) {
+                break;
             }
+        }
+
+        handleAfterRun();
 
-            handleAfterRun();
+        final long elapsed = System.nanoTime() - start;
+        timeQuotaInNanos.addAndGet(-elapsed);
+        runTimeInNanos.addAndGet(elapsed);
+    }
 
-            final int elapsed = (int) (System.currentTimeMillis() - start);
-            timeQuotaInMillis.addAndGet(-elapsed);
-        } while (cycles < cycleLimit && timeQuotaInMillis.get() > 0);
+    /**
+     * Whether the VM should be queued for another time slice in the current tick.
+     *
+     * @return {@code true} if the VM has cycles and time left; {@code false} otherwise.
+     */
+    public boolean canContinue() {
+        return board.isRunning() && cycles < cycleLimit && timeQuotaInNanos.get() > 0;
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -146,12 +217,155 @@ public class VMRunner implements Runnable {
         rpcAdapter.step(cyclesPerStep);
     }
 
+    /**
+     * Whether the VM may skip being scheduled this tick.
+     * <p>
+     * This is the case while the CPU is stalled waiting for an interrupt, no interrupt
+     * was raised since the last check, no device is waiting to be serviced and the
+     * timer interrupt is not due yet. Only called while the runner is not scheduled, on
+     * the main thread, so this must only check state, never step the VM.
+     * <p>
+     * The cycles skipped while hibernating are caught up by the scheduler the next time
+     * the VM runs. Idle guests skip ahead to their timer, so this is cheap.
+     *
+     * @return {@code true} if the VM may hibernate; {@code false} otherwise.
+     */
+    protected boolean canHibernate() {
+        // Always poll, so interrupts raised while running don't linger.
+        final boolean didRaiseInterrupts = context.pollDidRaiseInterrupts();
+        return firedInitializationEvent && firedResumeEvent &&
+               board.isRunning() &&
+               !didRaiseInterrupts &&
+               !hasPendingIO() &&
+               isWaitingForInterrupt() &&
+               !isTimerInterruptDue();
+    }
+
+    /**
+     * Whether some device is waiting to be serviced by the runner, or has been
+     * serviced in the last step. While this is the case the runner uses small
+     * steps to keep I/O latency low.
+     *
+     * @return {@code true} if there is pending I/O; {@code false} otherwise.
+     */
+    protected boolean hasPendingIO() {
+        return rpcAdapter.hasPendingIO();
+    }
+
+    /**
+     * Whether the CPU is currently stalled on a WFI instruction.
+     *
+     * @return {@code true} if the CPU is waiting for an interrupt; {@code false} otherwise.
+     */
+    protected boolean isWaitingForInterrupt() {
+        return isWaitingForInterrupt(board.getCpu(), waitingForInterruptField);
+    }
+
     protected void handleAfterRun() {
     }
 
-    ///////////////////////////////////////////////////////////////////
+    long getTimeQuotaPerTickInNanos() {
+        return VMScheduler.getTimeQuotaInNanos(this);
+    }
 
-    private static int getCyclesPerTick() {
+    Future<?> schedule() {
+        return VMScheduler.schedule(this);
+    }
+
+    /**
+     * Picks the number of cycles to run in the next step.
+     * <p>
+     * Uses small steps while devices need servicing, grows steps while the guest is busy, and
+     * skips ahead to the next timer interrupt while the guest is idle.
+     *
+     * @param remainingCycles the cycles left in the current time slice.
+     * @return the number of cycles to run in the next step, may exceed {@code remainingCycles}.
+     */
+    long updateCyclesPerStep(final long remainingCycles) {
+        if (hasPendingIO()) {
+            cyclesPerStep = MIN_CYCLES_PER_STEP;
+        } else if (isWaitingForInterrupt()) {
+            // Idle guest, nothing to do until the next interrupt. Stepping a stalled
+            // CPU only advances its timers, so skip ahead to the timer interrupt. Other
+            // interrupts are picked up at the end of the step. If the timer already fired
+            // the guest has it masked, so it does not matter when we step.
+            final long idleCycles = getCyclesUntilTimerInterrupt(board.getMemoryMap(), remainingCycles);
+            cyclesPerStep = MAX_CYCLES_PER_STEP;
+            return idleCycles > 0 ? Math.max(MIN_CYCLES_PER_STEP, idleCycles) : MAX_CYCLES_PER_STEP;
+        } else {
+            cyclesPerStep = Math.min(cyclesPerStep * 2, MAX_CYCLES_PER_STEP);
+        }
+        return cyclesPerStep;
+    }
+
+    static int getCyclesPerTick() {
         return Constants.CPU_FREQUENCY / TICKS_PER_SECOND;
     }
+
+    private boolean isTimerInterruptDue() {
+        // The timer only advances while the VM runs, so it is due once the cycles skipped
+        // while hibernating reach its deadline. If it already fired the guest has it masked.
+        final long cyclesUntilTimerInterrupt = getCyclesUntilTimerInterrupt(board.getMemoryMap(), Long.MAX_VALUE);
+        return cyclesUntilTimerInterrupt > 0 && cyclesUntilTimerInterrupt <= cycleLimit - cycles;
+    }
+
+    /**
+     * Whether the specified CPU is stalled on a WFI instruction.
+     *
+     * @param cpu   the CPU to check.
+     * @param field the field holding the state, as returned by {@link #findWaitingForInterruptField(Class)}.
+     * @return {@code true} if the CPU is waiting for an interrupt; {@code false} otherwise.
+     */
+    static boolean isWaitingForInterrupt(final Object cpu, @Nullable final Field field) {
+        if (field == null) {
+            return false;
+        }
+
+        try {
+            return field.getBoolean(cpu);
+        } catch (final IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the number of cycles until the machine timer interrupt of the first hart fires.
+     *
+     * @param memoryMap the memory map of the board.
+     * @param maxCycles the value to return if the timer is disabled or cannot be read.
+     * @return the number of cycles until the next timer interrupt, at most {@code maxCycles}.
+     */
+    static long getCyclesUntilTimerInterrupt(final MemoryMap memoryMap, final long maxCycles) {
+        try {
+            final long time = memoryMap.load(MTIME_ADDRESS, SIZE_64_LOG2);
+            final long timeCompare = memoryMap.load(MTIMECMP_ADDRESS, SIZE_64_LOG2);
+            if (Long.compareUnsigned(timeCompare, time) <= 0) {
+                return 0;
+            }
+
+            final long cycles = timeCompare - time;
+            return cycles > 0 ? Math.min(cycles, maxCycles) : maxCycles; // Unsigned overflow means far away.
+        } catch (final MemoryAccessException e) {
+            return maxCycles;
+        }
+    }
+
+    static Optional<Field> findWaitingForInterruptField(final Class<?> cpuClass) {
+        for (Class<?> type = cpuClass; type != null; type = type.getSuperclass()) {
+            try {
+                final Field field = type.getDeclaredField(WAITING_FOR_INTERRUPT_FIELD_NAME);
+                if (field.getType() != boolean.class) {
+                    break;
+                }
+                field.setAccessible(true);
+                return Optional.of(field);
+            } catch (final NoSuchFieldException ignored) {
+            } catch (final SecurityException e) {
+                LOGGER.warn("Failed accessing CPU state, idle detection will be disabled.", e);
+                break;
+            }
+        }
+
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,155 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.oc2.common.Config;
+import li.cil.oc2.common.Constants;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link VMRunner}s on a fixed pool of worker threads.
+ * <p>
+ * Runners are put into a single run queue and executed one time slice at a time. When a runner
+ * still has cycles and time left after a slice it is put back at the end of the queue, so all
+ * runnable VMs share the workers in a round-robin fashion.
+ * <p>
+ * The total worker time handed out per tick is limited by a global budget. This budget is split
+ * evenly between all VMs that were active in the last tick, so adding more VMs slows down each
+ * individual VM instead of adding more threads.
+ */
+public final class VMScheduler {
+    private static final long TICK_IN_NANOS = TimeUnit.SECONDS.toNanos(1) / Constants.TICK_SECONDS;
+    private static final long TIME_SLICE_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static final Object LOCK = new Object();
+    private static ExecutorService workers;
+    private static int workerCount;
+
+    private static long window;
+    private static long windowStart;
+    private static int runnersInWindow;
+    private static int runnersInLastWindow;
+
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * The maximum time a runner may run before it is put back into the run queue.
+     *
+     * @return the length of a single time slice, in nanoseconds.
+     */
+    public static long getTimeSliceInNanos() {
+        return TIME_SLICE_IN_NANOS;
+    }
+
+    /**
+     * Computes the worker time the specified runner may use in the current tick.
+     * <p>
+     * Calling this also marks the runner as active in the current tick, which is used
+     * to determine how to split the global budget in the next tick.
+     *
+     * @param runner the runner to get the time quota for.
+     * @return the time quota for the runner, in nanoseconds.
+     */
+    public static long getTimeQuotaInNanos(final VMRunner runner) {
+        final int activeRunners;
+        synchronized (LOCK) {
+            final long now = System.nanoTime();
+            if (now - windowStart >= TICK_IN_NANOS) {
+                window++;
+                windowStart = now;
+                runnersInLastWindow = runnersInWindow;
+                runnersInWindow = 0;
+            }
+
+            if (runner.schedulerWindow != window) {
+                runner.schedulerWindow = window;
+                runnersInWindow++;
+            }
+
+            activeRunners = Math.max(1, Math.max(runnersInWindow, runnersInLastWindow));
+        }
+
+        return Math.min(TICK_IN_NANOS, getBudgetPerTickInNanos() / activeRunners);
+    }
+
+    /**
+     * Queues the specified runner for execution.
+     * <p>
+     * The returned future completes once the runner has used up its cycles or time quota
+     * for the current tick, or has stopped running.
+     *
+     * @param runner the runner to queue.
+     * @return a future that completes when the runner leaves the run queue.
+     */
+    public static Future<?> schedule(final VMRunner runner) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        getWorkers().execute(new TimeSlice(runner, future));
+        return future;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static ExecutorService getWorkers() {
+        synchronized (LOCK) {
+            if (workers == null) {
+                workerCount = Config.vmSchedulerThreadCount > 0
+                        ? Config.vmSchedulerThreadCount
+                        : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+                final AtomicInteger threadIndex = new AtomicInteger();
+                workers = Executors.newFixedThreadPool(workerCount, r -> {
+                    final Thread thread = new Thread(r);
+                    thread.setDaemon(true);
+                    thread.setName("VirtualMachine Runner #" + threadIndex.incrementAndGet());
+                    return thread;
+                });
+            }
+
+            return workers;
+        }
+    }
+
+    private static long getBudgetPerTickInNanos() {
+        if (Config.vmSchedulerBudgetPerTickInMillis > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(Config.vmSchedulerBudgetPerTickInMillis);
+        }
+
+        // Default to the full capacity of all workers.
+        getWorkers();
+        return workerCount * TICK_IN_NANOS;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static final class TimeSlice implements Runnable {
+        private final VMRunner runner;
+        private final CompletableFuture<Void> future;
+
+        private TimeSlice(final VMRunner runner, final CompletableFuture<Void> future) {
+            this.runner = runner;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runner.run();
+            } catch (final Throwable e) {
+                future.completeExceptionally(e);
+                return;
+            }
+
+            if (runner.canContinue()) {
+                getWorkers().execute(this);
+            } else {
+                future.complete(null);
+            }
+        }
+    }
+}
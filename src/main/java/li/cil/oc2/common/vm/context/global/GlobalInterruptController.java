@@ -3,9 +3,12 @@ package li.cil.oc2.common.vm.context.global;
 import li.cil.oc2.common.vm.context.InterruptValidator;
 import li.cil.sedna.api.device.InterruptController;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 final class GlobalInterruptController implements InterruptController {
     private final InterruptController parent;
     private final InterruptValidator validator;
+    private final AtomicBoolean didRaiseInterrupts = new AtomicBoolean();
     private int raisedInterruptMask;
 
     ///////////////////////////////////////////////////////////////////
@@ -23,6 +26,10 @@ final class GlobalInterruptController implements InterruptController {
         raisedInterruptMask = 0;
     }
 
+    public boolean pollDidRaiseInterrupts() {
+        return didRaiseInterrupts.getAndSet(false);
+    }
+
     @Override
     public Object getIdentity() {
         return parent.getIdentity();
@@ -33,6 +40,7 @@ final class GlobalInterruptController implements InterruptController {
         if (validator.isMaskValid(mask)) {
             parent.raiseInterrupts(mask);
             raisedInterruptMask |= mask;
+            didRaiseInterrupts.set(true);
         } else {
             throw new IllegalArgumentException("Trying to raise interrupt not allocated by this context.");
         }
@@ -56,6 +56,15 @@ public final class GlobalVMContext implements VMContext, VMContextManagerCollect
         reservedMemoryRanges.addAll(memoryRangeAllocator.getClaimedMemoryRanges());
     }
 
+    /**
+     * Returns whether any device raised an interrupt since the last call to this method.
+     *
+     * @return {@code true} if an interrupt was raised; {@code false} otherwise.
+     */
+    public boolean pollDidRaiseInterrupts() {
+        return interruptController.pollDidRaiseInterrupts();
+    }
+
     public void postEvent(final Object event) {
         eventBus.post(event);
     }
@@ -22,7 +22,7 @@ io.write("Exporting")
 device:beginExportFile(arg[1])
 
 while true do
-    local str = file:read(512)
+    local str = file:read(32 * 1024)
     if not str then break end
     if #str > 0 then
         local bytes = {string.byte(str, 1, -1)}
@@ -3,6 +3,8 @@ local unistd = require("posix.unistd")
 local poll = require("posix.poll")
 local cjson = require("cjson").new()
 
+local unpack = table.unpack or unpack
+
 local Device = {}
 Device.__index = function(_, key)
   return rawget(Device, key) or function(self, ...)
@@ -69,10 +71,152 @@ function Device:invoke(methodName, ...)
   return self.bus:invoke(self.deviceId, methodName, ...)
 end
 
+function Device:subscribe()
+  return self.bus:subscribe(self.deviceId)
+end
+
+function Device:unsubscribe()
+  return self.bus:unsubscribe(self.deviceId)
+end
+
 local DeviceBus = {}
 DeviceBus.__index = DeviceBus
 
 local message_delimiter = string.char(0)
+local frame_marker = 1
+local continuation_marker = 2
+local max_message_size = 4096 -- messages larger than this are sent in multiple parts
+local read_size = 4096
+
+-- The memory transport device node is provided by a guest driver, when the host is
+-- configured to use it. It uses the same framing as the console, but is no tty.
+local memory_transport_path = "/dev/oc2rpc"
+local console_path = "/dev/hvc0"
+local max_in_flight = 16
+
+-- Binary protocol, using MessagePack encoded messages. Only available when
+-- string.pack is (Lua 5.3+), otherwise we always fall back to JSON.
+
+local function isArray(value)
+  local count = 0
+  for _ in pairs(value) do
+    count = count + 1
+  end
+  return count == #value
+end
+
+local function packValue(value, out)
+  local t = type(value)
+  if t == "nil" or value == cjson.null then
+    out[#out + 1] = string.char(0xc0)
+  elseif t == "boolean" then
+    out[#out + 1] = string.char(value and 0xc3 or 0xc2)
+  elseif t == "number" then
+    if math.type(value) == "integer" then
+      if value >= 0 and value <= 0x7f then
+        out[#out + 1] = string.char(value)
+      else
+        out[#out + 1] = string.pack(">Bi8", 0xd3, value)
+      end
+    else
+      out[#out + 1] = string.pack(">Bd", 0xcb, value)
+    end
+  elseif t == "string" then
+    if #value <= 0x1f then
+      out[#out + 1] = string.char(0xa0 + #value) .. value
+    else
+      out[#out + 1] = string.pack(">Bs4", 0xdb, value)
+    end
+  elseif t == "table" then
+    if isArray(value) then
+      out[#out + 1] = string.pack(">BI4", 0xdd, #value)
+      for i = 1, #value do
+        packValue(value[i], out)
+      end
+    else
+      local count = 0
+      for _ in pairs(value) do
+        count = count + 1
+      end
+      out[#out + 1] = string.pack(">BI4", 0xdf, count)
+      for k, v in pairs(value) do
+        packValue(k, out)
+        packValue(v, out)
+      end
+    end
+  else
+    error("cannot serialize value of type " .. t)
+  end
+end
+
+local unpackFormats = {
+  [0xc4] = ">s1", [0xc5] = ">s2", [0xc6] = ">s4",
+  [0xca] = ">f", [0xcb] = ">d",
+  [0xcc] = ">B", [0xcd] = ">I2", [0xce] = ">I4", [0xcf] = ">i8",
+  [0xd0] = ">b", [0xd1] = ">i2", [0xd2] = ">i4", [0xd3] = ">i8",
+  [0xd9] = ">s1", [0xda] = ">s2", [0xdb] = ">s4"
+}
+
+local unpackValue
+
+local function unpackArray(data, pos, length)
+  local result = {}
+  for i = 1, length do
+    result[i], pos = unpackValue(data, pos)
+  end
+  return result, pos
+end
+
+local function unpackMap(data, pos, length)
+  local result = {}
+  for _ = 1, length do
+    local key, value
+    key, pos = unpackValue(data, pos)
+    value, pos = unpackValue(data, pos)
+    result[key] = value
+  end
+  return result, pos
+end
+
+unpackValue = function(data, pos)
+  local tag = data:byte(pos)
+  if tag == nil then
+    error("truncated message")
+  end
+  pos = pos + 1
+
+  local format = unpackFormats[tag]
+  if format then
+    return string.unpack(format, data, pos)
+  elseif tag <= 0x7f then
+    return tag, pos
+  elseif tag >= 0xe0 then
+    return tag - 0x100, pos
+  elseif tag >= 0xa0 and tag <= 0xbf then
+    local length = tag - 0xa0
+    return data:sub(pos, pos + length - 1), pos + length
+  elseif tag >= 0x90 and tag <= 0x9f then
+    return unpackArray(data, pos, tag - 0x90)
+  elseif tag >= 0x80 and tag <= 0x8f then
+    return unpackMap(data, pos, tag - 0x80)
+  elseif tag == 0xc0 then
+    return nil, pos
+  elseif tag == 0xc2 then
+    return false, pos
+  elseif tag == 0xc3 then
+    return true, pos
+  elseif tag == 0xdc or tag == 0xdd then
+    local length
+    length, pos = string.unpack(tag == 0xdc and ">I2" or ">I4", data, pos)
+    return unpackArray(data, pos, length)
+  elseif tag == 0xde or tag == 0xdf then
+    local length
+    length, pos = string.unpack(tag == 0xde and ">I2" or ">I4", data, pos)
+    return unpackMap(data, pos, length)
+  else
+    error(string.format("unsupported type 0x%02x", tag))
+  end
+end
 
 local function parseError(result, reason)
   if result and result.type == "error" then
@@ -88,7 +232,7 @@ local function skipInput(bus)
   repeat
     local result, status, errnum = poll.rpoll(bus.fd, 0)
     if result == 1 then
-      unistd.read(bus.fd, 1024)
+      unistd.read(bus.fd, read_size)
     end
   until result ~= 1
 end
@@ -100,7 +244,7 @@ local function fillBuffer(bus)
   elseif result == 0 then
     return nil, "timeout"
   else
-    bus.buffer = unistd.read(bus.fd, 1024)
+    bus.buffer = unistd.read(bus.fd, read_size)
     bus.bufferLen = string.len(bus.buffer)
     bus.bufferPos = 1
     return true
@@ -129,7 +273,60 @@ local function readOne(bus)
   return result
 end
 
-local function readMessage(bus)
+local function readBytes(bus, count)
+  local parts = {}
+  while count > 0 do
+    if not bus.buffer then
+      local result, status = fillBuffer(bus)
+      if not result then
+        return result, status
+      end
+    end
+
+    local available = bus.bufferLen - bus.bufferPos + 1
+    local length = math.min(available, count)
+    parts[#parts + 1] = bus.buffer:sub(bus.bufferPos, bus.bufferPos + length - 1)
+    count = count - length
+    if length == available then
+      bus.buffer = nil
+    else
+      bus.bufferPos = bus.bufferPos + length
+    end
+  end
+
+  return table.concat(parts)
+end
+
+local function readBinaryMessage(bus)
+  -- Skip delimiters up to the start of the next frame.
+  local value, reason
+  repeat
+    value, reason = readOne(bus)
+    if value == nil then
+      return value, reason
+    end
+  until value == frame_marker
+
+  local header, payload
+  header, reason = readBytes(bus, 4)
+  if not header then
+    return nil, reason
+  end
+
+  payload, reason = readBytes(bus, string.unpack(">I4", header))
+  if not payload then
+    return nil, reason
+  end
+
+  local ok, result = pcall(unpackValue, payload, 1)
+  if ok then
+    return result
+  else
+    return nil, result
+  end
+end
+
+local function readJsonMessage(bus)
   local value
   local message = ""
   while true do
@@ -155,9 +352,124 @@ local function readMessage(bus)
   end
 end
 
-local function writeMessage(bus, data)
+local function writeBinaryMessage(bus, data)
+  local out = {}
+  packValue(data, out)
+  local message = table.concat(out)
+  local parts = {}
+  local pos = 1
+  while #message - pos + 1 > max_message_size do
+    parts[#parts + 1] = string.pack(">BBs4", continuation_marker, frame_marker, message:sub(pos, pos + max_message_size - 1))
+    pos = pos + max_message_size
+  end
+  parts[#parts + 1] = string.pack(">Bs4", frame_marker, message:sub(pos))
+  return unistd.write(bus.fd, table.concat(parts))
+end
+
+local function writeJsonMessage(bus, data)
   local message = cjson.encode(data)
-  return unistd.write(bus.fd, message_delimiter .. message .. message_delimiter)
+  local parts = { message_delimiter }
+  local pos = 1
+  while #message - pos + 1 > max_message_size do
+    parts[#parts + 1] = string.char(continuation_marker) .. message:sub(pos, pos + max_message_size - 1) .. message_delimiter
+    pos = pos + max_message_size
+  end
+  parts[#parts + 1] = message:sub(pos) .. message_delimiter
+  return unistd.write(bus.fd, table.concat(parts))
+end
+
+local function negotiateProtocol(bus)
+  if bus.binary ~= nil then
+    return
+  end
+
+  bus.binary = false
+  if not string.pack then
+    return
+  end
+
+  -- Hosts that do not support this will reply with an error, so we stay on JSON.
+  bus:flush()
+  writeJsonMessage(bus, { type = "protocols" })
+  local result = readJsonMessage(bus)
+  if result and result.type == "protocols" and type(result.data) == "table" then
+    for _, protocol in ipairs(result.data) do
+      if protocol == "msgpack" then
+        bus.binary = true
+      end
+    end
+  end
+end
+
+-- Sends a request without waiting for the response. Returns the id of the request,
+-- which can be passed to receive to get the response.
+local function send(bus, data)
+  negotiateProtocol(bus)
+
+  -- Only drop stale data if we are not waiting for any responses or events.
+  if #bus.inFlight == 0 and next(bus.subscriptions) == nil then
+    bus:flush()
+  end
+
+  bus.lastRequestId = (bus.lastRequestId or 0) + 1
+  data.id = bus.lastRequestId
+  table.insert(bus.inFlight, data.id)
+
+  if bus.binary then
+    writeBinaryMessage(bus, data)
+  else
+    writeJsonMessage(bus, data)
+  end
+
+  return data.id
+end
+
+-- Reads the next message and stores it as a response or an event.
+local function readMessage(bus)
+  local result, reason
+  if bus.binary then
+    result, reason = readBinaryMessage(bus)
+  else
+    result, reason = readJsonMessage(bus)
+  end
+  if not result then
+    return result, reason
+  end
+
+  -- Events may arrive at any time, in between responses.
+  if result.type == "event" then
+    table.insert(bus.events, result.data)
+    return true
+  end
+
+  -- Hosts without request id support process requests in order and do not send ids.
+  local responseId = result.id or bus.inFlight[1]
+  for i, inFlightId in ipairs(bus.inFlight) do
+    if inFlightId == responseId then
+      table.remove(bus.inFlight, i)
+      bus.responses[responseId] = result
+      break
+    end
+  end
+
+  return true
+end
+
+local function receive(bus, id)
+  while bus.responses[id] == nil do
+    local result, reason = readMessage(bus)
+    if not result then
+      return result, reason
+    end
+  end
+
+  local result = bus.responses[id]
+  bus.responses[id] = nil
+  return result
+end
+
+local function request(bus, data)
+  return receive(bus, send(bus, data))
 end
 
 function DeviceBus:new(path)
@@ -166,9 +478,11 @@ function DeviceBus:new(path)
     return nil, status
   end
 
-  os.execute("stty -F " .. path .. " raw -echo")
+  if path == console_path then
+    os.execute("stty -F " .. path .. " raw -echo")
+  end
 
-  return setmetatable({ fd = fd }, self)
+  return setmetatable({ fd = fd, inFlight = {}, responses = {}, events = {}, subscriptions = {} }, self)
 end
 
 function DeviceBus:close()
@@ -178,16 +492,16 @@ end
 function DeviceBus:flush()
   clearBuffer(self)
   skipInput(self)
+  self.inFlight = {}
+  self.responses = {}
 end
 
 function DeviceBus:list()
-  self:flush()
-  writeMessage(self, { type = "list" })
-  local result, reason = readMessage(self)
+  local result, reason = request(self, { type = "list" })
   if result and result.type == "list" then
     return result.data
   else
-    return error(parseError(result))
+    return error(parseError(result, reason))
   end
 end
 
@@ -226,9 +540,7 @@ function DeviceBus:find(deviceTypeName)
 end
 
 function DeviceBus:methods(deviceId)
-  self:flush()
-  writeMessage(self, { type = "methods", data = deviceId })
-  local result, reason = readMessage(self)
+  local result, reason = request(self, { type = "methods", data = deviceId })
   if result and result.type == "methods" then
     return result.data
   else
@@ -236,14 +548,60 @@ function DeviceBus:methods(deviceId)
   end
 end
 
-function DeviceBus:invoke(deviceId, methodName, ...)
-  self:flush()
-  writeMessage(self, { type = "invoke", data = {
+-- Starts receiving events emitted by the device with the specified id. Events are
+-- collected while waiting for responses, use poll to get them.
+function DeviceBus:subscribe(deviceId)
+  local result, reason = request(self, { type = "subscribe", data = deviceId })
+  if result and result.type == "result" then
+    self.subscriptions[deviceId] = true
+  else
+    error(parseError(result, reason))
+  end
+end
+
+function DeviceBus:unsubscribe(deviceId)
+  local result, reason = request(self, { type = "unsubscribe", data = deviceId })
+  if result and result.type == "result" then
+    self.subscriptions[deviceId] = nil
+  else
+    error(parseError(result, reason))
+  end
+end
+
+-- Returns the next event, a table of the form { deviceId, name, data }. Blocks until
+-- an event arrives, or for at most timeout milliseconds, if specified. An event named
+-- "overflow" without device id is sent after events had to be dropped.
+function DeviceBus:poll(timeout)
+  while #self.events == 0 do
+    -- Only wait with a timeout before a message starts, never inside one.
+    if not self.buffer then
+      local result, status = poll.rpoll(self.fd, timeout or -1)
+      if result == nil then
+        return nil, status
+      elseif result == 0 then
+        return nil, "timeout"
+      end
+    end
+
+    local result, reason = readMessage(self)
+    if not result then
+      return result, reason
+    end
+  end
+
+  return table.remove(self.events, 1)
+end
+
+function DeviceBus:submit(deviceId, methodName, ...)
+  return send(self, { type = "invoke", data = {
     deviceId = deviceId,
     name = methodName,
     parameters = { ... }
   }})
-  local result, reason = readMessage(self)
+end
+
+function DeviceBus:await(id)
+  local result, reason = receive(self, id)
   if result and result.type == "result" then
     return result.data
   else
@@ -251,4 +609,57 @@ function DeviceBus:invoke(deviceId, methodName, ...)
   end
 end
 
-return DeviceBus:new("/dev/hvc0")
+function DeviceBus:invoke(deviceId, methodName, ...)
+  return self:await(self:submit(deviceId, methodName, ...))
+end
+
+-- Invokes multiple methods without waiting for each result before sending the next
+-- call. Each call is a table of the form { deviceId, methodName, parameters... }.
+function DeviceBus:invokeAll(calls)
+  local ids = {}
+  local results = {}
+  for i, call in ipairs(calls) do
+    -- Don't get too far ahead of the host, it stops reading requests once enough
+    -- responses are waiting for us.
+    if i > max_in_flight then
+      results[i - max_in_flight] = self:await(ids[i - max_in_flight])
+    end
+    ids[i] = self:submit(unpack(call))
+  end
+
+  for i = math.max(1, #calls - max_in_flight + 1), #calls do
+    results[i] = self:await(ids[i])
+  end
+  return results
+end
+
+-- Invokes multiple methods using a single message. The host runs all calls in the
+-- same tick. Each call is a table of the form { deviceId, methodName, parameters... }.
+-- Returns a table with the results of all calls, raises an error if any call failed.
+function DeviceBus:batch(calls)
+  if #calls == 0 then
+    return {}
+  end
+
+  local invocations = {}
+  for i, call in ipairs(calls) do
+    invocations[i] = { deviceId = call[1], name = call[2], parameters = { unpack(call, 3) } }
+  end
+
+  local result, reason = request(self, { type = "batch", data = invocations })
+  if not result or result.type ~= "batch" then
+    error(parseError(result, reason))
+  end
+
+  local results = {}
+  for i, entry in ipairs(result.data) do
+    if entry.type == "result" then
+      results[i] = entry.data
+    else
+      error("call " .. i .. " failed: " .. parseError(entry))
+    end
+  end
+  return results
+end
+
+return DeviceBus:new(memory_transport_path) or DeviceBus:new(console_path)
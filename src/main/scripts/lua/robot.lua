@@ -3,7 +3,7 @@ local robot = assert(require("devices"):find("robot"), "robot device not found")
 local time = require("posix.time")
 
 local function sleep(milliseconds)
-  time.nanosleep({tv_sec=0,tv_nsec=milliseconds*1000})
+  time.nanosleep({tv_sec=math.floor(milliseconds/1000),tv_nsec=(milliseconds%1000)*1000000})
 end
 
 local M = {}
@@ -56,12 +56,17 @@ local function parseDirection(value)
 end
 
 local function waitForLastAction()
-  local id = robot:getLastActionId()
-
-  local result = robot:getActionResult(id)
-  while result and result == "INCOMPLETE" do
-    sleep(100)
-    result = robot:getActionResult(id)
+  local actionId = robot:getLastActionId()
+
+  -- Usually only returns once the action has finished. Fails if the wait was interrupted,
+  -- e.g. because the robot was unloaded, in which case we fall back to polling.
+  local ok, result = pcall(robot.waitForAction, robot, actionId)
+  if not ok then
+    result = robot:getActionResult(actionId)
+    while result == "INCOMPLETE" do
+      sleep(100)
+      result = robot:getActionResult(actionId)
+    end
   end
 
   if result == "SUCCESS" then
@@ -0,0 +1,60 @@
+package li.cil.oc2.common.bus;
+
+import li.cil.oc2.api.bus.DeviceBusElement;
+import net.minecraft.util.registry.Bootstrap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Host time needed to rescan a bus made of a chain of elements, for different bus sizes.
+ * <p>
+ * Excluded from the regular test run, run using the {@code benchmark} task.
+ */
+@Tag("benchmark")
+public final class DeviceBusScanBenchmarkTests {
+    private static final int[] ELEMENT_COUNTS = {128, 1_000, 10_000};
+    private static final int WARMUP_SCANS = 5;
+    private static final int MEASURED_SCANS = 20;
+
+    @BeforeAll
+    public static void setup() {
+        Bootstrap.bootStrap();
+    }
+
+    @Test
+    public void rescanChain(final TestReporter reporter) {
+        for (final int elementCount : ELEMENT_COUNTS) {
+            final DeviceBusElement root = mock(DeviceBusElement.class);
+            when(root.getLocalDevices()).thenReturn(emptyList());
+            DeviceBusTests.createElementChain(root, elementCount - 1);
+
+            final CommonDeviceBusController busController = new CommonDeviceBusController(root, elementCount, 0);
+            for (int i = 0; i < WARMUP_SCANS; i++) {
+                rescan(busController);
+            }
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_SCANS; i++) {
+                rescan(busController);
+            }
+            final long time = (System.nanoTime() - start) / MEASURED_SCANS;
+
+            reporter.publishEntry("rescanNanos" + elementCount, String.valueOf(time));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static void rescan(final CommonDeviceBusController busController) {
+        busController.scheduleBusScan();
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.READY, busController.getState());
+    }
+}
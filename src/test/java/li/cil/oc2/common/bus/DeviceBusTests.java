@@ -1,6 +1,7 @@
 package li.cil.oc2.common.bus;
 
 import li.cil.oc2.api.bus.DeviceBusElement;
+import li.cil.oc2.api.bus.device.Device;
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
 import li.cil.oc2.common.capabilities.Capabilities;
 import net.minecraft.util.registry.Bootstrap;
@@ -12,16 +13,22 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class DeviceBusTests {
+    private static final int MAX_ELEMENT_COUNT = 1024;
+
     @Mock
     private Capability<DeviceBusElement> busElementCapability;
     private CommonDeviceBusController busController;
@@ -43,7 +50,7 @@ public class DeviceBusTests {
         when(busControllerBusElement.getLocalDevices()).thenReturn(emptyList());
         when(busControllerBusElement.getNeighbors()).thenReturn(Optional.empty());
 
-        busController = new CommonDeviceBusController(busControllerBusElement, 0);
+        busController = new CommonDeviceBusController(busControllerBusElement, MAX_ELEMENT_COUNT, 0);
     }
 
     @Test
@@ -93,4 +100,122 @@ public class DeviceBusTests {
         verify(busElement1).addController(busController);
         verify(busElement2).addController(busController);
     }
+
+    @Test
+    public void rescanRemovesDevicesOfRemovedElements() {
+        // topology: controller <-> element, then: controller
+
+        final DeviceBusElement busElement = mock(DeviceBusElement.class);
+
+        final RPCDevice sharedDevice = mock(RPCDevice.class);
+        final RPCDevice elementDevice = mock(RPCDevice.class);
+        when(busControllerBusElement.getLocalDevices()).thenReturn(singletonList(sharedDevice));
+        when(busElement.getLocalDevices()).thenReturn(asList(sharedDevice, elementDevice));
+
+        when(busControllerBusElement.getNeighbors()).thenReturn(Optional.of(Collections.singleton(Optional.of(() -> busElement))));
+        when(busElement.getNeighbors()).thenReturn(Optional.of(Collections.singleton(Optional.of(() -> busControllerBusElement))));
+
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.READY, busController.getState());
+        assertTrue(busController.getDevices().contains(sharedDevice));
+        assertTrue(busController.getDevices().contains(elementDevice));
+
+        when(busControllerBusElement.getNeighbors()).thenReturn(Optional.of(Collections.emptyList()));
+
+        busController.scheduleBusScan();
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.READY, busController.getState());
+
+        verify(busElement).removeController(busController);
+        verify(busControllerBusElement, never()).removeController(busController);
+        assertTrue(busController.getDevices().contains(sharedDevice));
+        assertFalse(busController.getDevices().contains(elementDevice));
+    }
+
+    @Test
+    public void scanDevicesOfElementOnlyUpdatesThatElement() {
+        // topology: controller <-> element
+
+        final DeviceBusElement busElement = mock(DeviceBusElement.class);
+
+        final RPCDevice sharedDevice = mock(RPCDevice.class);
+        final RPCDevice oldDevice = mock(RPCDevice.class);
+        final RPCDevice newDevice = mock(RPCDevice.class);
+        when(busControllerBusElement.getLocalDevices()).thenReturn(singletonList(sharedDevice));
+        when(busElement.getLocalDevices()).thenReturn(asList(sharedDevice, oldDevice));
+
+        when(busControllerBusElement.getNeighbors()).thenReturn(Optional.of(Collections.singleton(Optional.of(() -> busElement))));
+        when(busElement.getNeighbors()).thenReturn(Optional.of(Collections.singleton(Optional.of(() -> busControllerBusElement))));
+
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.READY, busController.getState());
+
+        final List<Device> addedDevices = new ArrayList<>();
+        final List<Device> removedDevices = new ArrayList<>();
+        busController.onDevicesAdded.add(event -> addedDevices.addAll(event.devices));
+        busController.onDevicesRemoved.add(event -> removedDevices.addAll(event.devices));
+        clearInvocations(busControllerBusElement);
+
+        when(busElement.getLocalDevices()).thenReturn(singletonList(newDevice));
+        busController.scanDevices(busElement);
+
+        verify(busControllerBusElement, never()).getLocalDevices();
+        assertEquals(singletonList(newDevice), addedDevices);
+        assertEquals(singletonList(oldDevice), removedDevices);
+        assertTrue(busController.getDevices().contains(sharedDevice));
+        assertTrue(busController.getDevices().contains(newDevice));
+        assertFalse(busController.getDevices().contains(oldDevice));
+
+        // Elements not on the bus are ignored.
+        final DeviceBusElement otherElement = mock(DeviceBusElement.class);
+        busController.scanDevices(otherElement);
+        verify(otherElement, never()).getLocalDevices();
+    }
+
+    @Test
+    public void scanSuccessfulWithMaxElementCount() {
+        createElementChain(busControllerBusElement, MAX_ELEMENT_COUNT - 1);
+
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.READY, busController.getState());
+    }
+
+    @Test
+    public void scanFailsWithTooManyElements() {
+        final List<DeviceBusElement> elements = createElementChain(busControllerBusElement, MAX_ELEMENT_COUNT);
+
+        busController.scan();
+        assertEquals(CommonDeviceBusController.BusState.TOO_COMPLEX, busController.getState());
+
+        for (final DeviceBusElement element : elements) {
+            verify(element, never()).addController(busController);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    static List<DeviceBusElement> createElementChain(final DeviceBusElement root, final int count) {
+        // topology: controller <-> element 1 <-> ... <-> element n
+
+        final List<DeviceBusElement> elements = new ArrayList<>();
+        elements.add(root);
+        for (int i = 0; i < count; i++) {
+            elements.add(mock(DeviceBusElement.class));
+        }
+
+        for (int i = 0; i < elements.size(); i++) {
+            final List<Optional<DeviceBusElement>> neighbors = new ArrayList<>();
+            if (i > 0) {
+                final DeviceBusElement previous = elements.get(i - 1);
+                neighbors.add(Optional.of(() -> previous));
+            }
+            if (i < elements.size() - 1) {
+                final DeviceBusElement next = elements.get(i + 1);
+                neighbors.add(Optional.of(() -> next));
+            }
+            when(elements.get(i).getNeighbors()).thenReturn(Optional.of(neighbors));
+        }
+
+        return elements.subList(1, elements.size());
+    }
 }
@@ -0,0 +1,106 @@
+package li.cil.oc2.common.serialization;
+
+import li.cil.oc2.common.Constants;
+import li.cil.sedna.buildroot.Buildroot;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Size of typical blobs encoded with each codec, and the time it takes to encode and decode them.
+ * <p>
+ * Loads the Buildroot images and encodes them repeatedly, so it is left to the {@code benchmark} task.
+ */
+@Tag("benchmark")
+public final class BlobCodecBenchmarkTests {
+    private static final int MEMORY_SIZE = 32 * Constants.MEGABYTE;
+    private static final int LINUX_IMAGE_OFFSET = 0x200000;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    @Test
+    public void memoryImage(final TestReporter reporter) throws IOException {
+        // Memory of a VM that just loaded the firmware and kernel, mostly zeros.
+        final byte[] data = new byte[MEMORY_SIZE];
+        copy(Buildroot.getFirmware(), data, 0);
+        copy(Buildroot.getLinuxImage(), data, LINUX_IMAGE_OFFSET);
+
+        measure(reporter, "memory", data);
+    }
+
+    @Test
+    public void diskImage(final TestReporter reporter) throws IOException {
+        measure(reporter, "disk", readAll(Buildroot.getRootFilesystem()));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static void measure(final TestReporter reporter, final String name, final byte[] data) throws IOException {
+        for (final BlobCodec codec : new BlobCodec[]{BlobCodecs.GZIP, BlobCodecs.BLOCK_LZ}) {
+            byte[] encoded = null;
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                encoded = encode(codec, data);
+                assertArrayEquals(data, decode(encoded));
+            }
+
+            long encodeTime = 0;
+            long decodeTime = 0;
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                final long start = System.nanoTime();
+                encoded = encode(codec, data);
+                final long encodeEnd = System.nanoTime();
+                decode(encoded);
+                final long decodeEnd = System.nanoTime();
+
+                encodeTime += encodeEnd - start;
+                decodeTime += decodeEnd - encodeEnd;
+            }
+
+            final String prefix = name + "." + codec.getName() + ".";
+            reporter.publishEntry(prefix + "encodedBytes", String.valueOf(encoded.length));
+            reporter.publishEntry(prefix + "encodeNanos", String.valueOf(encodeTime / MEASURED_RUNS));
+            reporter.publishEntry(prefix + "decodeNanos", String.valueOf(decodeTime / MEASURED_RUNS));
+
+            // Both images are mostly zeros or executable code, which every codec should shrink.
+            assertTrue(encoded.length < data.length);
+        }
+    }
+
+    private static byte[] encode(final BlobCodec codec, final byte[] data) throws IOException {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (final OutputStream output = BlobCodecs.encode(codec, encoded)) {
+            output.write(data);
+        }
+        return encoded.toByteArray();
+    }
+
+    private static byte[] decode(final byte[] encoded) throws IOException {
+        return readAll(BlobCodecs.decode(new ByteArrayInputStream(encoded)));
+    }
+
+    private static void copy(final InputStream input, final byte[] data, final int offset) throws IOException {
+        final byte[] bytes = readAll(input);
+        assertTrue(offset + bytes.length <= data.length);
+        System.arraycopy(bytes, 0, data, offset, bytes.length);
+    }
+
+    private static byte[] readAll(final InputStream input) throws IOException {
+        try (final InputStream stream = input) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * Constants.KILOBYTE];
+            int count;
+            while ((count = stream.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package li.cil.oc2.common.serialization;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class BlobCodecTests {
+    private static final int DATA_SIZE = 3 * BlockBlobCodec.DEFAULT_BLOCK_SIZE + 123;
+    private static final int MAX_BLOCK_FRAMING_SIZE = 64;
+
+    @Test
+    public void roundTripEmpty() {
+        assertRoundTrip(BlobCodecs.GZIP, new byte[0]);
+        assertRoundTrip(BlobCodecs.BLOCK_LZ, new byte[0]);
+    }
+
+    @Test
+    public void roundTripZeros() {
+        final byte[] data = new byte[DATA_SIZE];
+        assertTrue(assertRoundTrip(BlobCodecs.GZIP, data) < data.length / 10);
+        assertTrue(assertRoundTrip(BlobCodecs.BLOCK_LZ, data) < data.length / 10);
+    }
+
+    @Test
+    public void roundTripRandom() {
+        final byte[] data = new byte[DATA_SIZE];
+        new Random(0).nextBytes(data);
+
+        // Incompressible data must not grow by more than the framing.
+        assertTrue(assertRoundTrip(BlobCodecs.GZIP, data) < data.length + data.length / 100);
+        assertTrue(assertRoundTrip(BlobCodecs.BLOCK_LZ, data) < data.length + MAX_BLOCK_FRAMING_SIZE);
+    }
+
+    @Test
+    public void roundTripText() {
+        final StringBuilder builder = new StringBuilder();
+        final Random random = new Random(0);
+        while (builder.length() < DATA_SIZE) {
+            builder.append("line ").append(random.nextInt(100)).append(": lorem ipsum dolor sit amet\n");
+        }
+        final byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
+        assertTrue(assertRoundTrip(BlobCodecs.GZIP, data) < data.length / 2);
+        assertTrue(assertRoundTrip(BlobCodecs.BLOCK_LZ, data) < data.length / 2);
+    }
+
+    @Test
+    public void decodeLegacyGzip() {
+        final byte[] data = {1, 2, 3, 4};
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        assertDoesNotThrow(() -> {
+            try (final OutputStream output = new GZIPOutputStream(encoded)) {
+                output.write(data);
+            }
+        });
+
+        assertArrayEquals(data, assertDoesNotThrow(() -> decode(encoded.toByteArray())));
+    }
+
+    @Test
+    public void decodeUnknownFormatFails() {
+        assertThrows(IOException.class, () -> decode(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertThrows(IOException.class, () -> decode(new byte[]{'O', 'C', '2', 'B', (byte) 0xFF}));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static int assertRoundTrip(final BlobCodec codec, final byte[] data) {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        assertDoesNotThrow(() -> {
+            try (final OutputStream output = BlobCodecs.encode(codec, encoded)) {
+                output.write(data);
+            }
+        });
+
+        assertArrayEquals(data, assertDoesNotThrow(() -> decode(encoded.toByteArray())));
+        return encoded.size();
+    }
+
+    private static byte[] decode(final byte[] encoded) throws IOException {
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (final InputStream input = BlobCodecs.decode(new ByteArrayInputStream(encoded))) {
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                decoded.write(buffer, 0, count);
+            }
+        }
+        return decoded.toByteArray();
+    }
+}
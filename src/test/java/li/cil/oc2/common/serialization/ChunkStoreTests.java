@@ -0,0 +1,148 @@
+package li.cil.oc2.common.serialization;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class ChunkStoreTests {
+    private static final int DATA_SIZE = 5 * ChunkStore.CHUNK_SIZE + 17;
+
+    private Path directory;
+    private Path chunkDirectory;
+    private ChunkStore store;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        directory = Files.createTempDirectory("oc2-chunk-store");
+        chunkDirectory = directory.resolve("chunks");
+        store = new ChunkStore(directory, chunkDirectory);
+        store.initialize();
+    }
+
+    @AfterEach
+    public void teardownEach() throws IOException {
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void identicalBlobsShareChunks() throws IOException {
+        final byte[] data = createData();
+        final Path first = createBlobPath();
+        final Path second = createBlobPath();
+
+        store.write(first, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+        final long chunkCount = countChunks();
+        store.write(second, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+
+        assertEquals(6, chunkCount);
+        assertEquals(chunkCount, countChunks());
+        assertArrayEquals(data, read(first));
+        assertArrayEquals(data, read(second));
+    }
+
+    @Test
+    public void chunksAreDeletedWithLastReference() throws IOException {
+        final byte[] data = createData();
+        final Path first = createBlobPath();
+        final Path second = createBlobPath();
+
+        store.write(first, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+        store.write(second, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+
+        store.delete(first);
+        assertEquals(6, countChunks());
+        assertArrayEquals(data, read(second));
+
+        store.delete(second);
+        assertEquals(0, countChunks());
+    }
+
+    @Test
+    public void replacingBlobReleasesChangedChunks() throws IOException {
+        final byte[] data = createData();
+        final Path path = createBlobPath();
+
+        store.write(path, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+        data[0]++;
+        store.write(path, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+
+        assertEquals(6, countChunks());
+        assertArrayEquals(data, read(path));
+    }
+
+    @Test
+    public void initializeRebuildsReferenceCounts() throws IOException {
+        final byte[] data = createData();
+        final Path first = createBlobPath();
+        final Path second = createBlobPath();
+
+        store.write(first, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+        store.write(second, new ByteArrayInputStream(data), BlobCodecs.BLOCK_LZ);
+        Files.delete(second); // Deleted without releasing its chunks.
+
+        final ChunkStore reopened = new ChunkStore(directory, chunkDirectory);
+        reopened.initialize();
+        assertEquals(6, countChunks());
+
+        reopened.delete(first);
+        assertEquals(0, countChunks());
+    }
+
+    @Test
+    public void readsBlobsWithoutManifest() throws IOException {
+        final byte[] data = createData();
+        final Path path = createBlobPath();
+        try (final OutputStream output = new GZIPOutputStream(Files.newOutputStream(path))) {
+            output.write(data);
+        }
+
+        assertArrayEquals(data, read(path));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private Path createBlobPath() {
+        return directory.resolve(UUID.randomUUID().toString());
+    }
+
+    private long countChunks() throws IOException {
+        try (final Stream<Path> paths = Files.walk(chunkDirectory)) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private byte[] read(final Path path) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final InputStream input = store.openInputStream(path)) {
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] createData() {
+        final byte[] data = new byte[DATA_SIZE];
+        new Random(0).nextBytes(data);
+        return data;
+    }
+}
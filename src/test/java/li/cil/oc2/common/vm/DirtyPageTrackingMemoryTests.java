@@ -0,0 +1,225 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static li.cil.oc2.common.vm.DirtyPageTrackingMemory.PAGE_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class DirtyPageTrackingMemoryTests {
+    private static final int PAGE_COUNT = 16;
+    private static final int MEMORY_SIZE = PAGE_COUNT * PAGE_SIZE;
+
+    private DirtyPageTrackingMemory memory;
+
+    @BeforeEach
+    public void setupEach() throws MemoryAccessException {
+        memory = new DirtyPageTrackingMemory(Memory.create(MEMORY_SIZE));
+        final byte[] data = new byte[MEMORY_SIZE];
+        new Random(0).nextBytes(data);
+        memory.store(0, ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void baseImagePlusDeltaRoundTrip() throws IOException, MemoryAccessException {
+        final byte[] base = readAll(memory.getSnapshotInputStream());
+        memory.clearDirtyPages();
+        memory.clearModified();
+
+        memory.store(3 * PAGE_SIZE + 5, 0x12345678, 2);
+        memory.store(7 * PAGE_SIZE - 2, 0x1122334455667788L, 3); // spans two pages
+        assertEquals(3, memory.getDirtyPageCount());
+        assertTrue(memory.isModified());
+
+        final byte[] delta = readAll(memory.getDirtyPageInputStream());
+        assertEquals(memory.getDirtyPageDataSize(), delta.length);
+
+        final DirtyPageTrackingMemory restored = new DirtyPageTrackingMemory(Memory.create(MEMORY_SIZE));
+        restored.getBackingMemory().store(0, ByteBuffer.wrap(base));
+        try (final OutputStream output = restored.getDirtyPageOutputStream()) {
+            output.write(delta);
+        }
+
+        assertArrayEquals(getContents(memory), getContents(restored));
+
+        // Restored pages are already saved, they are not part of the next delta.
+        assertEquals(0, restored.getDirtyPageCount());
+        assertFalse(restored.isModified());
+    }
+
+    @Test
+    public void deltasOnlyContainPagesChangedSinceLastSave() throws IOException, MemoryAccessException {
+        final byte[] base = readAll(memory.getSnapshotInputStream());
+        memory.clearDirtyPages();
+
+        memory.store(2 * PAGE_SIZE, 0x11, 0);
+        memory.store(4 * PAGE_SIZE, 0x22, 0);
+        final byte[] firstDelta = readAll(memory.getDirtyPageInputStream());
+        memory.clearDirtyPages();
+
+        memory.store(4 * PAGE_SIZE, 0x33, 0);
+        final byte[] secondDelta = readAll(memory.getDirtyPageInputStream());
+        memory.clearDirtyPages();
+        assertEquals(4 + PAGE_SIZE, secondDelta.length);
+
+        final DirtyPageTrackingMemory restored = new DirtyPageTrackingMemory(Memory.create(MEMORY_SIZE));
+        restored.getBackingMemory().store(0, ByteBuffer.wrap(base));
+        for (final byte[] delta : new byte[][]{firstDelta, secondDelta}) {
+            try (final OutputStream output = restored.getDirtyPageOutputStream()) {
+                output.write(delta);
+            }
+        }
+
+        assertArrayEquals(getContents(memory), getContents(restored));
+    }
+
+    @Test
+    public void fullSnapshotAboveDeltaThreshold() throws MemoryAccessException {
+        assertTrue(memory.shouldWriteFullSnapshot(0)); // All pages were written in setup.
+
+        memory.clearDirtyPages();
+        assertFalse(memory.shouldWriteFullSnapshot(0));
+
+        final int threshold = PAGE_COUNT / DirtyPageTrackingMemory.MAX_DELTA_PAGE_COUNT_DIVISOR;
+        for (int page = 0; page < threshold; page++) {
+            memory.store(page * PAGE_SIZE, 0, 0);
+        }
+        assertEquals(threshold, memory.getDirtyPageCount());
+        assertFalse(memory.shouldWriteFullSnapshot(0));
+
+        memory.store(threshold * PAGE_SIZE, 0, 0);
+        assertTrue(memory.shouldWriteFullSnapshot(0));
+
+        // Pages saved in earlier deltas count towards the threshold.
+        memory.clearDirtyPages();
+        memory.store(0, 0, 0);
+        assertFalse(memory.shouldWriteFullSnapshot(threshold - 1));
+        assertTrue(memory.shouldWriteFullSnapshot(threshold));
+    }
+
+    @Test
+    public void writesDuringSnapshotDoNotChangeIt() throws IOException, MemoryAccessException {
+        final byte[] expected = getContents(memory);
+
+        try (final InputStream input = memory.getSnapshotInputStream()) {
+            assertTrue(memory.isSnapshotActive());
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[PAGE_SIZE / 2];
+
+            // Write to pages already read, the page partially read, and pages not yet read.
+            copy(input, output, buffer, 3);
+            memory.store(0, ~0, 2);
+            memory.store(PAGE_SIZE + 1, ~0, 0);
+            memory.store(5 * PAGE_SIZE, ByteBuffer.wrap(new byte[2 * PAGE_SIZE]));
+            memory.store(MEMORY_SIZE - 4, ~0, 2);
+
+            copy(input, output, buffer, Integer.MAX_VALUE);
+            assertArrayEquals(expected, output.toByteArray());
+        }
+
+        assertFalse(memory.isSnapshotActive());
+        assertFalse(Arrays.equals(expected, getContents(memory)));
+    }
+
+    @Test
+    public void writesDuringDeltaSnapshotDoNotChangeIt() throws IOException, MemoryAccessException {
+        memory.clearDirtyPages();
+        memory.store(2 * PAGE_SIZE, 1, 0);
+        memory.store(9 * PAGE_SIZE, 2, 0);
+        final byte[] expected = readAll(memory.getDirtyPageInputStream());
+        assertEquals(2 * (4 + PAGE_SIZE), expected.length);
+
+        try (final InputStream input = memory.getDirtyPageInputStream()) {
+            memory.store(2 * PAGE_SIZE, 3, 0);
+            memory.store(9 * PAGE_SIZE, 4, 0);
+            memory.store(12 * PAGE_SIZE, 5, 0); // not part of the delta
+
+            assertArrayEquals(expected, readAll(input));
+        }
+    }
+
+    @Test
+    public void overlappingSnapshotsKeepTheirContents() throws IOException, MemoryAccessException {
+        final byte[] first = getContents(memory);
+        try (final InputStream firstInput = memory.getSnapshotInputStream()) {
+            memory.store(0, ~0, 2);
+            final byte[] second = getContents(memory);
+
+            try (final InputStream secondInput = memory.getSnapshotInputStream()) {
+                memory.store(0, 0, 2);
+                memory.store(8 * PAGE_SIZE, ~0, 2);
+
+                assertArrayEquals(second, readAll(secondInput));
+            }
+
+            assertTrue(memory.isSnapshotActive());
+            assertArrayEquals(first, readAll(firstInput));
+        }
+
+        assertFalse(memory.isSnapshotActive());
+    }
+
+    @Test
+    public void writesWithoutCopyMemoryWaitForSnapshot() throws Exception {
+        final byte[] expected = getContents(memory);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (final InputStream input = memory.getSnapshotInputStream(0)) {
+            copy(input, output, new byte[PAGE_SIZE], 2);
+
+            // Pages already read may be written right away.
+            memory.store(0, ~0, 2);
+
+            final Thread writer = new Thread(() -> {
+                try {
+                    memory.store(MEMORY_SIZE - 4, ~0, 2);
+                } catch (final MemoryAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            writer.join(100);
+            assertTrue(writer.isAlive()); // waits for the last page to be read
+
+            copy(input, output, new byte[PAGE_SIZE], Integer.MAX_VALUE);
+            writer.join();
+        }
+
+        assertArrayEquals(expected, output.toByteArray());
+        assertEquals(~0, (int) memory.load(MEMORY_SIZE - 4, 2));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static byte[] getContents(final DirtyPageTrackingMemory memory) throws MemoryAccessException {
+        final ByteBuffer contents = ByteBuffer.allocate(memory.getLength());
+        memory.load(0, contents);
+        return contents.array();
+    }
+
+    private static byte[] readAll(final InputStream input) throws IOException {
+        try (final InputStream stream = input) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            copy(stream, output, new byte[1024], Integer.MAX_VALUE);
+            return output.toByteArray();
+        }
+    }
+
+    private static void copy(final InputStream input, final OutputStream output, final byte[] buffer, int maxReads) throws IOException {
+        int count;
+        while (maxReads-- > 0 && (count = input.read(buffer)) > 0) {
+            output.write(buffer, 0, count);
+        }
+    }
+}
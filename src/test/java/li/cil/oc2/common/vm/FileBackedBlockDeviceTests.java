@@ -0,0 +1,153 @@
+package li.cil.oc2.common.vm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static li.cil.oc2.common.vm.FileBackedBlockDevice.BLOCK_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class FileBackedBlockDeviceTests {
+    private static final int CAPACITY = 3 * BLOCK_SIZE + BLOCK_SIZE / 2;
+
+    private Path path;
+    private FileBackedBlockDevice device;
+
+    @BeforeEach
+    public void setupEach() throws IOException {
+        path = Files.createTempFile("oc2-block-device", ".blocks");
+        device = new FileBackedBlockDevice(CAPACITY, false);
+    }
+
+    @AfterEach
+    public void teardownEach() throws IOException {
+        device.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void partialBlockWritesKeepRestOfBlock() throws IOException {
+        final byte[] expected = createData();
+        Files.write(path, expected);
+        device.open(openChannel());
+
+        // Within a block, across a block boundary and in the last, partial block.
+        write(device, BLOCK_SIZE + 100, expected, new byte[]{1, 2, 3, 4});
+        write(device, 2 * BLOCK_SIZE - 2, expected, new byte[]{5, 6, 7, 8});
+        write(device, CAPACITY - 3, expected, new byte[]{9, 10, 11});
+        assertEquals(3, device.getDirtyBlockCount());
+        assertArrayEquals(expected, read(device, 0, CAPACITY));
+
+        device.prepareWriteBack().run();
+        assertEquals(0, device.getDirtyBlockCount());
+        assertArrayEquals(expected, readFile());
+    }
+
+    @Test
+    public void writesWhileWriteBackIsPending() throws IOException {
+        device.open(openChannel());
+
+        final byte[] first = new byte[CAPACITY];
+        write(device, 10, first, new byte[]{1, 2, 3});
+        final Runnable firstJob = device.prepareWriteBack();
+
+        // Written to the same block while the job has not run yet.
+        final byte[] second = first.clone();
+        write(device, 12, second, new byte[]{4, 5});
+        assertArrayEquals(second, read(device, 0, CAPACITY));
+
+        firstJob.run();
+        assertArrayEquals(second, read(device, 0, CAPACITY));
+        assertArrayEquals(first, readFile());
+
+        device.prepareWriteBack().run();
+        assertArrayEquals(second, readFile());
+    }
+
+    @Test
+    public void unwrittenBlocksReadAsZeros() throws IOException {
+        final byte[] expected = new byte[CAPACITY];
+
+        // Not opened yet.
+        assertArrayEquals(expected, read(device, 0, CAPACITY));
+
+        device.open(openChannel());
+        assertArrayEquals(expected, read(device, 0, CAPACITY));
+
+        write(device, 2 * BLOCK_SIZE + 1, expected, new byte[]{1});
+        device.prepareWriteBack().run();
+
+        // Only the written block is stored, blocks before it read as zeros from the sparse
+        // file, blocks after it from past the end of the file.
+        assertTrue(Files.size(path) <= 3 * BLOCK_SIZE);
+        assertArrayEquals(expected, readFile());
+    }
+
+    @Test
+    public void readsEndAtCapacity() throws IOException {
+        device.open(openChannel());
+
+        try (final InputStream input = device.getInputStream(CAPACITY - 2)) {
+            assertEquals(0, input.read());
+            assertEquals(0, input.read());
+            assertEquals(-1, input.read());
+        }
+
+        assertThrows(IOException.class, () -> {
+            try (final OutputStream output = device.getOutputStream(CAPACITY - 1)) {
+                output.write(new byte[2]);
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private byte[] readFile() throws IOException {
+        final FileBackedBlockDevice reopened = new FileBackedBlockDevice(CAPACITY, true);
+        try {
+            reopened.open(openChannel());
+            return read(reopened, 0, CAPACITY);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void write(final FileBackedBlockDevice device, final int offset, final byte[] expected, final byte[] data) throws IOException {
+        try (final OutputStream output = device.getOutputStream(offset)) {
+            output.write(data);
+        }
+        System.arraycopy(data, 0, expected, offset, data.length);
+    }
+
+    private static byte[] read(final FileBackedBlockDevice device, final int offset, final int length) throws IOException {
+        final byte[] data = new byte[length];
+        try (final InputStream input = device.getInputStream(offset)) {
+            int position = 0;
+            int count;
+            while (position < length && (count = input.read(data, position, length - position)) > 0) {
+                position += count;
+            }
+            assertEquals(length, position);
+        }
+        return data;
+    }
+
+    private static byte[] createData() {
+        final byte[] data = new byte[CAPACITY];
+        new Random(0).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,60 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Host time needed to run an idle guest for one tick, stepping it in fixed small steps as
+ * done before steps were adapted to the guest, and using the steps picked by {@link VMRunner}.
+ * <p>
+ * Excluded from the regular test run, run using the {@code benchmark} task.
+ */
+@Tag("benchmark")
+public final class IdleSteppingBenchmarkTests {
+    private static final int FIXED_CYCLES_PER_STEP = 1_000;
+    private static final int WARMUP_TICKS = 20;
+    private static final int MEASURED_TICKS = 200;
+
+    @Test
+    public void idleGuestStepping(final TestReporter reporter) throws MemoryAccessException {
+        final TestVMRunner fixed = TestVMRunner.create(VMRunnerTests.IDLE_PROGRAM);
+        final TestVMRunner adaptive = TestVMRunner.create(VMRunnerTests.IDLE_PROGRAM);
+        adaptive.canHibernate = false; // Measure stepping, not skipping whole ticks.
+
+        final long fixedTime = measure(() -> {
+            for (int cycles = 0; cycles < VMRunner.getCyclesPerTick(); cycles += FIXED_CYCLES_PER_STEP) {
+                fixed.board.step(FIXED_CYCLES_PER_STEP);
+            }
+        });
+        final long adaptiveTime = measure(adaptive::tick);
+
+        reporter.publishEntry("fixedStepsNanosPerTick", String.valueOf(fixedTime));
+        reporter.publishEntry("adaptiveStepsNanosPerTick", String.valueOf(adaptiveTime));
+
+        // Make sure we measured an idle guest, running all cycles of each tick.
+        assertTrue(fixed.isWaitingForInterrupt());
+        assertTrue(adaptive.isWaitingForInterrupt());
+        assertEquals(WARMUP_TICKS + MEASURED_TICKS, adaptive.scheduleCount);
+        assertEquals(adaptive.getCycleLimit(), adaptive.getCycles());
+
+        assertTrue(adaptiveTime < fixedTime);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static long measure(final Runnable tick) {
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            tick.run();
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            tick.run();
+        }
+        return (System.nanoTime() - start) / MEASURED_TICKS;
+    }
+}
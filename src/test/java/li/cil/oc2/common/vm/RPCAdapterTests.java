@@ -7,16 +7,23 @@ import li.cil.oc2.api.bus.device.object.Callback;
 import li.cil.oc2.api.bus.device.object.ObjectDevice;
 import li.cil.oc2.api.bus.device.object.Parameter;
 import li.cil.oc2.api.bus.device.rpc.RPCDevice;
+import li.cil.oc2.api.bus.device.rpc.RPCEventEmitter;
+import li.cil.oc2.api.bus.device.rpc.RPCEventListener;
+import li.cil.oc2.api.bus.device.rpc.RPCEventSource;
 import li.cil.oc2.api.bus.device.rpc.RPCMethod;
 import li.cil.oc2.common.bus.RPCDeviceBusAdapter;
+import li.cil.oc2.common.serialization.MessagePackReader;
+import li.cil.oc2.common.serialization.MessagePackWriter;
 import li.cil.sedna.api.device.serial.SerialDevice;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
@@ -63,6 +70,36 @@ public class RPCAdapterTests {
         assertNotNull(deviceJson.get("typeNames"));
     }
 
+    @Test
+    public void repeatedDescriptorRequests() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        JsonArray previousData = null;
+        for (int id = 1; id <= 2; id++) {
+            final JsonObject request = new JsonObject();
+            request.addProperty("type", "methods");
+            request.addProperty("id", id);
+            request.addProperty("data", DEVICE_UUID.toString());
+            serialDevice.putAsVM(request.toString());
+            rpcAdapter.step(0);
+
+            final String message = serialDevice.readMessageAsVM();
+            assertNotNull(message);
+            final JsonObject json = new JsonParser().parse(message).getAsJsonObject();
+            assertEquals("methods", json.get("type").getAsString());
+            assertEquals(id, json.get("id").getAsLong());
+
+            final JsonArray data = json.getAsJsonArray("data");
+            assertEquals(device.getMethods().size(), data.size());
+            if (previousData != null) {
+                assertEquals(previousData, data);
+            }
+            previousData = data;
+        }
+    }
+
     @Test
     public void simpleMethod() {
         final VoidIntMethod method = new VoidIntMethod();
@@ -95,6 +132,326 @@ public class RPCAdapterTests {
         assertEquals(42 + 23, invokeMethod(DEVICE_UUID, "add", 42, 23).getAsInt());
     }
 
+    @Test
+    public void trailingParametersDefaultToNull() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        assertEquals(42, invokeMethod(DEVICE_UUID, "addOptional", 42).getAsInt());
+        assertEquals(42 + 23, invokeMethod(DEVICE_UUID, "addOptional", 42, 23).getAsInt());
+    }
+
+    @Test
+    public void binaryProtocol() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        final MessagePackWriter request = new MessagePackWriter();
+        request.writeMapHeader(2);
+        request.writeString("data");
+        request.writeMapHeader(3);
+        request.writeString("deviceId");
+        request.writeString(DEVICE_UUID.toString());
+        request.writeString("name");
+        request.writeString("div");
+        request.writeString("parameters");
+        request.writeArrayHeader(2);
+        request.writeLong(0x1_0000_0000L);
+        request.writeLong(-2);
+        request.writeString("type");
+        request.writeString("invoke");
+        serialDevice.putFrameAsVM(request);
+
+        rpcAdapter.step(0);
+
+        final ByteBuffer response = serialDevice.readFrameAsVM();
+        assertNotNull(response);
+        final MessagePackReader reader = new MessagePackReader(response);
+        assertEquals(2, reader.readMapHeader());
+        assertEquals("type", reader.readString());
+        assertEquals("result", reader.readString());
+        assertEquals("data", reader.readString());
+        assertEquals(0x1_0000_0000L / -2, reader.readLong());
+    }
+
+    @Test
+    public void negativeFrameLengthSkipsToDelimiter() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        // Frame with a negative length and some payload, which must not be parsed as a message.
+        serialDevice.putBytesAsVM(1, 0xFF, 0xFF, 0xFF, 0xFE);
+        serialDevice.putAsVM("{\"type\":\"list\"}");
+        serialDevice.putAsVM("{\"type\":\"invoke\",\"data\":{\"deviceId\":\"" + DEVICE_UUID +
+                             "\",\"name\":\"add\",\"parameters\":[1,2]}}");
+
+        rpcAdapter.step(0);
+
+        final ByteBuffer error = serialDevice.readFrameAsVM();
+        assertNotNull(error);
+        final MessagePackReader reader = new MessagePackReader(error);
+        assertEquals(2, reader.readMapHeader());
+        assertEquals("type", reader.readString());
+        assertEquals("error", reader.readString());
+        assertEquals("data", reader.readString());
+        assertEquals(RPCDeviceBusAdapter.ERROR_INVALID_MESSAGE_PART, reader.readString());
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("result", resultJson.get("type").getAsString());
+        assertEquals(3, resultJson.get("data").getAsInt());
+        assertNull(serialDevice.readMessageAsVM());
+    }
+
+    @Test
+    public void pipelinedRequests() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        for (int i = 1; i <= 3; i++) {
+            final JsonObject request = new JsonObject();
+            request.addProperty("type", "invoke");
+            request.addProperty("id", i);
+            final JsonObject methodInvocation = new JsonObject();
+            methodInvocation.addProperty("deviceId", DEVICE_UUID.toString());
+            methodInvocation.addProperty("name", "add");
+            final JsonArray parametersJson = new JsonArray();
+            parametersJson.add(i);
+            parametersJson.add(i);
+            methodInvocation.add("parameters", parametersJson);
+            request.add("data", methodInvocation);
+            serialDevice.putAsVM(request.toString());
+        }
+
+        rpcAdapter.step(0);
+
+        for (int i = 1; i <= 3; i++) {
+            final String result = serialDevice.readMessageAsVM();
+            assertNotNull(result);
+            final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+            assertEquals(i, resultJson.get("id").getAsInt());
+            assertEquals(i + i, resultJson.get("data").getAsInt());
+        }
+    }
+
+    @Test
+    public void chunkedMessages() {
+        final int[] claimedMemory = {0};
+        rpcAdapter = new RPCDeviceBusAdapter(serialDevice, 16, 16, 1024, 1024, size -> {
+            claimedMemory[0] = size;
+            return true;
+        });
+
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        final JsonObject request = new JsonObject();
+        request.addProperty("type", "invoke");
+        final JsonObject methodInvocation = new JsonObject();
+        methodInvocation.addProperty("deviceId", DEVICE_UUID.toString());
+        methodInvocation.addProperty("name", "add");
+        final JsonArray parametersJson = new JsonArray();
+        parametersJson.add(42);
+        parametersJson.add(23);
+        methodInvocation.add("parameters", parametersJson);
+        request.add("data", methodInvocation);
+
+        final String json = request.toString();
+        int offset = 0;
+        for (; offset + 16 < json.length(); offset += 16) {
+            serialDevice.putAsVM("\u0002" + json.substring(offset, offset + 16));
+        }
+        serialDevice.putAsVM(json.substring(offset));
+
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("result", resultJson.get("type").getAsString());
+        assertEquals(42 + 23, resultJson.get("data").getAsInt());
+        assertEquals(0, claimedMemory[0]);
+    }
+
+    @Test
+    public void chunkedMessageTooLarge() {
+        rpcAdapter = new RPCDeviceBusAdapter(serialDevice, 16, 16, 1024, 32, size -> size <= 32);
+
+        serialDevice.putAsVM("\u0002{\"type\":\"list\",");
+        serialDevice.putAsVM("\u0002\"data\":null,    ");
+        serialDevice.putAsVM("\u0002                ");
+        serialDevice.putAsVM("}");
+
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("error", resultJson.get("type").getAsString());
+        assertEquals(RPCDeviceBusAdapter.ERROR_MESSAGE_TOO_LARGE, resultJson.get("data").getAsString());
+        assertNull(serialDevice.readMessageAsVM());
+    }
+
+    @Test
+    public void batchedSynchronizedInvocations() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        final JsonArray invocations = new JsonArray();
+        for (final String name : new String[]{"add", "sub", "sub"}) {
+            final JsonObject methodInvocation = new JsonObject();
+            methodInvocation.addProperty("deviceId", DEVICE_UUID.toString());
+            methodInvocation.addProperty("name", name);
+            final JsonArray parametersJson = new JsonArray();
+            parametersJson.add(5);
+            parametersJson.add(3);
+            methodInvocation.add("parameters", parametersJson);
+            invocations.add(methodInvocation);
+        }
+
+        final JsonObject request = new JsonObject();
+        request.addProperty("type", "batch");
+        request.add("data", invocations);
+        serialDevice.putAsVM(request.toString());
+
+        rpcAdapter.step(0);
+        assertNull(serialDevice.readMessageAsVM());
+
+        rpcAdapter.tick();
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("batch", resultJson.get("type").getAsString());
+        final JsonArray results = resultJson.getAsJsonArray("data");
+        assertEquals(3, results.size());
+        assertEquals(8, results.get(0).getAsJsonObject().get("data").getAsInt());
+        assertEquals(2, results.get(1).getAsJsonObject().get("data").getAsInt());
+        assertEquals(2, results.get(2).getAsJsonObject().get("data").getAsInt());
+    }
+
+    @Test
+    public void batchTooLarge() {
+        rpcAdapter = new RPCDeviceBusAdapter(serialDevice, 16 * 1024);
+
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        final JsonArray invocations = new JsonArray();
+        for (int i = 0; i < 100; i++) {
+            final JsonObject methodInvocation = new JsonObject();
+            methodInvocation.addProperty("deviceId", DEVICE_UUID.toString());
+            methodInvocation.addProperty("name", "add");
+            final JsonArray parametersJson = new JsonArray();
+            parametersJson.add(5);
+            parametersJson.add(3);
+            methodInvocation.add("parameters", parametersJson);
+            invocations.add(methodInvocation);
+        }
+
+        final JsonObject request = new JsonObject();
+        request.addProperty("type", "batch");
+        request.add("data", invocations);
+        serialDevice.putAsVM(request.toString());
+
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("error", resultJson.get("type").getAsString());
+        assertEquals(RPCDeviceBusAdapter.ERROR_BATCH_TOO_LARGE, resultJson.get("data").getAsString());
+    }
+
+    @Test
+    public void asynchronousMethod() {
+        final SimpleObject object = new SimpleObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        final JsonObject request = new JsonObject();
+        request.addProperty("type", "invoke");
+        request.addProperty("id", 7);
+        final JsonObject methodInvocation = new JsonObject();
+        methodInvocation.addProperty("deviceId", DEVICE_UUID.toString());
+        methodInvocation.addProperty("name", "addLater");
+        final JsonArray parametersJson = new JsonArray();
+        parametersJson.add(5);
+        parametersJson.add(3);
+        methodInvocation.add("parameters", parametersJson);
+        request.add("data", methodInvocation);
+        serialDevice.putAsVM(request.toString());
+
+        rpcAdapter.step(0);
+        assertNull(serialDevice.readMessageAsVM());
+
+        // Other invocations are not held up by the pending one.
+        assertEquals(8, invokeMethod(DEVICE_UUID, "add", 5, 3).getAsInt());
+
+        assertNotNull(object.pendingResult);
+        object.pendingResult.complete(8);
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("result", resultJson.get("type").getAsString());
+        assertEquals(7, resultJson.get("id").getAsLong());
+        assertEquals(8, resultJson.get("data").getAsInt());
+    }
+
+    @Test
+    public void subscribedEvents() {
+        final EventObject object = new EventObject();
+        final ObjectDevice device = new ObjectDevice(object);
+        setDevice(device, DEVICE_UUID);
+
+        // Not subscribed yet, so this is not sent.
+        assertFalse(object.events.hasListeners());
+        object.events.emit("changed", 23);
+        rpcAdapter.step(0);
+        assertNull(serialDevice.readMessageAsVM());
+
+        final JsonObject request = new JsonObject();
+        request.addProperty("type", "subscribe");
+        request.addProperty("data", DEVICE_UUID.toString());
+        serialDevice.putAsVM(request.toString());
+        rpcAdapter.step(0);
+
+        final String response = serialDevice.readMessageAsVM();
+        assertNotNull(response);
+        assertEquals("result", new JsonParser().parse(response).getAsJsonObject().get("type").getAsString());
+        assertTrue(object.events.hasListeners());
+
+        object.events.emit("changed", 42);
+        rpcAdapter.step(0);
+
+        final String result = serialDevice.readMessageAsVM();
+        assertNotNull(result);
+        final JsonObject resultJson = new JsonParser().parse(result).getAsJsonObject();
+        assertEquals("event", resultJson.get("type").getAsString());
+        final JsonObject eventJson = resultJson.getAsJsonObject("data");
+        assertEquals(DEVICE_UUID.toString(), eventJson.get("deviceId").getAsString());
+        assertEquals("changed", eventJson.get("name").getAsString());
+        assertEquals(42, eventJson.get("data").getAsInt());
+        assertNull(serialDevice.readMessageAsVM());
+
+        request.addProperty("type", "unsubscribe");
+        serialDevice.putAsVM(request.toString());
+        rpcAdapter.step(0);
+        assertNotNull(serialDevice.readMessageAsVM());
+        assertFalse(object.events.hasListeners());
+    }
+
     private void setDevice(final RPCDevice device, final UUID deviceId) {
         when(busController.getDevices()).thenReturn(singleton(device));
         when(busController.getDeviceIdentifiers(device)).thenReturn(singleton(deviceId));
@@ -155,17 +512,57 @@ public class RPCAdapterTests {
     }
 
     public static final class SimpleObject {
+        @Nullable public CompletableFuture<Integer> pendingResult;
+
         @Callback(synchronize = false)
         public int add(@Parameter("a") final int a,
                        @Parameter("b") final int b) {
             return a + b;
         }
 
+        @Callback(synchronize = false)
+        public int addOptional(@Parameter("a") final int a,
+                               @Parameter("b") @Nullable final Integer b) {
+            return b != null ? a + b : a;
+        }
+
+        @Callback
+        public int sub(@Parameter("a") final int a,
+                       @Parameter("b") final int b) {
+            return a - b;
+        }
+
         @Callback(synchronize = false)
         public int div(@Parameter("a") final long a,
                        @Parameter("b") final long b) {
             return (int) (a / b);
         }
+
+        @Callback(synchronize = false)
+        public CompletableFuture<Integer> addLater(@Parameter("a") final int a,
+                                                   @Parameter("b") final int b) {
+            pendingResult = new CompletableFuture<>();
+            return pendingResult;
+        }
+    }
+
+    public static final class EventObject implements RPCEventSource {
+        public final RPCEventEmitter events = new RPCEventEmitter();
+
+        @Callback(synchronize = false)
+        public int get() {
+            return 0;
+        }
+
+        @Override
+        public void addEventListener(final RPCEventListener listener) {
+            events.addEventListener(listener);
+        }
+
+        @Override
+        public void removeEventListener(final RPCEventListener listener) {
+            events.removeEventListener(listener);
+        }
     }
 
     private static final class TestSerialDevice implements SerialDevice {
@@ -180,6 +577,45 @@ public class RPCAdapterTests {
             transmit.enqueue((byte) 0);
         }
 
+        public void putBytesAsVM(final int... data) {
+            for (final int value : data) {
+                transmit.enqueue((byte) value);
+            }
+        }
+
+        public void putFrameAsVM(final MessagePackWriter writer) {
+            final ByteBuffer frame = ByteBuffer.allocate(5 + writer.size());
+            frame.put((byte) 1).putInt(writer.size());
+            writer.copyTo(frame);
+            for (final byte value : frame.array()) {
+                transmit.enqueue(value);
+            }
+        }
+
+        @Nullable
+        public ByteBuffer readFrameAsVM() {
+            while (!receive.isEmpty() && receive.firstByte() == 0) {
+                receive.dequeueByte();
+            }
+
+            if (receive.isEmpty() || receive.dequeueByte() != 1) {
+                return null;
+            }
+
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            while (length.hasRemaining()) {
+                length.put(receive.dequeueByte());
+            }
+            length.flip();
+
+            final ByteBuffer frame = ByteBuffer.allocate(length.getInt());
+            while (frame.hasRemaining()) {
+                frame.put(receive.dequeueByte());
+            }
+            frame.flip();
+            return frame;
+        }
+
         @Nullable
         public String readMessageAsVM() {
             final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
@@ -206,7 +642,7 @@ public class RPCAdapterTests {
 
         @Override
         public int read() {
-            return transmit.isEmpty() ? -1 : transmit.dequeueByte();
+            return transmit.isEmpty() ? -1 : transmit.dequeueByte() & 0xFF;
         }
 
         @Override
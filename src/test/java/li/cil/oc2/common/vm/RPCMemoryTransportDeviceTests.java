@@ -0,0 +1,264 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.oc2.common.bus.FallbackRPCTransport;
+import li.cil.oc2.common.bus.RPCTransport;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.MemoryMaps;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import li.cil.sedna.riscv.device.R5PlatformLevelInterruptController;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public final class RPCMemoryTransportDeviceTests {
+    private static final long MEMORY_ADDRESS = 0x80000000L;
+    private static final long REQUEST_RING_ADDRESS = MEMORY_ADDRESS;
+    private static final long RESPONSE_RING_ADDRESS = MEMORY_ADDRESS + 0x1000;
+    private static final long BUFFER_ADDRESS = MEMORY_ADDRESS + 0x2000;
+    private static final int MEMORY_SIZE = 0x10000;
+    private static final int INTERRUPT = 1;
+
+    private static final int REG_REQUEST_RING_ADDRESS_LOW = 0x08;
+    private static final int REG_REQUEST_RING_ADDRESS_HIGH = 0x0C;
+    private static final int REG_REQUEST_RING_SIZE = 0x10;
+    private static final int REG_REQUEST_HEAD = 0x14;
+    private static final int REG_REQUEST_TAIL = 0x18;
+    private static final int REG_RESPONSE_RING_ADDRESS_LOW = 0x20;
+    private static final int REG_RESPONSE_RING_ADDRESS_HIGH = 0x24;
+    private static final int REG_RESPONSE_RING_SIZE = 0x28;
+    private static final int REG_RESPONSE_HEAD = 0x2C;
+    private static final int REG_RESPONSE_TAIL = 0x30;
+    private static final int REG_INTERRUPT_STATUS = 0x38;
+
+    private static final int INTERRUPT_REQUESTS_PROCESSED = 0x1;
+    private static final int INTERRUPT_RESPONSES_AVAILABLE = 0x2;
+
+    private static final int DESCRIPTOR_SIZE = 16;
+    private static final int DESCRIPTOR_LENGTH_OFFSET = 8;
+    private static final int DESCRIPTOR_USED_LENGTH_OFFSET = 12;
+    private static final int SIZE_32_LOG2 = 2;
+    private static final int SIZE_64_LOG2 = 3;
+
+    private MemoryMap memoryMap;
+    private R5PlatformLevelInterruptController interruptController;
+    private RPCMemoryTransportDevice device;
+    private long nextBufferAddress;
+
+    @BeforeEach
+    public void setupEach() {
+        memoryMap = new SimpleMemoryMap();
+        final PhysicalMemory memory = Memory.create(MEMORY_SIZE);
+        assertTrue(memoryMap.addDevice(MEMORY_ADDRESS, memory));
+
+        interruptController = new R5PlatformLevelInterruptController();
+        device = new RPCMemoryTransportDevice(memoryMap);
+        device.getInterrupt().set(INTERRUPT, interruptController);
+
+        nextBufferAddress = BUFFER_ADDRESS;
+    }
+
+    @Test
+    public void notAvailableUntilBothRingsAreSetUp() {
+        assertFalse(device.isAvailable());
+        setupRing(REG_REQUEST_RING_ADDRESS_LOW, REG_REQUEST_RING_ADDRESS_HIGH, REG_REQUEST_RING_SIZE, REQUEST_RING_ADDRESS, 4);
+        assertFalse(device.isAvailable());
+        setupRing(REG_RESPONSE_RING_ADDRESS_LOW, REG_RESPONSE_RING_ADDRESS_HIGH, REG_RESPONSE_RING_SIZE, RESPONSE_RING_ADDRESS, 4);
+        assertTrue(device.isAvailable());
+
+        // Invalid ring sizes disable the ring.
+        device.store(REG_RESPONSE_RING_SIZE, 3, SIZE_32_LOG2);
+        assertFalse(device.isAvailable());
+    }
+
+    @Test
+    public void consoleIsUsedUntilRingsAreSetUp() throws MemoryAccessException {
+        final RPCTransport console = mock(RPCTransport.class);
+        final RPCTransport transport = new FallbackRPCTransport(device, console);
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        transport.read(buffer);
+        verify(console).read(buffer);
+
+        setupRings(4, 4);
+        putRequest(0, "test");
+        device.store(REG_REQUEST_TAIL, 1, SIZE_32_LOG2);
+
+        assertEquals(4, transport.read(buffer));
+        verifyNoMoreInteractions(console);
+    }
+
+    @Test
+    public void readsRequestsInPartialDescriptors() throws MemoryAccessException {
+        setupRings(4, 4);
+        putRequest(0, "hello");
+        putRequest(1, " world");
+        device.store(REG_REQUEST_TAIL, 2, SIZE_32_LOG2);
+
+        assertEquals("hel", read(3));
+        assertEquals(0, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+
+        assertEquals("lo w", read(4));
+        assertEquals(1, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+
+        assertEquals("orld", read(64));
+        assertEquals(2, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+        assertEquals("", read(64));
+
+        device.flush();
+        assertEquals(INTERRUPT_REQUESTS_PROCESSED, device.load(REG_INTERRUPT_STATUS, SIZE_32_LOG2));
+        assertTrue(isInterruptRaised());
+    }
+
+    @Test
+    public void writesResponsesAndHandsOutPartialDescriptorOnFlush() throws MemoryAccessException {
+        setupRings(4, 4);
+        final long first = putResponseBuffer(0, 4);
+        final long second = putResponseBuffer(1, 4);
+        device.store(REG_RESPONSE_TAIL, 2, SIZE_32_LOG2);
+
+        assertEquals(6, write("abcdef"));
+        assertEquals(1, device.load(REG_RESPONSE_HEAD, SIZE_32_LOG2));
+        assertEquals(4, getUsedLength(RESPONSE_RING_ADDRESS, 0));
+        assertEquals("abcd", load(first, 4));
+        assertFalse(isInterruptRaised());
+
+        device.flush();
+        assertEquals(2, device.load(REG_RESPONSE_HEAD, SIZE_32_LOG2));
+        assertEquals(2, getUsedLength(RESPONSE_RING_ADDRESS, 1));
+        assertEquals("ef", load(second, 2));
+        assertEquals(INTERRUPT_RESPONSES_AVAILABLE, device.load(REG_INTERRUPT_STATUS, SIZE_32_LOG2));
+        assertTrue(isInterruptRaised());
+
+        // No more buffers available, data stays with the caller.
+        assertEquals(0, write("gh"));
+    }
+
+    @Test
+    public void ringSlotsWrapAround() throws MemoryAccessException {
+        setupRings(2, 2);
+        putRequest(0, "a");
+        putRequest(1, "b");
+        device.store(REG_REQUEST_TAIL, 2, SIZE_32_LOG2);
+        assertEquals("ab", read(64));
+
+        // Index 2 uses the first slot again.
+        putRequest(0, "c");
+        device.store(REG_REQUEST_TAIL, 3, SIZE_32_LOG2);
+        assertEquals("c", read(64));
+        assertEquals(3, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+    }
+
+    @Test
+    public void tailBeyondRingIsIgnored() throws MemoryAccessException {
+        setupRings(2, 2);
+        putRequest(0, "a");
+        putRequest(1, "b");
+
+        // Claims more descriptors than the ring holds.
+        device.store(REG_REQUEST_TAIL, 3, SIZE_32_LOG2);
+        assertEquals("", read(64));
+        assertEquals(0, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+
+        // Moves the tail before the head.
+        device.store(REG_REQUEST_TAIL, -1, SIZE_32_LOG2);
+        assertEquals("", read(64));
+        assertEquals(0, device.load(REG_REQUEST_HEAD, SIZE_32_LOG2));
+
+        device.store(REG_REQUEST_TAIL, 2, SIZE_32_LOG2);
+        assertEquals("ab", read(64));
+    }
+
+    @Test
+    public void acknowledgingAllInterruptsLowersInterrupt() throws MemoryAccessException {
+        setupRings(4, 4);
+        putRequest(0, "a");
+        device.store(REG_REQUEST_TAIL, 1, SIZE_32_LOG2);
+        putResponseBuffer(0, 4);
+        device.store(REG_RESPONSE_TAIL, 1, SIZE_32_LOG2);
+
+        read(64);
+        write("b");
+        device.flush();
+        assertEquals(INTERRUPT_REQUESTS_PROCESSED | INTERRUPT_RESPONSES_AVAILABLE, device.load(REG_INTERRUPT_STATUS, SIZE_32_LOG2));
+        assertTrue(isInterruptRaised());
+
+        device.store(REG_INTERRUPT_STATUS, INTERRUPT_REQUESTS_PROCESSED, SIZE_32_LOG2);
+        assertEquals(INTERRUPT_RESPONSES_AVAILABLE, device.load(REG_INTERRUPT_STATUS, SIZE_32_LOG2));
+        assertTrue(isInterruptRaised());
+
+        device.store(REG_INTERRUPT_STATUS, INTERRUPT_RESPONSES_AVAILABLE, SIZE_32_LOG2);
+        assertEquals(0, device.load(REG_INTERRUPT_STATUS, SIZE_32_LOG2));
+        assertFalse(isInterruptRaised());
+
+        // Nothing new processed, so flushing does not raise the interrupt again.
+        device.flush();
+        assertFalse(isInterruptRaised());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private void setupRings(final int requestRingSize, final int responseRingSize) {
+        setupRing(REG_REQUEST_RING_ADDRESS_LOW, REG_REQUEST_RING_ADDRESS_HIGH, REG_REQUEST_RING_SIZE, REQUEST_RING_ADDRESS, requestRingSize);
+        setupRing(REG_RESPONSE_RING_ADDRESS_LOW, REG_RESPONSE_RING_ADDRESS_HIGH, REG_RESPONSE_RING_SIZE, RESPONSE_RING_ADDRESS, responseRingSize);
+    }
+
+    private void setupRing(final int addressLowRegister, final int addressHighRegister, final int sizeRegister,
+                           final long address, final int size) {
+        device.store(addressLowRegister, (int) address, SIZE_32_LOG2);
+        device.store(addressHighRegister, (int) (address >>> 32), SIZE_32_LOG2);
+        device.store(sizeRegister, size, SIZE_32_LOG2);
+    }
+
+    private void putRequest(final int slot, final String data) throws MemoryAccessException {
+        final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        final long address = putDescriptor(REQUEST_RING_ADDRESS, slot, bytes.length);
+        MemoryMaps.store(memoryMap, address, ByteBuffer.wrap(bytes));
+    }
+
+    private long putResponseBuffer(final int slot, final int length) throws MemoryAccessException {
+        return putDescriptor(RESPONSE_RING_ADDRESS, slot, length);
+    }
+
+    private long putDescriptor(final long ringAddress, final int slot, final int length) throws MemoryAccessException {
+        final long address = nextBufferAddress;
+        nextBufferAddress += length;
+        final long descriptor = ringAddress + (long) slot * DESCRIPTOR_SIZE;
+        memoryMap.store(descriptor, address, SIZE_64_LOG2);
+        memoryMap.store(descriptor + DESCRIPTOR_LENGTH_OFFSET, length, SIZE_32_LOG2);
+        memoryMap.store(descriptor + DESCRIPTOR_USED_LENGTH_OFFSET, 0, SIZE_32_LOG2);
+        return address;
+    }
+
+    private int getUsedLength(final long ringAddress, final int slot) throws MemoryAccessException {
+        return (int) memoryMap.load(ringAddress + (long) slot * DESCRIPTOR_SIZE + DESCRIPTOR_USED_LENGTH_OFFSET, SIZE_32_LOG2);
+    }
+
+    private String read(final int count) {
+        final ByteBuffer buffer = ByteBuffer.allocate(count);
+        final int readCount = device.read(buffer);
+        assertEquals(buffer.position(), readCount);
+        return new String(buffer.array(), 0, readCount, StandardCharsets.UTF_8);
+    }
+
+    private int write(final String data) {
+        return device.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String load(final long address, final int length) throws MemoryAccessException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        MemoryMaps.load(memoryMap, address, buffer);
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private boolean isInterruptRaised() {
+        return (interruptController.getRaisedInterrupts() & (1 << INTERRUPT)) != 0;
+    }
+}
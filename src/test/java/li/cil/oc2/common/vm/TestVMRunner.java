@@ -0,0 +1,112 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.oc2.common.Constants;
+import li.cil.oc2.common.bus.RPCDeviceBusAdapter;
+import li.cil.oc2.common.bus.RPCMessageMemory;
+import li.cil.oc2.common.bus.RPCTransport;
+import li.cil.oc2.common.vm.context.global.GlobalVMContext;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.riscv.R5Board;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runner for a bare board without devices, running its time slices synchronously on the
+ * thread calling {@link #tick()} instead of going through the {@link VMScheduler}.
+ */
+final class TestVMRunner extends VMRunner {
+    public static final long MEMORY_ADDRESS = 0x80000000L;
+    private static final int MEMORY_SIZE = 2 * Constants.MEGABYTE;
+    private static final int MAX_MESSAGE_SIZE = 4 * Constants.KILOBYTE;
+
+    public final R5Board board;
+    public final PhysicalMemory memory;
+    public boolean canHibernate = true;
+    public boolean hasPendingIO;
+    public int scheduleCount;
+
+    ///////////////////////////////////////////////////////////////////
+
+    private TestVMRunner(final R5Board board, final PhysicalMemory memory) {
+        this(board, memory, new GlobalVMContext(board, () -> {
+        }));
+    }
+
+    private TestVMRunner(final R5Board board, final PhysicalMemory memory, final GlobalVMContext context) {
+        super(board, context, new RPCDeviceBusAdapter(mock(RPCTransport.class), MAX_MESSAGE_SIZE,
+                1, MAX_MESSAGE_SIZE, MAX_MESSAGE_SIZE, RPCMessageMemory.UNTRACKED));
+        this.board = board;
+        this.memory = memory;
+    }
+
+    /**
+     * Creates a runner for a board running the specified program from the start of its memory.
+     *
+     * @param program the instructions of the program.
+     * @return the runner for the board.
+     */
+    public static TestVMRunner create(final int... program) throws MemoryAccessException {
+        final R5Board board = new R5Board();
+        board.getCpu().setFrequency(Constants.CPU_FREQUENCY);
+
+        final PhysicalMemory memory = Memory.create(MEMORY_SIZE);
+        assertTrue(board.addDevice(MEMORY_ADDRESS, memory));
+        for (int i = 0; i < program.length; i++) {
+            memory.store(i * 4, program[i], 2);
+        }
+
+        board.reset();
+        board.initialize();
+        board.setRunning(true);
+
+        return new TestVMRunner(board, memory);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    public long getTime() throws MemoryAccessException {
+        return board.getMemoryMap().load(MTIME_ADDRESS, SIZE_64_LOG2);
+    }
+
+    public void setTimeCompare(final long value) throws MemoryAccessException {
+        board.getMemoryMap().store(MTIMECMP_ADDRESS, value, SIZE_64_LOG2);
+    }
+
+    @Override
+    public boolean isWaitingForInterrupt() {
+        return super.isWaitingForInterrupt();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    @Override
+    protected boolean canHibernate() {
+        return super.canHibernate() && canHibernate;
+    }
+
+    @Override
+    protected boolean hasPendingIO() {
+        return super.hasPendingIO() || hasPendingIO;
+    }
+
+    @Override
+    long getTimeQuotaPerTickInNanos() {
+        return TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    Future<?> schedule() {
+        scheduleCount++;
+        do {
+            run();
+        } while (canContinue());
+        return CompletableFuture.completedFuture(null);
+    }
+}
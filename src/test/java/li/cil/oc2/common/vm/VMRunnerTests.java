@@ -0,0 +1,152 @@
+package li.cil.oc2.common.vm;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.oc2.common.vm.VMRunner.MAX_CYCLES_PER_STEP;
+import static li.cil.oc2.common.vm.VMRunner.MIN_CYCLES_PER_STEP;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class VMRunnerTests {
+    // Disables the machine timer by setting mtimecmp to the maximum, then waits for interrupts forever.
+    static final int[] IDLE_PROGRAM = {
+            0x020042B7, // lui  t0, 0x2004 (mtimecmp)
+            0xFFF00313, // addi t1, zero, -1
+            0x0062B023, // sd   t1, 0(t0)
+            0x10500073, // wfi
+            0xFFDFF06F, // j    -4
+    };
+
+    private static final int[] BUSY_PROGRAM = {
+            0x0000006F, // j    0
+    };
+
+    // Enables the machine timer interrupt, disables the timer, waits for an interrupt, then
+    // writes a marker after the instruction writing it and loops forever.
+    private static final int[] WAKE_PROGRAM = {
+            0x08000293, // addi t0, zero, 0x80 (MTIE)
+            0x3042A073, // csrs mie, t0
+            0x020042B7, // lui  t0, 0x2004 (mtimecmp)
+            0xFFF00313, // addi t1, zero, -1
+            0x0062B023, // sd   t1, 0(t0)
+            0x10500073, // wfi
+            0x00000297, // auipc t0, 0
+            0x00100313, // addi t1, zero, 1
+            0x2062A023, // sw   t1, 0x200(t0)
+            0x0000006F, // j    0
+    };
+    private static final int WAKE_MARKER_OFFSET = 6 * 4 + 0x200;
+
+    private static final long SLICE_CYCLES = 10L * MAX_CYCLES_PER_STEP;
+
+    @Test
+    public void idleGuestWithoutTimerStepsToEndOfSlice() throws MemoryAccessException {
+        final TestVMRunner runner = createIdleRunner();
+        assertEquals(SLICE_CYCLES, runner.updateCyclesPerStep(SLICE_CYCLES));
+    }
+
+    @Test
+    public void idleGuestStepsToTimerDeadline() throws MemoryAccessException {
+        final TestVMRunner runner = createIdleRunner();
+
+        runner.setTimeCompare(runner.getTime() + 3 * MAX_CYCLES_PER_STEP + 123);
+        assertEquals(3 * MAX_CYCLES_PER_STEP + 123, runner.updateCyclesPerStep(SLICE_CYCLES));
+
+        // Never below the minimum, even if the timer is about to fire.
+        runner.setTimeCompare(runner.getTime() + 10);
+        assertEquals(MIN_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+    }
+
+    @Test
+    public void idleGuestIgnoresMaskedTimer() throws MemoryAccessException {
+        final TestVMRunner runner = createIdleRunner();
+
+        // Timer is due, but the guest still waits, so it has the interrupt masked.
+        runner.setTimeCompare(runner.getTime() - 1);
+        assertTrue(runner.isWaitingForInterrupt());
+        assertEquals(MAX_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+    }
+
+    @Test
+    public void pendingIOUsesSmallSteps() throws MemoryAccessException {
+        final TestVMRunner runner = createIdleRunner();
+        runner.hasPendingIO = true;
+        assertEquals(MIN_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+    }
+
+    @Test
+    public void busyGuestGrowsStepsUpToMaximum() throws MemoryAccessException {
+        final TestVMRunner runner = TestVMRunner.create(BUSY_PROGRAM);
+        runner.board.step(MIN_CYCLES_PER_STEP);
+        assertFalse(runner.isWaitingForInterrupt());
+
+        long expected = MIN_CYCLES_PER_STEP;
+        while (expected < MAX_CYCLES_PER_STEP) {
+            expected = Math.min(expected * 2, MAX_CYCLES_PER_STEP);
+            assertEquals(expected, runner.updateCyclesPerStep(SLICE_CYCLES));
+        }
+        assertEquals(MAX_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+
+        // Devices needing service reset the step size.
+        runner.hasPendingIO = true;
+        assertEquals(MIN_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+        runner.hasPendingIO = false;
+        assertEquals(2 * MIN_CYCLES_PER_STEP, runner.updateCyclesPerStep(SLICE_CYCLES));
+    }
+
+    @Test
+    public void idleGuestHibernatesUntilTimerDeadline() throws MemoryAccessException {
+        final TestVMRunner runner = TestVMRunner.create(WAKE_PROGRAM);
+        final long cyclesPerTick = VMRunner.getCyclesPerTick();
+
+        runner.tick();
+        assertEquals(1, runner.scheduleCount);
+        assertTrue(runner.isWaitingForInterrupt());
+
+        // Without a timer the guest sleeps for as long as nothing else wakes it.
+        final long cycles = runner.getCycles();
+        for (int i = 0; i < 10; i++) {
+            runner.tick();
+        }
+        assertEquals(1, runner.scheduleCount);
+        assertEquals(cycles, runner.getCycles());
+
+        // Timer fires halfway into the fourth tick from now, counting the cycles skipped so far.
+        final long skippedCycles = runner.getCycleLimit() - runner.getCycles();
+        runner.setTimeCompare(runner.getTime() + skippedCycles + 3 * cyclesPerTick + cyclesPerTick / 2);
+        for (int i = 0; i < 3; i++) {
+            runner.tick();
+        }
+        assertEquals(1, runner.scheduleCount);
+        assertEquals(0, runner.memory.load(WAKE_MARKER_OFFSET, 2));
+
+        runner.tick();
+        assertEquals(2, runner.scheduleCount);
+        assertEquals(runner.getCycleLimit(), runner.getCycles());
+        assertFalse(runner.isWaitingForInterrupt());
+        assertEquals(1, runner.memory.load(WAKE_MARKER_OFFSET, 2));
+    }
+
+    @Test
+    public void pendingIOEndsHibernation() throws MemoryAccessException {
+        final TestVMRunner runner = TestVMRunner.create(IDLE_PROGRAM);
+
+        runner.tick();
+        runner.tick();
+        assertEquals(1, runner.scheduleCount);
+
+        runner.hasPendingIO = true;
+        runner.tick();
+        assertEquals(2, runner.scheduleCount);
+        assertEquals(runner.getCycleLimit(), runner.getCycles());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+
+    private static TestVMRunner createIdleRunner() throws MemoryAccessException {
+        final TestVMRunner runner = TestVMRunner.create(IDLE_PROGRAM);
+        runner.board.step(MIN_CYCLES_PER_STEP);
+        assertTrue(runner.isWaitingForInterrupt());
+        return runner;
+    }
+}